@@ -0,0 +1,71 @@
+package org.braindroppings.forkingjava;
+
+import java.io.Serializable;
+
+/**
+ * Outcome of one operation in a batch, either what the operation returned or
+ * why it failed. Failures of one operation never fail the rest of the batch.
+ * 
+ * @see IForkService#executeBatch(java.util.List, int, int)
+ * @author chinshaw
+ */
+public class BatchResult<T extends Serializable> implements Serializable {
+
+	/**
+	 * Serialization ID
+	 */
+	private static final long serialVersionUID = -1843150954721003187L;
+
+	private final T result;
+
+	private final Throwable failure;
+
+	private BatchResult(T result, Throwable failure) {
+		this.result = result;
+		this.failure = failure;
+	}
+
+	static <T extends Serializable> BatchResult<T> succeeded(T result) {
+		return new BatchResult<T>(result, null);
+	}
+
+	static <T extends Serializable> BatchResult<T> failed(Throwable failure) {
+		return new BatchResult<T>(null, failure);
+	}
+
+	public boolean isSuccess() {
+		return failure == null;
+	}
+
+	/**
+	 * @return what the operation returned, null if it failed
+	 */
+	public T getResult() {
+		return result;
+	}
+
+	/**
+	 * @return a {@link ForkException} wrapping what the operation threw, a
+	 *         {@link ForkTimeoutException} if the batch ran out of time before
+	 *         the operation finished, or null if it succeeded
+	 */
+	public Throwable getFailure() {
+		return failure;
+	}
+
+	/**
+	 * Returns the result or throws the failure.
+	 * 
+	 * @throws ForkException
+	 *             if the operation failed or timed out
+	 */
+	public T get() throws ForkException {
+		if (failure instanceof ForkException) {
+			throw (ForkException) failure;
+		}
+		if (failure != null) {
+			throw new ForkException(failure.getMessage(), failure);
+		}
+		return result;
+	}
+}
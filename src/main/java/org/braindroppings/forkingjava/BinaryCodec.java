@@ -0,0 +1,439 @@
+package org.braindroppings.forkingjava;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the common value types directly instead of through java
+ * serialization: nulls, boxed primitives, strings, primitive arrays and
+ * {@link ArrayList}, {@link HashMap} and {@link LinkedHashMap} holding only
+ * those. Primitive arrays are copied across in bulk a chunk at a time, so a
+ * large array costs little more than its raw bytes. Anything else, including a
+ * collection with a single other element in it, falls back to
+ * {@link SerializationCodec}.
+ *
+ * Collections come back as the same class but lose object identity, a list
+ * holding the same list twice is read back as two lists.
+ *
+ * @author chinshaw
+ */
+public class BinaryCodec implements ForkCodec {
+
+	/*
+	 * Type tags, one in front of every value.
+	 */
+	private static final byte NULL = 0;
+
+	private static final byte TRUE = 1;
+
+	private static final byte FALSE = 2;
+
+	private static final byte BYTE = 3;
+
+	private static final byte SHORT = 4;
+
+	private static final byte CHAR = 5;
+
+	private static final byte INT = 6;
+
+	private static final byte LONG = 7;
+
+	private static final byte FLOAT = 8;
+
+	private static final byte DOUBLE = 9;
+
+	private static final byte STRING = 10;
+
+	private static final byte BOOLEAN_ARRAY = 11;
+
+	private static final byte BYTE_ARRAY = 12;
+
+	private static final byte SHORT_ARRAY = 13;
+
+	private static final byte CHAR_ARRAY = 14;
+
+	private static final byte INT_ARRAY = 15;
+
+	private static final byte LONG_ARRAY = 16;
+
+	private static final byte FLOAT_ARRAY = 17;
+
+	private static final byte DOUBLE_ARRAY = 18;
+
+	private static final byte LIST = 19;
+
+	private static final byte HASH_MAP = 20;
+
+	private static final byte LINKED_HASH_MAP = 21;
+
+	private static final byte SERIALIZED = 127;
+
+	/**
+	 * Bytes of array data converted per step, so a large array is never
+	 * copied into a second buffer of its full size.
+	 */
+	private static final int CHUNK = 64 * 1024;
+
+	/**
+	 * How deep collections may nest before we leave them to serialization,
+	 * this also stops us on collections that contain themselves.
+	 */
+	private static final int MAX_DEPTH = 16;
+
+	private final SerializationCodec fallback = new SerializationCodec();
+
+	public void write(DataOutputStream out, Object value) throws IOException {
+		if (isNative(value, 0)) {
+			writeNative(out, value);
+		} else {
+			out.writeByte(SERIALIZED);
+			fallback.write(out, value);
+		}
+	}
+
+	public Object read(DataInputStream in) throws IOException,
+			ClassNotFoundException {
+		byte tag = in.readByte();
+		switch (tag) {
+		case NULL:
+			return null;
+		case TRUE:
+			return Boolean.TRUE;
+		case FALSE:
+			return Boolean.FALSE;
+		case BYTE:
+			return in.readByte();
+		case SHORT:
+			return in.readShort();
+		case CHAR:
+			return in.readChar();
+		case INT:
+			return in.readInt();
+		case LONG:
+			return in.readLong();
+		case FLOAT:
+			return in.readFloat();
+		case DOUBLE:
+			return in.readDouble();
+		case STRING:
+			byte[] utf = new byte[readLength(in)];
+			in.readFully(utf);
+			return new String(utf, StandardCharsets.UTF_8);
+		case BOOLEAN_ARRAY:
+			return readBooleans(in);
+		case BYTE_ARRAY:
+			byte[] bytes = new byte[readLength(in)];
+			in.readFully(bytes);
+			return bytes;
+		case SHORT_ARRAY:
+		case CHAR_ARRAY:
+		case INT_ARRAY:
+		case LONG_ARRAY:
+		case FLOAT_ARRAY:
+		case DOUBLE_ARRAY:
+			return readArray(in, tag);
+		case LIST:
+			int size = readLength(in);
+			List<Object> list = new ArrayList<Object>(size);
+			for (int i = 0; i < size; i++) {
+				list.add(read(in));
+			}
+			return list;
+		case HASH_MAP:
+			return readMap(in, new HashMap<Object, Object>());
+		case LINKED_HASH_MAP:
+			return readMap(in, new LinkedHashMap<Object, Object>());
+		case SERIALIZED:
+			return fallback.read(in);
+		default:
+			throw new IOException("Unknown type tag " + tag);
+		}
+	}
+
+	/**
+	 * @return true if the value and everything in it can be written without
+	 *         serialization
+	 */
+	private static boolean isNative(Object value, int depth) {
+		if (value == null || value instanceof String
+				|| value instanceof Boolean || value instanceof Byte
+				|| value instanceof Short || value instanceof Character
+				|| value instanceof Integer || value instanceof Long
+				|| value instanceof Float || value instanceof Double) {
+			return true;
+		}
+		Class<?> type = value.getClass();
+		if (type.isArray()) {
+			return type.getComponentType().isPrimitive();
+		}
+		if (depth >= MAX_DEPTH) {
+			return false;
+		}
+		if (type == ArrayList.class) {
+			for (Object element : (List<?>) value) {
+				if (!isNative(element, depth + 1)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		if (type == HashMap.class || type == LinkedHashMap.class) {
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				if (!isNative(entry.getKey(), depth + 1)
+						|| !isNative(entry.getValue(), depth + 1)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+
+	private static void writeNative(DataOutputStream out, Object value)
+			throws IOException {
+		if (value == null) {
+			out.writeByte(NULL);
+		} else if (value instanceof String) {
+			byte[] utf = ((String) value).getBytes(StandardCharsets.UTF_8);
+			out.writeByte(STRING);
+			writeLength(out, utf.length);
+			out.write(utf);
+		} else if (value instanceof Integer) {
+			out.writeByte(INT);
+			out.writeInt((Integer) value);
+		} else if (value instanceof Long) {
+			out.writeByte(LONG);
+			out.writeLong((Long) value);
+		} else if (value instanceof Double) {
+			out.writeByte(DOUBLE);
+			out.writeDouble((Double) value);
+		} else if (value instanceof Boolean) {
+			out.writeByte((Boolean) value ? TRUE : FALSE);
+		} else if (value instanceof Float) {
+			out.writeByte(FLOAT);
+			out.writeFloat((Float) value);
+		} else if (value instanceof Byte) {
+			out.writeByte(BYTE);
+			out.writeByte((Byte) value);
+		} else if (value instanceof Short) {
+			out.writeByte(SHORT);
+			out.writeShort((Short) value);
+		} else if (value instanceof Character) {
+			out.writeByte(CHAR);
+			out.writeChar((Character) value);
+		} else if (value instanceof byte[]) {
+			byte[] bytes = (byte[]) value;
+			out.writeByte(BYTE_ARRAY);
+			writeLength(out, bytes.length);
+			out.write(bytes);
+		} else if (value instanceof boolean[]) {
+			writeBooleans(out, (boolean[]) value);
+		} else if (value instanceof short[]) {
+			writeArray(out, SHORT_ARRAY, value, ((short[]) value).length);
+		} else if (value instanceof char[]) {
+			writeArray(out, CHAR_ARRAY, value, ((char[]) value).length);
+		} else if (value instanceof int[]) {
+			writeArray(out, INT_ARRAY, value, ((int[]) value).length);
+		} else if (value instanceof long[]) {
+			writeArray(out, LONG_ARRAY, value, ((long[]) value).length);
+		} else if (value instanceof float[]) {
+			writeArray(out, FLOAT_ARRAY, value, ((float[]) value).length);
+		} else if (value instanceof double[]) {
+			writeArray(out, DOUBLE_ARRAY, value, ((double[]) value).length);
+		} else if (value instanceof List) {
+			List<?> list = (List<?>) value;
+			out.writeByte(LIST);
+			writeLength(out, list.size());
+			for (Object element : list) {
+				writeNative(out, element);
+			}
+		} else {
+			Map<?, ?> map = (Map<?, ?>) value;
+			out.writeByte(value instanceof LinkedHashMap ? LINKED_HASH_MAP
+					: HASH_MAP);
+			writeLength(out, map.size());
+			for (Map.Entry<?, ?> entry : map.entrySet()) {
+				writeNative(out, entry.getKey());
+				writeNative(out, entry.getValue());
+			}
+		}
+	}
+
+	private Map<Object, Object> readMap(DataInputStream in,
+			Map<Object, Object> map) throws IOException,
+			ClassNotFoundException {
+		int size = readLength(in);
+		for (int i = 0; i < size; i++) {
+			Object key = read(in);
+			map.put(key, read(in));
+		}
+		return map;
+	}
+
+	/**
+	 * Writes a length seven bits at a time, most lengths fit in one byte.
+	 */
+	private static void writeLength(DataOutputStream out, int length)
+			throws IOException {
+		while ((length & ~0x7f) != 0) {
+			out.writeByte((length & 0x7f) | 0x80);
+			length >>>= 7;
+		}
+		out.writeByte(length);
+	}
+
+	private static int readLength(DataInputStream in) throws IOException {
+		int length = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = in.readUnsignedByte();
+			length |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				if (length < 0) {
+					throw new IOException("Bad length " + length);
+				}
+				return length;
+			}
+		}
+		throw new IOException("Bad length");
+	}
+
+	private static void writeBooleans(DataOutputStream out, boolean[] values)
+			throws IOException {
+		out.writeByte(BOOLEAN_ARRAY);
+		writeLength(out, values.length);
+		byte[] chunk = new byte[Math.min(CHUNK, values.length)];
+		for (int offset = 0; offset < values.length; offset += chunk.length) {
+			int count = Math.min(chunk.length, values.length - offset);
+			for (int i = 0; i < count; i++) {
+				chunk[i] = (byte) (values[offset + i] ? 1 : 0);
+			}
+			out.write(chunk, 0, count);
+		}
+	}
+
+	private static boolean[] readBooleans(DataInputStream in)
+			throws IOException {
+		boolean[] values = new boolean[readLength(in)];
+		byte[] chunk = new byte[Math.min(CHUNK, values.length)];
+		for (int offset = 0; offset < values.length; offset += chunk.length) {
+			int count = Math.min(chunk.length, values.length - offset);
+			in.readFully(chunk, 0, count);
+			for (int i = 0; i < count; i++) {
+				values[offset + i] = chunk[i] != 0;
+			}
+		}
+		return values;
+	}
+
+	private static int width(byte tag) {
+		switch (tag) {
+		case SHORT_ARRAY:
+		case CHAR_ARRAY:
+			return 2;
+		case INT_ARRAY:
+		case FLOAT_ARRAY:
+			return 4;
+		default:
+			return 8;
+		}
+	}
+
+	/**
+	 * Writes a primitive array other than bytes and booleans through a view
+	 * buffer, one chunk at a time.
+	 */
+	private static void writeArray(DataOutputStream out, byte tag,
+			Object array, int length) throws IOException {
+		out.writeByte(tag);
+		writeLength(out, length);
+		int width = width(tag);
+		ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(CHUNK,
+				(long) length * width));
+		int perChunk = Math.max(1, chunk.capacity() / width);
+		for (int offset = 0; offset < length; offset += perChunk) {
+			int count = Math.min(perChunk, length - offset);
+			switch (tag) {
+			case SHORT_ARRAY:
+				chunk.asShortBuffer().put((short[]) array, offset, count);
+				break;
+			case CHAR_ARRAY:
+				chunk.asCharBuffer().put((char[]) array, offset, count);
+				break;
+			case INT_ARRAY:
+				chunk.asIntBuffer().put((int[]) array, offset, count);
+				break;
+			case LONG_ARRAY:
+				chunk.asLongBuffer().put((long[]) array, offset, count);
+				break;
+			case FLOAT_ARRAY:
+				chunk.asFloatBuffer().put((float[]) array, offset, count);
+				break;
+			default:
+				chunk.asDoubleBuffer().put((double[]) array, offset, count);
+			}
+			out.write(chunk.array(), 0, count * width);
+		}
+	}
+
+	private static Object readArray(DataInputStream in, byte tag)
+			throws IOException {
+		int length = readLength(in);
+		Object array;
+		switch (tag) {
+		case SHORT_ARRAY:
+			array = new short[length];
+			break;
+		case CHAR_ARRAY:
+			array = new char[length];
+			break;
+		case INT_ARRAY:
+			array = new int[length];
+			break;
+		case LONG_ARRAY:
+			array = new long[length];
+			break;
+		case FLOAT_ARRAY:
+			array = new float[length];
+			break;
+		default:
+			array = new double[length];
+		}
+
+		int width = width(tag);
+		ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(CHUNK,
+				(long) length * width));
+		int perChunk = Math.max(1, chunk.capacity() / width);
+		for (int offset = 0; offset < length; offset += perChunk) {
+			int count = Math.min(perChunk, length - offset);
+			in.readFully(chunk.array(), 0, count * width);
+			switch (tag) {
+			case SHORT_ARRAY:
+				chunk.asShortBuffer().get((short[]) array, offset, count);
+				break;
+			case CHAR_ARRAY:
+				chunk.asCharBuffer().get((char[]) array, offset, count);
+				break;
+			case INT_ARRAY:
+				chunk.asIntBuffer().get((int[]) array, offset, count);
+				break;
+			case LONG_ARRAY:
+				chunk.asLongBuffer().get((long[]) array, offset, count);
+				break;
+			case FLOAT_ARRAY:
+				chunk.asFloatBuffer().get((float[]) array, offset, count);
+				break;
+			default:
+				chunk.asDoubleBuffer().get((double[]) array, offset, count);
+			}
+		}
+		return array;
+	}
+}
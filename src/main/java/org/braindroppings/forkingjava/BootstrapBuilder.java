@@ -1,18 +1,36 @@
 package org.braindroppings.forkingjava;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.jar.JarEntry;
 import java.util.jar.JarOutputStream;
 import java.util.zip.ZipEntry;
 
+import org.apache.commons.io.IOUtils;
+
 /**
  * This builds a command and jar for forking a process
  * 
@@ -20,11 +38,53 @@ import java.util.zip.ZipEntry;
  */
 public class BootstrapBuilder {
 
+	private static final Logger logger = Logger
+			.getLogger(BootstrapBuilder.class.getName());
+
 	/**
 	 * This is the created executable jar that will run for our server.
 	 */
 	private File jar;
 
+	/**
+	 * Manifest the jar was built for, when it changes we need another jar.
+	 */
+	private byte[] jarManifest;
+
+	/**
+	 * Bootstrap jars are named with this prefix and a hash of their contents.
+	 */
+	private static final String JAR_PREFIX = "forked-job-";
+
+	/**
+	 * Age in milliseconds at which a bootstrap jar is deleted. Jars are never
+	 * touched on reuse as that would invalidate their shared archives.
+	 */
+	private static final long STALE_JAR_AGE = TimeUnit.DAYS.toMillis(7);
+
+	/**
+	 * Directories that have already had their stale jars removed.
+	 */
+	private static final Set<File> cleanedDirectories = Collections
+			.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+
+	/**
+	 * Contents of the bootstrap classes, read on first use.
+	 */
+	private static Map<String, byte[]> bootstrapClassBytes;
+
+	private File jarDirectory;
+
+	private boolean classDataSharing = false;
+
+	private final List<String> trainingClasses = new ArrayList<String>();
+
+	/**
+	 * Archives we failed to train, we start forks without them rather than
+	 * training again for every fork.
+	 */
+	private static final Set<File> failedArchives = new HashSet<File>();
+
 	private int memLimit = 128;
 
 	private String java = "/usr/bin/java";
@@ -33,6 +93,50 @@ public class BootstrapBuilder {
 
 	private String extraClasspath = "";
 
+	/**
+	 * Seconds a fork gets to start and call back before we give up on it.
+	 */
+	public static final int DEFAULT_STARTUP_TIMEOUT = 60;
+
+	private int startupTimeout = DEFAULT_STARTUP_TIMEOUT;
+
+	/**
+	 * Seconds a job may run past its timeout, and between each step of
+	 * putting down a fork that will not stop, before we go further.
+	 */
+	public static final int DEFAULT_KILL_GRACE = 10;
+
+	private int killGrace = DEFAULT_KILL_GRACE;
+
+	/**
+	 * Seconds a closed fork gives its running jobs to finish.
+	 */
+	public static final int DEFAULT_DRAIN_TIMEOUT = ForkServer.DEFAULT_DRAIN_TIMEOUT;
+
+	private int drainTimeout = DEFAULT_DRAIN_TIMEOUT;
+
+	private int maxConcurrentJobs = 0;
+
+	private int jobClassLoaderCacheSize = 0;
+
+	/**
+	 * Bytes of output a fork keeps per job unless told otherwise.
+	 */
+	public static final int DEFAULT_JOB_OUTPUT_LIMIT = JobOutputCapture.DEFAULT_LIMIT;
+
+	private int jobOutputLimit = DEFAULT_JOB_OUTPUT_LIMIT;
+
+	private ForkTransport transport = new RmiTransport();
+
+	private CgroupLimits cgroupLimits;
+
+	private RecyclePolicy recyclePolicy;
+
+	private ClassProvider classProvider;
+
+	private File classCache = new File(System.getProperty("java.io.tmpdir"),
+			"forkingjava-classes");
+
 	/**
 	 * The java environment to use;
 	 */
@@ -41,8 +145,18 @@ public class BootstrapBuilder {
 	private static Class<?>[] bootstrapClasses = { IForkServer.class,
 			ForkServer.class, ForkException.class, IForkClient.class,
 			ForkTimeoutException.class, Constants.class, IForkService.class,
-			IForkedJob.class, ForkServer.PingThread.class,
-			ForkServer.ShutdownThread.class, RemoteOperation.class };
+			IForkCalls.class, IForkedJob.class, ForkServer.ParentWatcher.class,
+			ForkServer.ShutdownThread.class, RemoteOperation.class,
+			ForkServer.AsyncJob.class, DaemonThreadFactory.class,
+			BatchResult.class, StreamingOperation.class, ResultSink.class,
+			ForkServer.StreamSink.class, ForkStream.class, ForkTransport.class,
+			RmiTransport.class, UnixSocketTransport.class,
+			FramedConnection.class, ForkCodec.class, SerializationCodec.class,
+			BinaryCodec.class, CodecStats.class, SharedBuffer.class,
+			JobStats.class, JobResult.class, MeteredOperation.class,
+			RemoteClassLoader.class, IsolatedOperation.class,
+			ChildFirstClassLoader.class, CacheableOperation.class,
+			JobOutput.class, JobOutputCapture.class, JobOutputListener.class };
 
 	public BootstrapBuilder() {
 	}
@@ -52,6 +166,17 @@ public class BootstrapBuilder {
 	}
 
 	public List<String> build() throws BootstrapException {
+		return build(Collections.<String> emptyList());
+	}
+
+	/**
+	 * Builds the command with extra jvm options, these go in front of
+	 * <code>-jar</code>.
+	 * 
+	 * @param jvmArguments
+	 *            options such as the transport's address for the fork
+	 */
+	List<String> build(List<String> jvmArguments) throws BootstrapException {
 		try {
 			this.jar = createBootstrapJar();
 		} catch (IOException e) {
@@ -70,9 +195,41 @@ public class BootstrapBuilder {
 		command.add("-Djava.security.policy=/Users/chinshaw/devel/workspace/vf-trunk/taskengine/src/META-INF/taskenginesecurity.policy");
 		command.add("-Djava.rmi.server.codebase=file:/Users/chinshaw/devel/workspace/javajail/target/classes/");
 		command.add("-Xmx" + memLimit + "M");
+		if (maxConcurrentJobs > 0) {
+			command.add("-D" + Constants.MAX_CONCURRENT_JOBS_PROPERTY + "="
+					+ maxConcurrentJobs);
+		}
+		if (jobClassLoaderCacheSize > 0) {
+			command.add("-D" + Constants.JOB_CLASS_LOADERS_PROPERTY + "="
+					+ jobClassLoaderCacheSize);
+		}
+		if (jobOutputLimit != DEFAULT_JOB_OUTPUT_LIMIT) {
+			command.add("-D" + Constants.JOB_OUTPUT_LIMIT_PROPERTY + "="
+					+ jobOutputLimit);
+		}
+		if (cgroupLimits != null
+				&& cgroupLimits.getActiveProcessorCount() > 0) {
+			command.add("-XX:ActiveProcessorCount="
+					+ cgroupLimits.getActiveProcessorCount());
+		}
+		if (classProvider != null) {
+			command.add("-D" + Constants.CLASS_CACHE_PROPERTY + "="
+					+ classCache.getPath());
+		}
+		if (classDataSharing) {
+			File archive = getSharedArchive(jar);
+			if (archive != null) {
+				command.add("-XX:SharedArchiveFile=" + archive.getPath());
+			}
+		}
+		command.addAll(jvmArguments);
 		command.add("-jar");
 		command.add(jar.getPath());
-		command.addAll(Arrays.asList(extraArgs.split("\\s+")));
+		for (String arg : extraArgs.split("\\s+")) {
+			if (!arg.isEmpty()) {
+				command.add(arg);
+			}
+		}
 
 		return command;
 	}
@@ -97,88 +254,610 @@ public class BootstrapBuilder {
 		return this;
 	}
 
-	public BootstrapBuilder addClasspath(String classPath) {
-		extraClasspath += "jarClassPath" + " ";
+	/**
+	 * Sets how long a fork gets to start and call back to the client, a fork
+	 * that misses it is killed.
+	 * 
+	 * @param seconds
+	 *            startup deadline in seconds
+	 */
+	public BootstrapBuilder setStartupTimeout(int seconds) {
+		this.startupTimeout = seconds;
 		return this;
 	}
 
-	public BootstrapBuilder setEnvironment(Map<String, String> environment) {
-		this.environment = environment;
+	public int getStartupTimeout() {
+		return startupTimeout;
+	}
+
+	/**
+	 * Sets how long the client waits on a job that will not stop before it
+	 * goes further. A job still running this long past its timeout is
+	 * cancelled, if it is still running after another grace period the fork
+	 * is destroyed and after one more it is killed forcibly.
+	 * 
+	 * @param seconds
+	 *            grace period in seconds
+	 */
+	public BootstrapBuilder setKillGrace(int seconds) {
+		this.killGrace = seconds;
 		return this;
 	}
 
+	public int getKillGrace() {
+		return killGrace;
+	}
+
 	/**
-	 * Fills in the jar file used to bootstrap the forked server process. All
-	 * the required <code>.class</code> files and a manifest with a
-	 * <code>Main-Class</code> entry are written into the archive.
+	 * Sets how long a closed fork waits for the jobs it is running or has
+	 * queued before it exits anyway, reporting them as failed. A fork with
+	 * nothing to finish exits as soon as it has answered the close.
 	 * 
-	 * @param file
-	 *            file to hold the bootstrap archive
-	 * @throws IOException
-	 *             if the bootstrap archive could not be created
+	 * @param seconds
+	 *            drain timeout in seconds
 	 */
-	private synchronized void fillBootstrapJar(File file, Class<?>[] bootstrap)
-			throws IOException {
-		JarOutputStream jar = new JarOutputStream(new FileOutputStream(file));
-		try {
-			String manifest = "Main-Class: " + ForkServer.class.getName()
-					+ "\n";
+	public BootstrapBuilder setDrainTimeout(int seconds) {
+		this.drainTimeout = seconds;
+		return this;
+	}
 
-			jar.putNextEntry(new ZipEntry("META-INF/MANIFEST.MF"));
-			jar.write(manifest.getBytes("UTF-8"));
+	public int getDrainTimeout() {
+		return drainTimeout;
+	}
 
-			if (extraClasspath != null && !(extraClasspath.isEmpty())) {
-				List<String> chunkedPath = chunkedClasspath(extraClasspath, 60);
-				jar.write("Class-Path: ".getBytes("UTF-8"));
+	/**
+	 * Sets how many jobs submitted with
+	 * {@link IFork#executeAsync(RemoteOperation, int)} a fork runs at
+	 * once, by default a fork runs one per processor.
+	 */
+	public BootstrapBuilder setMaxConcurrentJobs(int maxConcurrentJobs) {
+		this.maxConcurrentJobs = maxConcurrentJobs;
+		return this;
+	}
 
-				for (Iterator<String> iter = chunkedPath.iterator(); iter
-						.hasNext();) {
-					String chunk = iter.next();
-					jar.write(" ".getBytes("UTF-8"));
-					jar.write(chunk.getBytes("UTF-8"));
-					jar.write("\n".getBytes("UTF-8"));
+	public int getMaxConcurrentJobs() {
+		return maxConcurrentJobs;
+	}
 
-				}
-				// jar.write("\n".getBytes("UTF-8"));
+	/**
+	 * Sets how many class loaders of {@link IsolatedOperation} classpaths a
+	 * fork keeps for reuse, 8 by default. Jobs whose classpath fell out of the
+	 * cache have their classes loaded again.
+	 */
+	public BootstrapBuilder setJobClassLoaderCacheSize(int loaders) {
+		this.jobClassLoaderCacheSize = loaders;
+		return this;
+	}
+
+	public int getJobClassLoaderCacheSize() {
+		return jobClassLoaderCacheSize > 0 ? jobClassLoaderCacheSize
+				: ChildFirstClassLoader.DEFAULT_CACHE_SIZE;
+	}
+
+	/**
+	 * Sets how many bytes of stdout and stderr together a fork keeps for each
+	 * job, 1MB by default. Output past the limit is dropped and counted in
+	 * the job's {@link JobOutput}, or in a line on the fork's stderr for jobs
+	 * whose output nobody asked for.
+	 * 
+	 * @param bytes
+	 *            0 to turn capturing off, jobs then write straight to the
+	 *            fork's streams as they always did
+	 */
+	public BootstrapBuilder setJobOutputLimit(int bytes) {
+		if (bytes < 0) {
+			throw new IllegalArgumentException("Negative output limit "
+					+ bytes);
+		}
+		this.jobOutputLimit = bytes;
+		return this;
+	}
+
+	public int getJobOutputLimit() {
+		return jobOutputLimit;
+	}
+
+	/**
+	 * @return how many jobs a fork started from here runs at once, worked out
+	 *         the way the fork does
+	 */
+	int getJobSlots() {
+		if (maxConcurrentJobs > 0) {
+			return maxConcurrentJobs;
+		}
+		if (cgroupLimits != null
+				&& cgroupLimits.getActiveProcessorCount() > 0) {
+			return cgroupLimits.getActiveProcessorCount();
+		}
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Puts every fork in a cgroup of its own with these limits, Linux with
+	 * cgroup v2 only. Forks fail to start if the cgroup cannot be set up.
+	 * 
+	 * @param limits
+	 *            cpu, memory and core limits, null to start forks without a
+	 *            cgroup
+	 */
+	public BootstrapBuilder setCgroupLimits(CgroupLimits limits) {
+		this.cgroupLimits = limits;
+		return this;
+	}
+
+	public CgroupLimits getCgroupLimits() {
+		return cgroupLimits;
+	}
+
+	/**
+	 * Has forks started from here by a pool or a dispatcher replaced once
+	 * the policy says they have been used enough, forks handed out by
+	 * {@link ForkManager#getFork(BootstrapBuilder, Map)} are left alone.
+	 */
+	public BootstrapBuilder setRecyclePolicy(RecyclePolicy policy) {
+		this.recyclePolicy = policy;
+		return this;
+	}
+
+	public RecyclePolicy getRecyclePolicy() {
+		return recyclePolicy;
+	}
+
+	/**
+	 * Lets forks fetch the classes they cannot find on their classpath from
+	 * a class loader in this jvm, so jobs do not need every jar they touch on
+	 * the fork's classpath. Only class files are handed out, other resources
+	 * must still be on the fork's classpath. Classes fetched are cached on
+	 * disk by hash and shared between forks.
+	 * 
+	 * @param loader
+	 *            where forks get classes from, normally the loader of the
+	 *            application's job classes, null to stop forks fetching
+	 *            classes
+	 * @see #setClassCacheDirectory(File)
+	 */
+	public BootstrapBuilder setClassProvisioning(ClassLoader loader) {
+		this.classProvider = loader == null ? null : new ClassProvider(loader);
+		return this;
+	}
+
+	ClassProvider getClassProvider() {
+		return classProvider;
+	}
+
+	/**
+	 * Sets where forks cache classes fetched from their client, a directory
+	 * under the temp directory by default. Forks must be able to write it.
+	 */
+	public BootstrapBuilder setClassCacheDirectory(File directory) {
+		this.classCache = directory;
+		return this;
+	}
+
+	public File getClassCacheDirectory() {
+		return classCache;
+	}
+
+	public BootstrapBuilder addClasspath(String classPath) {
+		extraClasspath += "jarClassPath" + " ";
+		return this;
+	}
+
+	/**
+	 * Sets the transport the client and fork talk over, rmi by default.
+	 */
+	public BootstrapBuilder setTransport(ForkTransport transport) {
+		this.transport = transport;
+		return this;
+	}
+
+	public ForkTransport getTransport() {
+		return transport;
+	}
+
+	public BootstrapBuilder setEnvironment(Map<String, String> environment) {
+		this.environment = environment;
+		return this;
+	}
+
+	/**
+	 * Builds the manifest for the bootstrap jar, a <code>Main-Class</code>
+	 * entry and the extra classpath as a <code>Class-Path</code> entry.
+	 */
+	private byte[] createManifest() throws IOException {
+		ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+		manifest.write(("Main-Class: " + ForkServer.class.getName() + "\n")
+				.getBytes("UTF-8"));
+
+		if (extraClasspath != null && !(extraClasspath.isEmpty())) {
+			List<String> chunkedPath = chunkedClasspath(extraClasspath, 60);
+			manifest.write("Class-Path: ".getBytes("UTF-8"));
+
+			for (Iterator<String> iter = chunkedPath.iterator(); iter.hasNext();) {
+				String chunk = iter.next();
+				manifest.write(" ".getBytes("UTF-8"));
+				manifest.write(chunk.getBytes("UTF-8"));
+				manifest.write("\n".getBytes("UTF-8"));
 			}
+		}
+		return manifest.toByteArray();
+	}
 
+	/**
+	 * Reads the <code>.class</code> files of the bootstrap classes, they can
+	 * not change while we are running so this is only done once.
+	 * 
+	 * @return class bytes keyed by their path in the jar
+	 */
+	private static synchronized Map<String, byte[]> getBootstrapClassBytes()
+			throws IOException {
+		if (bootstrapClassBytes == null) {
+			Map<String, byte[]> classes = new LinkedHashMap<String, byte[]>();
 			ClassLoader loader = ForkServer.class.getClassLoader();
-			for (Class<?> klass : bootstrap) {
+			for (Class<?> klass : withNestedClasses(bootstrapClasses)) {
 				String path = klass.getName().replace('.', '/') + ".class";
 				InputStream input = loader.getResourceAsStream(path);
 				try {
-					// logger.info("Appending class file to jar " + )
-					jar.putNextEntry(new JarEntry(path));
-					IOUtils.copy(input, jar);
+					classes.put(path, IOUtils.toByteArray(input));
 				} finally {
 					input.close();
 				}
 			}
+			bootstrapClassBytes = classes;
+		}
+		return bootstrapClassBytes;
+	}
+
+	/**
+	 * Adds the member classes of the given classes, at any depth, so nested
+	 * classes do not each have to be listed.
+	 */
+	private static Set<Class<?>> withNestedClasses(Class<?>[] classes) {
+		Set<Class<?>> all = new LinkedHashSet<Class<?>>();
+		ArrayDeque<Class<?>> todo = new ArrayDeque<Class<?>>(
+				Arrays.asList(classes));
+		while (!todo.isEmpty()) {
+			Class<?> klass = todo.poll();
+			if (all.add(klass)) {
+				todo.addAll(Arrays.asList(klass.getDeclaredClasses()));
+			}
+		}
+		return all;
+	}
+
+	/**
+	 * Fills in the jar file used to bootstrap the forked server process. All
+	 * the required <code>.class</code> files and the manifest are written into
+	 * the archive.
+	 * 
+	 * @param file
+	 *            file to hold the bootstrap archive
+	 * @throws IOException
+	 *             if the bootstrap archive could not be created
+	 */
+	private static void fillBootstrapJar(File file, byte[] manifest,
+			Map<String, byte[]> classes) throws IOException {
+		JarOutputStream jar = new JarOutputStream(new FileOutputStream(file));
+		try {
+			jar.putNextEntry(new ZipEntry("META-INF/MANIFEST.MF"));
+			jar.write(manifest);
+
+			for (Map.Entry<String, byte[]> klass : classes.entrySet()) {
+				jar.putNextEntry(new JarEntry(klass.getKey()));
+				jar.write(klass.getValue());
+			}
 		} finally {
 			jar.close();
 		}
 	}
 
 	/**
-	 * Creates a temporary jar file that can be used to bootstrap the forked
-	 * server process. Remember to remove the file when no longer used.
+	 * Finds or creates the jar file used to bootstrap the forked server
+	 * process. The jar is named after a hash of the manifest and class files
+	 * that go into it, so every fork with the same classpath shares one jar,
+	 * including forks started by earlier runs of the parent.
 	 * 
-	 * @return the created jar file
+	 * @return the bootstrap jar file
 	 * @throws IOException
 	 *             if the bootstrap archive could not be created
 	 */
 	private synchronized File createBootstrapJar() throws IOException {
-		File file = File.createTempFile("forked-job-", ".jar");
-		boolean ok = false;
+		byte[] manifest = createManifest();
+		if (jar != null && Arrays.equals(manifest, jarManifest)
+				&& jar.isFile()) {
+			markUsed(jar);
+			return jar;
+		}
+
+		Map<String, byte[]> classes = getBootstrapClassBytes();
+		File directory = getJarDirectory();
+		removeStaleJars(directory);
+
+		File file = new File(directory, JAR_PREFIX
+				+ digest(manifest, classes) + ".jar");
+		if (file.isFile()) {
+			markUsed(file);
+		} else {
+			// Written to the side and moved into place so a fork started by
+			// another parent never sees a half written jar.
+			File temp = File.createTempFile(JAR_PREFIX, ".tmp", directory);
+			try {
+				fillBootstrapJar(temp, manifest, classes);
+				Files.move(temp.toPath(), file.toPath(),
+						StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				temp.delete();
+			}
+		}
+
+		jarManifest = manifest;
+		return file;
+	}
+
+	/**
+	 * Keeps a jar from looking stale to the next cleanup. The jar itself is
+	 * never touched, the jvm refuses a shared archive once the modification
+	 * time of a jar on its classpath changed, so a marker next to it is.
+	 */
+	private static void markUsed(File jar) {
+		File marker = usedMarker(jar);
+		try {
+			if (!marker.createNewFile()) {
+				marker.setLastModified(System.currentTimeMillis());
+			}
+		} catch (IOException e) {
+			logger.fine("Unable to mark " + jar + " as used " + e);
+		}
+	}
+
+	private static File usedMarker(File jar) {
+		return new File(jar.getPath() + ".used");
+	}
+
+	private static String digest(byte[] manifest, Map<String, byte[]> classes)
+			throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("Unable to hash bootstrap jar", e);
+		}
+		digest.update(manifest);
+		for (Map.Entry<String, byte[]> klass : classes.entrySet()) {
+			digest.update(klass.getKey().getBytes("UTF-8"));
+			digest.update(klass.getValue());
+		}
+		return toHex(digest.digest());
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder();
+		for (byte b : bytes) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * Finds the class data sharing archive for a bootstrap jar, running a
+	 * training fork to dump one if it does not exist yet. The jvm refuses an
+	 * archive once any jar on the classpath has been modified, so the archive
+	 * is named after the size and modification time of the bootstrap jar and
+	 * every other classpath entry, as well as the java executable and training
+	 * classes. A bootstrap jar written again under the same name gets a new
+	 * archive.
+	 * 
+	 * @param jar
+	 *            bootstrap jar the forks are started from
+	 * @return the archive or null if one could not be created, in which case
+	 *         forks start without it
+	 */
+	private File getSharedArchive(File jar) {
+		File archive;
 		try {
-			fillBootstrapJar(file, bootstrapClasses);
-			ok = true;
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(java.getBytes("UTF-8"));
+			for (String className : trainingClasses) {
+				digest.update(className.getBytes("UTF-8"));
+			}
+			digest.update((jar.getName() + ":" + jar.length() + ":"
+					+ jar.lastModified() + "\n").getBytes("UTF-8"));
+			List<File> classPath = new ArrayList<File>();
+			for (String path : extraClasspath.split("\\s+")) {
+				if (!path.isEmpty()) {
+					File entry = new File(path);
+					classPath.add(entry.isAbsolute() ? entry : new File(
+							jar.getParentFile(), path));
+				}
+			}
+			for (File entry : classPath) {
+				digest.update((entry.getPath() + ":" + entry.length() + ":"
+						+ entry.lastModified() + "\n").getBytes("UTF-8"));
+			}
+			String name = jar.getName().substring(0,
+					jar.getName().length() - ".jar".length());
+			archive = new File(jar.getParentFile(), name + "-"
+					+ toHex(digest.digest()).substring(0, 16) + ".jsa");
+		} catch (Exception e) {
+			logger.log(Level.WARNING, "Unable to name shared archive", e);
+			return null;
+		}
+
+		synchronized (failedArchives) {
+			if (archive.isFile()) {
+				archive.setLastModified(System.currentTimeMillis());
+				return archive;
+			}
+			if (failedArchives.contains(archive)) {
+				return null;
+			}
+			if (trainSharedArchive(jar, archive)) {
+				return archive;
+			}
+			failedArchives.add(archive);
+			return null;
+		}
+	}
+
+	/**
+	 * Runs a fork in training mode with <code>-XX:ArchiveClassesAtExit</code>
+	 * so the classes it loads are dumped to an archive when it exits. The
+	 * training fork never calls back to the client, it loads what a real
+	 * server would and exits.
+	 * 
+	 * @return true if the archive was written
+	 */
+	private boolean trainSharedArchive(File jar, File archive) {
+		long begin = System.nanoTime();
+		File temp = null;
+		File log = null;
+		try {
+			temp = File.createTempFile(JAR_PREFIX, ".jsa.tmp",
+					jar.getParentFile());
+			// The jvm refuses to dump over an existing file.
+			temp.delete();
+
+			List<String> command = new ArrayList<String>();
+			command.addAll(Arrays.asList(java.split("\\s+")));
+			command.add("-XX:ArchiveClassesAtExit=" + temp.getPath());
+			command.add("-Xmx" + memLimit + "M");
+			command.add("-jar");
+			command.add(jar.getPath());
+			command.add(Constants.CDS_TRAINING_ARGUMENT);
+			command.addAll(trainingClasses);
+
+			ProcessBuilder builder = new ProcessBuilder(command);
+			if (environment != null) {
+				builder.environment().putAll(environment);
+			}
+			// Output goes to a file, reading a pipe here would block past the
+			// timeout if the training fork hangs.
+			log = File.createTempFile(JAR_PREFIX, ".log", jar.getParentFile());
+			builder.redirectErrorStream(true);
+			builder.redirectOutput(log);
+			logger.info("Training shared archive with command -> " + command);
+			Process process = builder.start();
+
+			if (!process.waitFor(startupTimeout, TimeUnit.SECONDS)) {
+				process.destroyForcibly();
+				logger.warning("Shared archive training fork did not finish in "
+						+ startupTimeout + " seconds");
+				return false;
+			}
+			if (process.exitValue() != 0 || !temp.isFile()) {
+				logger.warning("Shared archive training fork exited with "
+						+ process.exitValue() + " and no archive: "
+						+ new String(Files.readAllBytes(log.toPath()),
+								Charset.defaultCharset()));
+				return false;
+			}
+
+			Files.move(temp.toPath(), archive.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			logger.info("Created shared archive " + archive + " in "
+					+ TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin)
+					+ "ms");
+			return true;
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Unable to train shared archive", e);
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
 		} finally {
-			if (!ok) {
+			if (temp != null) {
+				temp.delete();
+			}
+			if (log != null) {
+				log.delete();
+			}
+		}
+	}
+
+	/**
+	 * Deletes bootstrap jars that nobody has used for {@link #STALE_JAR_AGE}
+	 * milliseconds, going by their used markers, along with shared archives
+	 * nobody started a fork with for as long. Anything left over from a jar or
+	 * archive that was never finished goes too. Only done once per directory
+	 * for the life of this jvm.
+	 */
+	private static void removeStaleJars(File directory) {
+		if (!cleanedDirectories.add(directory)) {
+			return;
+		}
+		File[] jars = directory.listFiles();
+		if (jars == null) {
+			return;
+		}
+		long cutoff = System.currentTimeMillis() - STALE_JAR_AGE;
+		for (File file : jars) {
+			String name = file.getName();
+			if (!name.startsWith(JAR_PREFIX)) {
+				continue;
+			}
+			boolean jar = name.endsWith(".jar");
+			if (name.endsWith(".jar.used")
+					&& new File(directory, name.substring(0, name.length()
+							- ".used".length())).isFile()) {
+				// Goes with its jar.
+				continue;
+			}
+			long used = file.lastModified();
+			if (jar) {
+				used = Math.max(used, usedMarker(file).lastModified());
+			}
+			if (used < cutoff) {
 				file.delete();
+				if (jar) {
+					usedMarker(file).delete();
+				}
 			}
 		}
-		return file;
+	}
+
+	/**
+	 * Starts forks with an AppCDS archive of the classes a server loads, so
+	 * the classes are mapped in rather than loaded and verified on every
+	 * startup. The first fork for a classpath runs a training fork to dump the
+	 * archive, later forks and later runs of the parent reuse it until the
+	 * classpath changes.
+	 * 
+	 * @param enabled
+	 *            true to start forks with a shared archive
+	 */
+	public BootstrapBuilder setClassDataSharing(boolean enabled) {
+		this.classDataSharing = enabled;
+		return this;
+	}
+
+	/**
+	 * Adds a class, normally one of your job classes, for the training fork
+	 * to load so it ends up in the shared archive.
+	 * 
+	 * @param className
+	 *            binary name of the class
+	 */
+	public BootstrapBuilder addTrainingClass(String className) {
+		trainingClasses.add(className);
+		return this;
+	}
+
+	/**
+	 * Sets the directory bootstrap jars are cached in, defaults to
+	 * <code>java.io.tmpdir</code>.
+	 */
+	public BootstrapBuilder setJarDirectory(File jarDirectory) {
+		this.jarDirectory = jarDirectory;
+		return this;
+	}
+
+	public File getJarDirectory() {
+		if (jarDirectory == null) {
+			return new File(System.getProperty("java.io.tmpdir"));
+		}
+		return jarDirectory;
 	}
 
 	public BootstrapBuilder setExtraClassPath(List<String> extraClasspath) {
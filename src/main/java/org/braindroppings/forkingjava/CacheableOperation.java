@@ -0,0 +1,17 @@
+package org.braindroppings.forkingjava;
+
+/**
+ * An operation whose result depends on nothing but its own serialized state,
+ * so running it again with the same state gives the same result. When its
+ * manager has a {@link ResultCache} an identical operation is answered from
+ * the cache, or joins the one already running, instead of going to a fork.
+ *
+ * Operations that serialize the same state in different orders, a HashSet
+ * filled in a different order for instance, are still run again.
+ *
+ * @see ForkManager#setResultCache(ResultCache)
+ * @author chinshaw
+ */
+public interface CacheableOperation<T> extends RemoteOperation<T> {
+
+}
@@ -0,0 +1,322 @@
+package org.braindroppings.forkingjava;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Cpu, memory and core limits for forks, enforced by putting each fork in a
+ * cgroup v2 of its own on Linux. The fork's cgroup is created under the
+ * parent cgroup set with {@link #setParent(File)}, which must be writable by
+ * this user and, unless it is the root, hold no processes itself, for example
+ * an empty cgroup delegated by systemd with <code>Delegate=yes</code>. There
+ * is no default, the cgroup this jvm runs in holds the jvm so the kernel will
+ * not switch controllers on for its children. The controllers the limits
+ * need are switched on in the parent if they are not already. The fork's jvm
+ * is told how many processors its slice has so its JIT and GC threads fit,
+ * and the cgroup is removed once the fork exits.
+ *
+ * @see BootstrapBuilder#setCgroupLimits(CgroupLimits)
+ * @author chinshaw
+ */
+public class CgroupLimits {
+
+	/**
+	 * Logger instance for this class alone
+	 */
+	private static final Logger logger = Logger.getLogger(CgroupLimits.class
+			.getName());
+
+	/**
+	 * Period cpu quotas are written with, the kernel default.
+	 */
+	private static final long CPU_PERIOD = 100000;
+
+	private static final String PREFIX = "forkingjava-";
+
+	/**
+	 * The cgroup of one fork.
+	 */
+	static class Cgroup {
+
+		private final File directory;
+
+		Cgroup(File directory) {
+			this.directory = directory;
+		}
+
+		/**
+		 * Starts the command through a shell that moves itself into the
+		 * cgroup before it execs the command, so the fork never runs outside
+		 * it and keeps the shell's pid.
+		 */
+		List<String> wrap(List<String> command) {
+			List<String> wrapped = new ArrayList<String>();
+			wrapped.add("/bin/sh");
+			wrapped.add("-c");
+			wrapped.add("echo $$ > \"$0\" && exec \"$@\"");
+			wrapped.add(new File(directory, "cgroup.procs").getPath());
+			wrapped.addAll(command);
+			return wrapped;
+		}
+
+		/**
+		 * Removes the cgroup, only works once the fork has exited.
+		 */
+		void remove() {
+			if (!directory.delete() && directory.exists()) {
+				logger.warning("Unable to remove cgroup " + directory);
+			}
+		}
+
+		File getDirectory() {
+			return directory;
+		}
+	}
+
+	private double cpuQuota = 0;
+
+	private long memoryLimit = 0;
+
+	private String cpuSet;
+
+	private File parent;
+
+	/**
+	 * Limits the fork to a share of cpu time, through <code>cpu.max</code>.
+	 *
+	 * @param cpus
+	 *            processors worth of time, 0.5 is half of one
+	 */
+	public CgroupLimits setCpuQuota(double cpus) {
+		if (cpus < 0) {
+			throw new IllegalArgumentException("Negative cpu quota " + cpus);
+		}
+		this.cpuQuota = cpus;
+		return this;
+	}
+
+	public double getCpuQuota() {
+		return cpuQuota;
+	}
+
+	/**
+	 * Limits all memory of the fork, heap, metaspace, thread stacks and
+	 * direct buffers alike, through <code>memory.max</code>. A fork that goes
+	 * over is killed by the kernel.
+	 *
+	 * @param bytes
+	 *            limit in bytes
+	 */
+	public CgroupLimits setMemoryLimit(long bytes) {
+		if (bytes < 0) {
+			throw new IllegalArgumentException("Negative memory limit "
+					+ bytes);
+		}
+		this.memoryLimit = bytes;
+		return this;
+	}
+
+	public long getMemoryLimit() {
+		return memoryLimit;
+	}
+
+	/**
+	 * Pins the fork to some cores, through <code>cpuset.cpus</code>.
+	 *
+	 * @param cpus
+	 *            cores in the kernel's list format, like <code>0-3,6</code>
+	 */
+	public CgroupLimits setCpuSet(String cpus) {
+		if (cpus != null) {
+			parseCpuList(cpus);
+		}
+		this.cpuSet = cpus;
+		return this;
+	}
+
+	public String getCpuSet() {
+		return cpuSet;
+	}
+
+	/**
+	 * Sets the cgroup forks' cgroups are created under, forks fail to start
+	 * until one is set.
+	 *
+	 * @param parent
+	 *            a cgroup directory under the cgroup2 mount that holds no
+	 *            processes
+	 */
+	public CgroupLimits setParent(File parent) {
+		this.parent = parent;
+		return this;
+	}
+
+	public File getParent() {
+		return parent;
+	}
+
+	/**
+	 * @return processors the fork gets to use, 0 if the limits leave it all
+	 *         of them
+	 */
+	int getActiveProcessorCount() {
+		int count = 0;
+		if (cpuQuota > 0) {
+			count = Math.max(1, (int) Math.ceil(cpuQuota));
+		}
+		if (cpuSet != null) {
+			int pinned = parseCpuList(cpuSet);
+			count = count == 0 ? pinned : Math.min(count, pinned);
+		}
+		return count;
+	}
+
+	/**
+	 * @return how many cores a cpu list names
+	 */
+	private static int parseCpuList(String cpus) {
+		int count = 0;
+		try {
+			for (String range : cpus.trim().split(",")) {
+				int dash = range.indexOf('-');
+				if (dash < 0) {
+					Integer.parseInt(range.trim());
+					count++;
+				} else {
+					int first = Integer.parseInt(range.substring(0, dash).trim());
+					int last = Integer.parseInt(range.substring(dash + 1).trim());
+					if (last < first) {
+						throw new NumberFormatException(range);
+					}
+					count += last - first + 1;
+				}
+			}
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid cpu list " + cpus, e);
+		}
+		return count;
+	}
+
+	/**
+	 * Creates the cgroup for a fork with the limits applied.
+	 *
+	 * @param name
+	 *            unique name for the fork
+	 * @throws BootstrapException
+	 *             if this is not Linux with cgroup v2, no parent was set or
+	 *             the cgroup could not be set up
+	 */
+	Cgroup create(String name) throws BootstrapException {
+		if (!System.getProperty("os.name").toLowerCase().contains("linux")) {
+			throw new BootstrapException("Cgroup limits need Linux");
+		}
+		if (parent == null) {
+			throw new BootstrapException(
+					"Cgroup limits need a parent cgroup that holds no processes, "
+							+ "set one with CgroupLimits.setParent");
+		}
+		File root = parent;
+
+		List<String> controllers = new ArrayList<String>();
+		if (cpuQuota > 0) {
+			controllers.add("cpu");
+		}
+		if (memoryLimit > 0) {
+			controllers.add("memory");
+		}
+		if (cpuSet != null) {
+			controllers.add("cpuset");
+		}
+		enableControllers(root, controllers);
+
+		File directory = new File(root, PREFIX + name);
+		if (!directory.mkdir()) {
+			throw new BootstrapException("Unable to create cgroup "
+					+ directory);
+		}
+		Cgroup cgroup = new Cgroup(directory);
+		try {
+			if (cpuQuota > 0) {
+				write(directory, "cpu.max", Math.round(cpuQuota * CPU_PERIOD)
+						+ " " + CPU_PERIOD);
+			}
+			if (memoryLimit > 0) {
+				write(directory, "memory.max", Long.toString(memoryLimit));
+			}
+			if (cpuSet != null) {
+				write(directory, "cpuset.cpus", cpuSet);
+			}
+		} catch (BootstrapException e) {
+			cgroup.remove();
+			throw e;
+		}
+		return cgroup;
+	}
+
+	/**
+	 * Switches on the controllers we need for the parent's children.
+	 */
+	private static void enableControllers(File root, List<String> needed)
+			throws BootstrapException {
+		String enabled = read(root, "cgroup.subtree_control");
+		String available = read(root, "cgroup.controllers");
+		for (String controller : needed) {
+			if (contains(enabled, controller)) {
+				continue;
+			}
+			if (!contains(available, controller)) {
+				throw new BootstrapException("Cgroup controller " + controller
+						+ " is not available in " + root);
+			}
+			// Only the root has no type and may hold processes as well.
+			if (new File(root, "cgroup.type").exists()
+					&& !read(root, "cgroup.procs").trim().isEmpty()) {
+				throw new BootstrapException("Cgroup " + root
+						+ " holds processes, so controllers cannot be "
+						+ "switched on for forks under it");
+			}
+			write(root, "cgroup.subtree_control", "+" + controller);
+		}
+	}
+
+	private static boolean contains(String list, String word) {
+		for (String item : list.trim().split("\\s+")) {
+			if (item.equals(word)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static String read(File directory, String file)
+			throws BootstrapException {
+		try {
+			return new String(Files.readAllBytes(new File(directory, file)
+					.toPath()), StandardCharsets.US_ASCII);
+		} catch (IOException e) {
+			throw new BootstrapException("Unable to read " + file + " of cgroup "
+					+ directory, e);
+		}
+	}
+
+	private static void write(File directory, String file, String value)
+			throws BootstrapException {
+		try {
+			Files.write(new File(directory, file).toPath(),
+					value.getBytes(StandardCharsets.US_ASCII));
+		} catch (IOException e) {
+			throw new BootstrapException("Unable to write " + value + " to "
+					+ file + " of cgroup " + directory, e);
+		}
+	}
+
+	public String toString() {
+		return "CgroupLimits[cpus=" + cpuQuota + ", memory=" + memoryLimit
+				+ ", cpuset=" + cpuSet + "]";
+	}
+}
@@ -0,0 +1,201 @@
+package org.braindroppings.forkingjava;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Loads an isolated job's classes from the job's own classpath before the
+ * fork's, so jobs with different versions of a library can share a fork. Jdk
+ * classes and this library's classes always come from the fork, a job's copy
+ * of them would not match the ones the fork runs it with.
+ *
+ * Loaders are kept in a least recently used cache keyed by a hash of the
+ * classpath, each entry's path, size and modification time, so jobs with the
+ * same classpath reuse the classes already loaded and compiled and a changed
+ * jar gets a new loader. A loader pushed out of the cache is closed once the
+ * last job using it is done, after which it and its classes can be
+ * collected.
+ *
+ * @see IsolatedOperation
+ * @author chinshaw
+ */
+class ChildFirstClassLoader extends URLClassLoader {
+
+	static {
+		registerAsParallelCapable();
+	}
+
+	/**
+	 * Logger instance for this class alone
+	 */
+	private static final Logger logger = Logger
+			.getLogger(ChildFirstClassLoader.class.getName());
+
+	/**
+	 * Loaders kept when {@link Constants#JOB_CLASS_LOADERS_PROPERTY} is not
+	 * set.
+	 */
+	static final int DEFAULT_CACHE_SIZE = 8;
+
+	private static final String SHARED_PACKAGE = ChildFirstClassLoader.class
+			.getPackage().getName() + ".";
+
+	private static final int cacheSize = Integer.getInteger(
+			Constants.JOB_CLASS_LOADERS_PROPERTY, DEFAULT_CACHE_SIZE);
+
+	/**
+	 * Cached loaders by classpath hash, least recently used first, guarded by
+	 * itself along with every loader's users and evicted flag.
+	 */
+	private static final Map<String, ChildFirstClassLoader> cache = new LinkedHashMap<String, ChildFirstClassLoader>(
+			16, 0.75f, true);
+
+	private final String key;
+
+	/**
+	 * Jobs running with this loader.
+	 */
+	private int users = 0;
+
+	private boolean evicted = false;
+
+	private ChildFirstClassLoader(String key, URL[] urls, ClassLoader parent) {
+		super(urls, parent);
+		this.key = key;
+	}
+
+	/**
+	 * Hands out the cached loader for a classpath, creating it if needed. The
+	 * caller must {@link #release()} it when the job is done.
+	 *
+	 * @param classPath
+	 *            jars and class directories as the fork sees them
+	 */
+	static ChildFirstClassLoader acquire(String[] classPath) throws IOException {
+		String key = hash(classPath);
+		ChildFirstClassLoader loader;
+		synchronized (cache) {
+			loader = cache.get(key);
+			if (loader == null) {
+				URL[] urls = new URL[classPath.length];
+				for (int i = 0; i < classPath.length; i++) {
+					urls[i] = new File(classPath[i]).toURI().toURL();
+				}
+				loader = new ChildFirstClassLoader(key, urls,
+						ChildFirstClassLoader.class.getClassLoader());
+				cache.put(key, loader);
+				logger.fine("Created job class loader " + key);
+				evict();
+			}
+			loader.users++;
+		}
+		return loader;
+	}
+
+	/**
+	 * Gives back a loader from {@link #acquire(String[])}.
+	 */
+	void release() {
+		synchronized (cache) {
+			if (--users > 0 || !evicted) {
+				return;
+			}
+		}
+		close(this);
+	}
+
+	/**
+	 * Pushes the least recently used loaders out of the cache, closing those
+	 * no job is using.
+	 */
+	private static void evict() {
+		Iterator<ChildFirstClassLoader> loaders = cache.values().iterator();
+		while (cache.size() > Math.max(cacheSize, 1) && loaders.hasNext()) {
+			ChildFirstClassLoader loader = loaders.next();
+			loaders.remove();
+			loader.evicted = true;
+			if (loader.users == 0) {
+				close(loader);
+			}
+		}
+	}
+
+	private static void close(ChildFirstClassLoader loader) {
+		logger.fine("Closing job class loader " + loader.key);
+		try {
+			loader.close();
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Unable to close job class loader "
+					+ loader.key, e);
+		}
+	}
+
+	private static String hash(String[] classPath) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("Unable to hash class path", e);
+		}
+		for (String path : classPath) {
+			File entry = new File(path);
+			digest.update((entry.getAbsolutePath() + ":" + entry.length() + ":"
+					+ entry.lastModified() + "\n").getBytes("UTF-8"));
+		}
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest.digest()) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+
+	protected Class<?> loadClass(String name, boolean resolve)
+			throws ClassNotFoundException {
+		synchronized (getClassLoadingLock(name)) {
+			Class<?> klass = findLoadedClass(name);
+			if (klass == null) {
+				klass = loadShared(name);
+			}
+			if (klass == null) {
+				try {
+					klass = findClass(name);
+				} catch (ClassNotFoundException e) {
+					klass = getParent().loadClass(name);
+				}
+			}
+			if (resolve) {
+				resolveClass(klass);
+			}
+			return klass;
+		}
+	}
+
+	/**
+	 * @return the jdk's or the fork's own copy of a class, null if the job's
+	 *         classpath should be searched first
+	 */
+	private Class<?> loadShared(String name) throws ClassNotFoundException {
+		if (name.startsWith(SHARED_PACKAGE)) {
+			return getParent().loadClass(name);
+		}
+		try {
+			return getPlatformClassLoader().loadClass(name);
+		} catch (ClassNotFoundException e) {
+			return null;
+		}
+	}
+
+	public URL getResource(String name) {
+		URL resource = findResource(name);
+		return resource != null ? resource : super.getResource(name);
+	}
+}
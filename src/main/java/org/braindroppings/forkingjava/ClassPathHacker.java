@@ -7,6 +7,16 @@ import java.net.URI;
 import java.net.URL;
 import java.net.URLClassLoader;
 
+/**
+ * Adds entries to the system class loader's classpath. Only works where the
+ * system class loader is a {@link URLClassLoader}, which it is not since java
+ * 9, and whatever is added stays for the life of the jvm.
+ * 
+ * @deprecated run jobs that need more classes as an
+ *             {@link IsolatedOperation}
+ * @author chinshaw
+ */
+@Deprecated
 public class ClassPathHacker {
 
 	private static final Class<?>[] parameters = new Class[] { URL.class };
@@ -22,6 +32,10 @@ public class ClassPathHacker {
 
 	public static void addURL(URI u) throws IOException {
 
+		if (!(ClassLoader.getSystemClassLoader() instanceof URLClassLoader)) {
+			throw new IOException("Unable to add " + u
+					+ ", the system class loader is not a URLClassLoader");
+		}
 		URLClassLoader sysloader = (URLClassLoader) ClassLoader
 				.getSystemClassLoader();
 		Class<?> sysclass = URLClassLoader.class;
@@ -0,0 +1,79 @@
+package org.braindroppings.forkingjava;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Hands the bytecode of classes in this jvm to forks that cannot find them
+ * on their own classpath. Only <code>.class</code> files are served, other
+ * resources the loader can see stay in this jvm. A class's hash is kept once
+ * worked out so a fork that already has the class cached only costs a lookup.
+ *
+ * @see BootstrapBuilder#setClassProvisioning(ClassLoader)
+ * @see RemoteClassLoader
+ * @author chinshaw
+ */
+class ClassProvider {
+
+	private final ClassLoader loader;
+
+	/**
+	 * SHA-256 of each class served so far, by class name.
+	 */
+	private final Map<String, byte[]> digests = new ConcurrentHashMap<String, byte[]>();
+
+	ClassProvider(ClassLoader loader) {
+		this.loader = loader;
+	}
+
+	ClassLoader getClassLoader() {
+		return loader;
+	}
+
+	/**
+	 * @return SHA-256 of the class's bytecode, null if the loader has no such
+	 *         class
+	 */
+	byte[] getDigest(String className) throws IOException {
+		byte[] digest = digests.get(className);
+		if (digest == null) {
+			byte[] bytes = getBytes(className);
+			if (bytes == null) {
+				return null;
+			}
+			digest = digest(bytes);
+			digests.put(className, digest);
+		}
+		return digest;
+	}
+
+	/**
+	 * @return the class's bytecode, null if the loader has no such class
+	 */
+	byte[] getBytes(String className) throws IOException {
+		InputStream input = loader.getResourceAsStream(className.replace('.',
+				'/') + ".class");
+		if (input == null) {
+			return null;
+		}
+		try {
+			return IOUtils.toByteArray(input);
+		} finally {
+			input.close();
+		}
+	}
+
+	private static byte[] digest(byte[] bytes) throws IOException {
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(bytes);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("Unable to hash class", e);
+		}
+	}
+}
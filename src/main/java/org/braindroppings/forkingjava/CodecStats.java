@@ -0,0 +1,124 @@
+package org.braindroppings.forkingjava;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What calls cost on the wire, per remote method. A call and its reply are
+ * counted under the method on both ends, the side that makes the call writes
+ * the arguments and reads the result, the other side the reverse. For jobs
+ * look at <code>submit</code> and <code>execute</code> for the operations sent
+ * and <code>onJobCompleted</code> for results of asynchronous jobs.
+ *
+ * @author chinshaw
+ */
+public class CodecStats {
+
+	/**
+	 * Running totals for one method.
+	 */
+	public static class Entry {
+
+		private final LongAdder calls = new LongAdder();
+
+		private final LongAdder bytesWritten = new LongAdder();
+
+		private final LongAdder bytesRead = new LongAdder();
+
+		private final LongAdder writeNanos = new LongAdder();
+
+		private final LongAdder readNanos = new LongAdder();
+
+		/**
+		 * @return calls made or answered
+		 */
+		public long getCalls() {
+			return calls.sum();
+		}
+
+		/**
+		 * @return bytes of frames written, headers included
+		 */
+		public long getBytesWritten() {
+			return bytesWritten.sum();
+		}
+
+		public long getBytesRead() {
+			return bytesRead.sum();
+		}
+
+		/**
+		 * @return time spent encoding what was written
+		 */
+		public long getWriteNanos() {
+			return writeNanos.sum();
+		}
+
+		/**
+		 * @return time spent decoding what was read
+		 */
+		public long getReadNanos() {
+			return readNanos.sum();
+		}
+
+		public String toString() {
+			return "calls=" + getCalls() + " written=" + getBytesWritten()
+					+ "B/" + getWriteNanos() / 1000 + "us read="
+					+ getBytesRead() + "B/" + getReadNanos() / 1000 + "us";
+		}
+	}
+
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	/**
+	 * @return the totals so far by method signature, in signature order
+	 */
+	public Map<String, Entry> getEntries() {
+		return Collections.unmodifiableMap(new TreeMap<String, Entry>(entries));
+	}
+
+	/**
+	 * @return the totals for a method, or null if it was never called
+	 */
+	public Entry get(String signature) {
+		return entries.get(signature);
+	}
+
+	void called(String signature) {
+		entry(signature).calls.increment();
+	}
+
+	void wrote(String signature, int bytes, long nanos) {
+		Entry entry = entry(signature);
+		entry.bytesWritten.add(bytes);
+		entry.writeNanos.add(nanos);
+	}
+
+	void read(String signature, int bytes, long nanos) {
+		Entry entry = entry(signature);
+		entry.bytesRead.add(bytes);
+		entry.readNanos.add(nanos);
+	}
+
+	private Entry entry(String signature) {
+		Entry entry = entries.get(signature);
+		if (entry == null) {
+			entries.putIfAbsent(signature, new Entry());
+			entry = entries.get(signature);
+		}
+		return entry;
+	}
+
+	public String toString() {
+		StringBuilder text = new StringBuilder();
+		for (Map.Entry<String, Entry> entry : getEntries().entrySet()) {
+			text.append(entry.getKey()).append(' ').append(entry.getValue())
+					.append('\n');
+		}
+		return text.toString();
+	}
+}
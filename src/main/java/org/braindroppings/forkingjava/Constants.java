@@ -2,5 +2,57 @@ package org.braindroppings.forkingjava;
 
 public class Constants {
 
-	public static int RMI_CONNECTION_PORT = 2099;
+	/**
+	 * First argument to a fork that should load its classes for a class data
+	 * sharing archive and exit instead of serving.
+	 */
+	public static final String CDS_TRAINING_ARGUMENT = "--cds-training";
+
+	/**
+	 * System property telling a fork how many submitted jobs it may run at
+	 * once.
+	 */
+	public static final String MAX_CONCURRENT_JOBS_PROPERTY = "forkingjava.maxConcurrentJobs";
+
+	/**
+	 * System property holding the class name of the {@link ForkTransport} a
+	 * fork connects to its client with.
+	 */
+	public static final String TRANSPORT_PROPERTY = "forkingjava.transport";
+
+	/**
+	 * System property holding the transport specific address of the client,
+	 * the client's encoded stub for rmi.
+	 */
+	public static final String TRANSPORT_ADDRESS_PROPERTY = "forkingjava.transport.address";
+
+	/**
+	 * System property holding the class name of the {@link ForkCodec} a fork
+	 * uses on transports that take one.
+	 */
+	public static final String CODEC_PROPERTY = "forkingjava.codec";
+
+	/**
+	 * System property holding the largest frame in bytes a fork sends or
+	 * accepts on transports that frame their calls.
+	 */
+	public static final String MAX_FRAME_PROPERTY = "forkingjava.maxFrame";
+
+	/**
+	 * System property holding the directory a fork caches classes fetched from
+	 * its client in, forks without it do not fetch classes.
+	 */
+	public static final String CLASS_CACHE_PROPERTY = "forkingjava.classCache";
+
+	/**
+	 * System property telling a fork how many class loaders of isolated jobs
+	 * to keep.
+	 */
+	public static final String JOB_CLASS_LOADERS_PROPERTY = "forkingjava.jobClassLoaders";
+
+	/**
+	 * System property holding the most bytes of output a fork keeps per job, 0
+	 * to leave jobs writing straight to the fork's streams.
+	 */
+	public static final String JOB_OUTPUT_LIMIT_PROPERTY = "forkingjava.jobOutputLimit";
 }
@@ -0,0 +1,27 @@
+package org.braindroppings.forkingjava;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Names the threads of our executors and marks them as daemons so that they
+ * never keep the jvm alive on their own.
+ * 
+ * @author chinshaw
+ */
+class DaemonThreadFactory implements ThreadFactory {
+
+	private final String name;
+
+	private final AtomicInteger count = new AtomicInteger();
+
+	DaemonThreadFactory(String name) {
+		this.name = name;
+	}
+
+	public Thread newThread(Runnable r) {
+		Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+		thread.setDaemon(true);
+		return thread;
+	}
+}
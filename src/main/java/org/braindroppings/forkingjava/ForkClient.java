@@ -20,17 +20,26 @@ import java.io.IOException;
 import java.io.Serializable;
 import java.net.URI;
 import java.rmi.AccessException;
-import java.rmi.AlreadyBoundException;
+import java.rmi.NoSuchObjectException;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
-class ForkClient extends UnicastRemoteObject implements IForkClient,
-		IForkService {
+class ForkClient extends UnicastRemoteObject implements IForkClient, IFork {
 
 	/**
 	 * Required for UnicastRemoteOjbect
@@ -48,6 +57,11 @@ class ForkClient extends UnicastRemoteObject implements IForkClient,
 	 */
 	private transient Process process;
 
+	/**
+	 * Our end of the transport the server calls us back on.
+	 */
+	private transient ForkTransport.ClientEndpoint endpoint;
+
 	/**
 	 * The IForkService instance rmi connection to the server.
 	 */
@@ -56,7 +70,7 @@ class ForkClient extends UnicastRemoteObject implements IForkClient,
 	/**
 	 * This is out bootstrap builder.
 	 */
-	private static transient BootstrapBuilder bootstrap;
+	private transient BootstrapBuilder bootstrap;
 
 	/**
 	 * The environment to use.
@@ -64,16 +78,121 @@ class ForkClient extends UnicastRemoteObject implements IForkClient,
 	private transient Map<String, String> environment;
 
 	/**
-	 * Boolean for when the server is started, this may go away and use a thread
-	 * waitfor.
+	 * Released once the server has called back with
+	 * {@link #onServerStarted(String)} or the process has exited, whichever
+	 * comes first.
 	 */
-	private volatile boolean started = false;
+	private final transient CountDownLatch startSignal = new CountDownLatch(1);
 
 	/**
 	 * This is the generated generated id for the client server interaction.
 	 */
 	private final String rmiId = UUID.randomUUID().toString();
 
+	/**
+	 * Futures of jobs submitted with {@link #executeAsync}, by job id, until
+	 * the server reports on them.
+	 */
+	private final transient Map<Long, CompletableFuture<Serializable>> pendingJobs = new ConcurrentHashMap<Long, CompletableFuture<Serializable>>();
+
+	private final transient AtomicLong jobIds = new AtomicLong();
+
+	/**
+	 * Streams of jobs submitted with {@link #stream}, by job id, until the
+	 * server reports the end of the job.
+	 */
+	private final transient Map<Long, ForkStream<Serializable>> pendingStreams = new ConcurrentHashMap<Long, ForkStream<Serializable>>();
+
+	/**
+	 * Listeners of jobs submitted with {@link #executeAsyncWithOutput}, by job
+	 * id, until the job is over.
+	 */
+	private final transient Map<Long, JobOutputListener> outputListeners = new ConcurrentHashMap<Long, JobOutputListener>();
+
+	/**
+	 * Kills the fork if a job runs too far past its deadline.
+	 */
+	private transient ForkWatchdog watchdog;
+
+	/**
+	 * Asynchronous jobs and streams the fork has not reported on, by job id.
+	 */
+	private final transient Map<Long, RunningJob> runningJobs = new ConcurrentHashMap<Long, RunningJob>();
+
+	private final transient AtomicInteger jobsInFlight = new AtomicInteger();
+
+	/**
+	 * The manager that started us, it owns the threads our watchdog runs on.
+	 */
+	private final transient ForkManager manager;
+
+	private final transient ForkMetrics metrics;
+
+	private transient volatile boolean closed = false;
+
+	/**
+	 * Heartbeats missed in a row before we give up on the fork.
+	 */
+	static final int MAX_MISSED_HEARTBEATS = 3;
+
+	/**
+	 * Set while a heartbeat is out, a heartbeat still out when the next one
+	 * is due counts as missed.
+	 */
+	private final transient AtomicBoolean heartbeatPending = new AtomicBoolean();
+
+	private final transient AtomicInteger missedHeartbeats = new AtomicInteger();
+
+	private final transient long startedAt = System.nanoTime();
+
+	/**
+	 * Jobs the fork has finished, however they ended.
+	 */
+	private final transient AtomicLong jobsRun = new AtomicLong();
+
+	/**
+	 * Heap the fork held after its last collection as of the last heartbeat,
+	 * -1 until a heartbeat has asked.
+	 */
+	private transient volatile long heapUsedAfterGc = -1;
+
+	/**
+	 * A job handed to the fork, watched and counted until it is over.
+	 */
+	private class RunningJob {
+
+		private final ForkWatchdog.Watch watch;
+
+		private final long begin = System.nanoTime();
+
+		RunningJob(long jobId, int timeout) {
+			watch = watchdog.watch(jobId, timeout);
+			jobsInFlight.incrementAndGet();
+		}
+
+		/**
+		 * @param failure
+		 *            what the job failed with, null if it completed
+		 * @return how long the job took
+		 */
+		long finish(Throwable failure) {
+			long nanos = System.nanoTime() - begin;
+			if (failure instanceof ForkTimeoutException) {
+				metrics.timedOut();
+			}
+			if (failure instanceof ForkTimeoutException
+					|| failure instanceof CancellationException) {
+				watch.timedOut();
+			} else {
+				watch.close();
+			}
+			jobsInFlight.decrementAndGet();
+			jobsRun.incrementAndGet();
+			metrics.recordJob(nanos);
+			return nanos;
+		}
+	}
+
 	/**
 	 * Default constructor and will expect that java is in the default path for
 	 * your os. This will also use the current system environment from the
@@ -126,18 +245,31 @@ class ForkClient extends UnicastRemoteObject implements IForkClient,
 	public ForkClient(BootstrapBuilder bootstrap,
 			Map<String, String> environment) throws RemoteException,
 			ForkException, BootstrapException {
-		ForkClient.bootstrap = bootstrap;
+		this(ForkManager.getInstance(), bootstrap, environment);
+	}
+
+	ForkClient(ForkManager manager, BootstrapBuilder bootstrap,
+			Map<String, String> environment) throws RemoteException,
+			ForkException, BootstrapException {
+		this.manager = manager;
+		this.metrics = manager.getMetrics();
+		this.bootstrap = bootstrap;
 		this.environment = environment;
 
+		boolean ok = false;
+		long begin = System.nanoTime();
 		try {
-			// Must bind to rmi with our id before we start the server.
-			ForkManager.getInstance().getRmiRegistry()
-					.bind(getRmiIdentifier(), this);
+			// Must be reachable with our id before we start the server.
+			endpoint = bootstrap.getTransport().export(rmiId, this);
 			startServer();
+			metrics.recordStartup(System.nanoTime() - begin);
+			ok = true;
 		} catch (IOException e) {
 			throw new ForkException(e);
-		} catch (AlreadyBoundException e) {
-			throw new ForkException(e);
+		} finally {
+			if (!ok) {
+				abandon();
+			}
 		}
 	}
 
@@ -145,7 +277,17 @@ class ForkClient extends UnicastRemoteObject implements IForkClient,
 
 		ProcessBuilder builder = new ProcessBuilder();
 
-		List<String> command = bootstrap.addExtraArgument(rmiId).build();
+		// The id goes on the end of this fork's command only, the builder is
+		// shared by every fork started from a pool.
+		List<String> command = bootstrap.build(endpoint.getArguments());
+		command.add(rmiId);
+
+		CgroupLimits limits = bootstrap.getCgroupLimits();
+		final CgroupLimits.Cgroup cgroup = limits != null ? limits
+				.create(rmiId) : null;
+		if (cgroup != null) {
+			command = cgroup.wrap(command);
+		}
 
 		if (environment != null) {
 			builder.environment().putAll(environment);
@@ -156,31 +298,89 @@ class ForkClient extends UnicastRemoteObject implements IForkClient,
 
 		logger.info("Starting process");
 		try {
-			this.process = builder.start();
+			try {
+				this.process = builder.start();
+			} finally {
+				if (cgroup != null) {
+					if (process == null) {
+						cgroup.remove();
+					} else {
+						process.onExit().thenRun(cgroup::remove);
+					}
+				}
+			}
 
-			// Process output and error streams
-			new StreamPiper(process.getErrorStream(), "Server: ").start();
-			new StreamPiper(process.getInputStream(), "Server: ").start();
+			// Whatever shared buffers the fork never handed over go with it.
+			final long pid = process.pid();
+			process.onExit().thenRun(() -> SharedBuffer.deleteAll(pid));
 
-			waitForStartBeacon();
+			manager.getOutput().add(process);
+
+			waitForStartBeacon(bootstrap.getStartupTimeout());
+
+			watchdog = manager.newWatchdog(this, process,
+					bootstrap.getKillGrace());
+			manager.forkStarted(this);
+			process.onExit().thenRun(this::onProcessExit);
 		} catch (IOException e) {
 			throw new ForkException("Unable to fork java process ", e);
 		}
 	}
 
 	/**
-	 * One time method that is used to wait until the server is alive. The while
-	 * loop may be unncessary. TODO come up with a better way to block the
-	 * current thread while waiting for the onServerStarted event.
+	 * One time method that is used to wait until the server is alive. The
+	 * calling thread sleeps until the server calls
+	 * {@link #onServerStarted(String)}, the process exits or the timeout
+	 * passes.
 	 * 
-	 * @throws IOException
+	 * @param timeout
+	 *            seconds to wait for the server to call back
+	 * @throws ForkException
+	 *             if the server died or did not start in time
 	 */
-	private void waitForStartBeacon() {
+	private void waitForStartBeacon(int timeout) throws ForkException {
 		logger.fine("Waiting for server to finish starting can call serverinitialized");
-		while (true) {
-			if (started == true) {
-				break;
-			}
+		long begin = System.nanoTime();
+
+		// A child that dies before calling back would otherwise leave us
+		// waiting for the full timeout.
+		process.onExit().thenRun(startSignal::countDown);
+
+		boolean signalled;
+		try {
+			signalled = startSignal.await(timeout, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ForkException("Interrupted waiting for server to start", e);
+		}
+
+		if (forkedServer != null) {
+			logger.fine("Server started in "
+					+ TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin)
+					+ "ms");
+			return;
+		}
+		if (!signalled) {
+			throw new ForkException("Server did not start within " + timeout
+					+ " seconds");
+		}
+		throw new ForkException("Server exited with code "
+				+ process.exitValue() + " before it started");
+	}
+
+	/**
+	 * Cleans up after a fork that failed to start, the process is killed and
+	 * we close our end of the transport.
+	 */
+	private void abandon() {
+		if (process != null) {
+			process.destroyForcibly();
+		}
+		closeEndpoint();
+		try {
+			UnicastRemoteObject.unexportObject(this, true);
+		} catch (NoSuchObjectException e) {
+			// Never got exported.
 		}
 	}
 
@@ -193,15 +393,44 @@ class ForkClient extends UnicastRemoteObject implements IForkClient,
 	 */
 	public void onServerStarted(String rmiServerId) throws AccessException,
 			RemoteException, NotBoundException {
-		forkedServer = (IForkService) ForkManager.getInstance()
-				.getRmiRegistry().lookup(rmiServerId);
-		started = true;
+		forkedServer = endpoint.getServer(rmiServerId);
+		startSignal.countDown();
 	}
 
 	public synchronized boolean ping() {
 		return true;
 	}
 
+	/**
+	 * @see IForkClient#getClassDigest(String)
+	 */
+	public byte[] getClassDigest(String className) throws RemoteException {
+		ClassProvider provider = bootstrap.getClassProvider();
+		if (provider == null) {
+			return null;
+		}
+		try {
+			return provider.getDigest(className);
+		} catch (IOException e) {
+			throw new RemoteException("Unable to read class " + className, e);
+		}
+	}
+
+	/**
+	 * @see IForkClient#getClassBytes(String)
+	 */
+	public byte[] getClassBytes(String className) throws RemoteException {
+		ClassProvider provider = bootstrap.getClassProvider();
+		if (provider == null) {
+			return null;
+		}
+		try {
+			return provider.getBytes(className);
+		} catch (IOException e) {
+			throw new RemoteException("Unable to read class " + className, e);
+		}
+	}
+
 	public <T extends Serializable> T execute(Class<T> returnType,
 			IForkedJob job) throws RemoteException {
 		return forkedServer.execute(returnType, job);
@@ -213,50 +442,554 @@ class ForkClient extends UnicastRemoteObject implements IForkClient,
 	}
 
 	public <T extends Serializable> T execute(
-			RemoteOperation<T> remoteOperation, int timeout)
+			final RemoteOperation<T> remoteOperation, final int timeout)
 			throws RemoteException, ForkException, ForkTimeoutException {
+		ResultCache cache = manager.getResultCache();
+		if (cache != null && remoteOperation instanceof CacheableOperation) {
+			return ResultCache.await(cache.get(remoteOperation,
+					() -> CompletableFuture.completedFuture(run(
+							remoteOperation, timeout))), timeout);
+		}
+		return run(remoteOperation, timeout);
+	}
+
+	private <T extends Serializable> T run(RemoteOperation<T> remoteOperation,
+			int timeout) throws RemoteException, ForkException,
+			ForkTimeoutException {
 		// RemoteOperation<T> stub = (RemoteOperation<T>)
 		// UnicastRemoteObject.exportObject(remoteOperation);
 
-		return forkedServer.execute(remoteOperation, timeout);
+		RunningJob job = new RunningJob(0, timeout);
+		Throwable failure = null;
+		try {
+			return forkedServer.execute(remoteOperation, timeout);
+		} catch (ForkTimeoutException e) {
+			failure = e;
+			throw e;
+		} finally {
+			metrics.recordCall(job.finish(failure));
+		}
 	}
 
 	/**
-	 * This will affect the server's runtime classpath, the command goes to the
-	 * remote process and modifies that classpath. If the classpath is t
+	 * @see IForkService#executeWithStats(RemoteOperation, int)
 	 */
+	public <T extends Serializable> JobResult<T> executeWithStats(
+			RemoteOperation<T> remoteOperation, int timeout)
+			throws RemoteException, ForkException, ForkTimeoutException {
+		RunningJob job = new RunningJob(0, timeout);
+		Throwable failure = null;
+		try {
+			return forkedServer.executeWithStats(remoteOperation, timeout);
+		} catch (ForkTimeoutException e) {
+			failure = e;
+			throw e;
+		} finally {
+			metrics.recordCall(job.finish(failure));
+		}
+	}
+
+	/**
+	 * @see IFork#executeAsync(RemoteOperation, int)
+	 */
+	public <T extends Serializable> CompletableFuture<T> executeAsync(
+			final RemoteOperation<T> remoteOperation, final int timeout)
+			throws RemoteException {
+		ResultCache cache = manager.getResultCache();
+		if (cache != null && remoteOperation instanceof CacheableOperation) {
+			return cache.get(remoteOperation,
+					() -> this.<T> submit(remoteOperation, timeout, false));
+		}
+		return submit(remoteOperation, timeout, false);
+	}
+
+	/**
+	 * @see IFork#executeAsyncWithStats(RemoteOperation, int)
+	 */
+	public <T extends Serializable> CompletableFuture<JobResult<T>> executeAsyncWithStats(
+			RemoteOperation<T> remoteOperation, int timeout)
+			throws RemoteException {
+		return submit(remoteOperation, timeout, true);
+	}
+
+	/**
+	 * @see IFork#executeAsyncWithOutput(RemoteOperation, int,
+	 *      JobOutputListener)
+	 */
+	public <T extends Serializable> CompletableFuture<JobResult<T>> executeAsyncWithOutput(
+			RemoteOperation<T> remoteOperation, int timeout,
+			JobOutputListener listener) throws RemoteException {
+		return submit(remoteOperation, timeout, true, listener);
+	}
+
+	/**
+	 * Submits a job to the fork and hands back the future the fork's report
+	 * completes, without going through the result cache.
+	 * 
+	 * @param withStats
+	 *            whether the fork measures the job and reports a
+	 *            {@link JobResult}
+	 */
+	<R> CompletableFuture<R> submit(
+			RemoteOperation<? extends Serializable> remoteOperation,
+			int timeout, boolean withStats) throws RemoteException {
+		return submit(remoteOperation, timeout, withStats, null);
+	}
+
+	/**
+	 * @param listener
+	 *            gets what the job writes while it runs, null to leave the
+	 *            output to the fork
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private <R> CompletableFuture<R> submit(
+			RemoteOperation<? extends Serializable> remoteOperation,
+			int timeout, boolean withStats, JobOutputListener listener)
+			throws RemoteException {
+		final long jobId = jobIds.incrementAndGet();
+		final CompletableFuture<R> future = new CompletableFuture<R>();
+		pendingJobs.put(jobId, (CompletableFuture) future);
+		runningJobs.put(jobId, new RunningJob(jobId, timeout));
+		if (listener != null) {
+			outputListeners.put(jobId, listener);
+		}
+
+		long begin = System.nanoTime();
+		try {
+			if (listener != null) {
+				((IForkServer) forkedServer).submitWithOutput(jobId,
+						remoteOperation, timeout);
+			} else if (withStats) {
+				((IForkServer) forkedServer).submitWithStats(jobId,
+						remoteOperation, timeout);
+			} else {
+				((IForkServer) forkedServer).submit(jobId, remoteOperation,
+						timeout);
+			}
+		} catch (RemoteException e) {
+			pendingJobs.remove(jobId);
+			finishJob(jobId, e);
+			throw e;
+		} finally {
+			metrics.recordCall(System.nanoTime() - begin);
+		}
+
+		future.whenComplete((result, failure) -> {
+			// Only a cancelled future is still pending here.
+			if (pendingJobs.remove(jobId) != null) {
+				cancelJob(jobId);
+				finishJob(jobId, failure);
+			}
+		});
+		return future;
+	}
+
+	public <T extends Serializable> List<BatchResult<T>> executeBatch(
+			List<? extends RemoteOperation<T>> operations, int timeout)
+			throws RemoteException, ForkException {
+		RunningJob job = new RunningJob(0, timeout);
+		List<BatchResult<T>> results = null;
+		try {
+			results = forkedServer.executeBatch(operations, timeout);
+			return results;
+		} finally {
+			metrics.recordCall(job.finish(checkBatch(results)));
+		}
+	}
+
+	public <T extends Serializable> List<BatchResult<T>> executeBatch(
+			List<? extends RemoteOperation<T>> operations, int timeout,
+			int parallelism) throws RemoteException, ForkException {
+		RunningJob job = new RunningJob(0, timeout);
+		List<BatchResult<T>> results = null;
+		try {
+			results = forkedServer.executeBatch(operations, timeout,
+					parallelism);
+			return results;
+		} finally {
+			metrics.recordCall(job.finish(checkBatch(results)));
+		}
+	}
+
+	/**
+	 * Counts the operations of a batch that timed out.
+	 * 
+	 * @return the first timeout so the watchdog checks on the fork, null if
+	 *         there was none
+	 */
+	private <T extends Serializable> Throwable checkBatch(
+			List<BatchResult<T>> results) {
+		Throwable timeout = null;
+		if (results != null) {
+			for (BatchResult<T> result : results) {
+				if (result.getFailure() instanceof ForkTimeoutException) {
+					if (timeout != null) {
+						metrics.timedOut();
+					} else {
+						timeout = result.getFailure();
+					}
+				}
+			}
+		}
+		return timeout;
+	}
+
+	public <T extends Serializable> ForkStream<T> stream(
+			StreamingOperation<T> operation, int timeout)
+			throws RemoteException {
+		return stream(operation, timeout, ForkStream.DEFAULT_CHUNK_SIZE,
+				ForkStream.DEFAULT_BUFFERED_CHUNKS);
+	}
+
+	/**
+	 * @see IFork#stream(StreamingOperation, int, int, int)
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public <T extends Serializable> ForkStream<T> stream(
+			StreamingOperation<T> operation, int timeout, int chunkSize,
+			int bufferedChunks) throws RemoteException {
+		final long jobId = jobIds.incrementAndGet();
+		ForkStream<T> stream = new ForkStream<T>(bufferedChunks, () -> {
+			if (pendingStreams.remove(jobId) != null) {
+				cancelJob(jobId);
+				finishJob(jobId, new CancellationException());
+			}
+		});
+		pendingStreams.put(jobId, (ForkStream) stream);
+		runningJobs.put(jobId, new RunningJob(jobId, timeout));
+
+		long begin = System.nanoTime();
+		try {
+			((IForkServer) forkedServer).submitStream(jobId, operation,
+					timeout, chunkSize);
+		} catch (RemoteException e) {
+			pendingStreams.remove(jobId);
+			finishJob(jobId, e);
+			throw e;
+		} finally {
+			metrics.recordCall(System.nanoTime() - begin);
+		}
+		return stream;
+	}
+
+	/**
+	 * Asks the fork to cancel a job, the fork answers for it with
+	 * {@link #onJobFailed(long, Throwable)} if it was still running.
+	 */
+	void cancelJob(long jobId) {
+		long begin = System.nanoTime();
+		try {
+			((IForkServer) forkedServer).cancel(jobId);
+		} catch (RemoteException e) {
+			logger.fine("Unable to cancel job " + jobId);
+		} finally {
+			metrics.recordCall(System.nanoTime() - begin);
+		}
+	}
+
+	/**
+	 * Stops watching and counting an asynchronous job that is over, once.
+	 * 
+	 * @param failure
+	 *            what the job failed with, null if it completed
+	 */
+	private void finishJob(long jobId, Throwable failure) {
+		outputListeners.remove(jobId);
+		RunningJob job = runningJobs.remove(jobId);
+		if (job != null) {
+			job.finish(failure);
+		}
+	}
+
+	/**
+	 * @see IForkClient#onStreamChunk(long, List)
+	 */
+	@SuppressWarnings("unchecked")
+	public boolean onStreamChunk(long jobId, List<? extends Serializable> chunk)
+			throws RemoteException {
+		ForkStream<Serializable> stream = pendingStreams.get(jobId);
+		if (stream == null) {
+			return false;
+		}
+		try {
+			return stream.offer((List<Serializable>) chunk);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * @see IForkClient#onJobOutput(long, String, String)
+	 */
+	public void onJobOutput(long jobId, String stream, String text) {
+		JobOutputListener listener = outputListeners.get(jobId);
+		if (listener == null) {
+			return;
+		}
+		try {
+			listener.output(stream, text);
+		} catch (RuntimeException e) {
+			logger.log(Level.WARNING, "Output listener of job " + jobId
+					+ " failed", e);
+		}
+	}
+
+	/**
+	 * @see IForkClient#onJobCompleted(long, Serializable)
+	 */
+	public void onJobCompleted(long jobId, Serializable result) {
+		finishJob(jobId, null);
+		CompletableFuture<Serializable> future = pendingJobs.remove(jobId);
+		if (future != null) {
+			future.complete(result);
+		}
+		ForkStream<Serializable> stream = pendingStreams.remove(jobId);
+		if (stream != null) {
+			stream.finish(null);
+		}
+	}
+
+	/**
+	 * @see IForkClient#onJobFailed(long, Throwable)
+	 */
+	public void onJobFailed(long jobId, Throwable failure) {
+		finishJob(jobId, failure);
+		CompletableFuture<Serializable> future = pendingJobs.remove(jobId);
+		if (future != null) {
+			future.completeExceptionally(failure);
+		}
+		ForkStream<Serializable> stream = pendingStreams.remove(jobId);
+		if (stream != null) {
+			stream.finish(failure);
+		}
+	}
+
+	/**
+	 * @deprecated the fork's classpath can not be changed once it runs, run
+	 *             jobs that need more classes as an {@link IsolatedOperation}
+	 */
+	@Deprecated
 	public void addClassPath(URI path) throws RemoteException, IOException {
 		forkedServer.addClassPath(path.toString());
 	}
 
+	/**
+	 * Closes the fork. Jobs already submitted are still reported as the fork
+	 * finishes them, whatever is left when its process exits fails then. The
+	 * watchdog puts down a fork that is not gone once its drain timeout is
+	 * up.
+	 * 
+	 * @see IForkService#close()
+	 */
 	public void close() throws RemoteException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		manager.forkStopped(this);
+		watchdog.closed(bootstrap.getDrainTimeout());
+		long begin = System.nanoTime();
+		try {
+			((IForkServer) forkedServer).shutdown(bootstrap.getDrainTimeout());
+		} finally {
+			metrics.recordCall(System.nanoTime() - begin);
+		}
+	}
+
+	/**
+	 * Makes the fork clean for its next user.
+	 * 
+	 * @return false if the fork is still busy or degraded and should be
+	 *         closed instead
+	 * @see IForkServer#reset()
+	 */
+	boolean reset() throws RemoteException {
+		if (closed || !pendingJobs.isEmpty() || !pendingStreams.isEmpty()) {
+			return false;
+		}
+		long begin = System.nanoTime();
+		try {
+			if (!((IForkServer) forkedServer).reset()) {
+				return false;
+			}
+		} finally {
+			metrics.recordCall(System.nanoTime() - begin);
+		}
+		missedHeartbeats.set(0);
+		return true;
+	}
+
+	/**
+	 * Fails whatever was still waiting on the fork once its process is gone,
+	 * whether it died or was put down by the watchdog.
+	 */
+	private void onProcessExit() {
+		ForkException failure = new ForkException(closed ? "Fork was closed"
+				: "Fork exited with code " + process.exitValue());
+		for (Long jobId : pendingJobs.keySet()) {
+			onJobFailed(jobId, failure);
+		}
+		for (Long jobId : pendingStreams.keySet()) {
+			onJobFailed(jobId, failure);
+		}
+		for (Long jobId : runningJobs.keySet()) {
+			finishJob(jobId, failure);
+		}
+		closeEndpoint();
 		try {
-			ForkManager.getInstance().getRmiRegistry()
-					.unbind(getRmiIdentifier());
-		} catch (NotBoundException e) {
+			UnicastRemoteObject.unexportObject(this, true);
+		} catch (NoSuchObjectException e) {
+			// Already unexported.
+		}
+
+		manager.forkStopped(this);
+		if (!closed) {
+			metrics.crashed();
+		}
+	}
+
+	/**
+	 * Pings the fork on behalf of the manager's heartbeat. A fork that misses
+	 * {@link #MAX_MISSED_HEARTBEATS} in a row, by failing them or by not
+	 * answering before the next one is due, is hung and gets killed. When the
+	 * recycle policy watches the heap the heartbeat also samples it.
+	 * 
+	 * @param executor
+	 *            runs the ping, which blocks until the fork answers
+	 */
+	void heartbeat(Executor executor) {
+		if (closed || !process.isAlive()) {
+			return;
+		}
+		if (!heartbeatPending.compareAndSet(false, true)) {
+			missedHeartbeat("did not answer its last heartbeat");
+			return;
+		}
+		executor.execute(() -> {
+			long begin = System.nanoTime();
+			try {
+				RecyclePolicy policy = bootstrap.getRecyclePolicy();
+				if (policy != null && policy.getMaxHeapUsed() > 0) {
+					heapUsedAfterGc = ((IForkServer) forkedServer)
+							.getHeapUsedAfterGc();
+				} else {
+					((IForkServer) forkedServer).ping();
+				}
+				missedHeartbeats.set(0);
+			} catch (RemoteException e) {
+				missedHeartbeat("failed a heartbeat " + e);
+			} finally {
+				metrics.recordCall(System.nanoTime() - begin);
+				heartbeatPending.set(false);
+			}
+		});
+	}
+
+	private void missedHeartbeat(String reason) {
+		int missed = missedHeartbeats.incrementAndGet();
+		logger.warning("Fork " + process.pid() + " " + reason);
+		if (missed >= MAX_MISSED_HEARTBEATS && process.isAlive() && !closed) {
+			logger.warning("Fork " + process.pid() + " missed " + missed
+					+ " heartbeats, killing it");
+			process.destroyForcibly();
+		}
+	}
+
+	/**
+	 * @return false once the fork is closed, has exited or has missed a
+	 *         heartbeat, found out without calling it
+	 */
+	boolean isHealthy() {
+		return !closed && process.isAlive() && missedHeartbeats.get() == 0;
+	}
+
+	/**
+	 * @return why the fork's recycle policy says it should be replaced, null
+	 *         if it should not or it has no policy
+	 */
+	String getRecycleReason() {
+		RecyclePolicy policy = bootstrap.getRecyclePolicy();
+		if (policy == null) {
+			return null;
+		}
+		return policy.check(jobsRun.get(), TimeUnit.NANOSECONDS
+				.toSeconds(System.nanoTime() - startedAt), heapUsedAfterGc);
+	}
+
+	/**
+	 * @return jobs handed to the fork that have not finished
+	 */
+	int getJobsInFlight() {
+		return jobsInFlight.get();
+	}
+
+	/**
+	 * @return completes once the fork's process has exited
+	 */
+	CompletableFuture<Process> onExit() {
+		return process.onExit();
+	}
+
+	private void closeEndpoint() {
+		if (endpoint != null) {
+			try {
+				endpoint.close();
+			} catch (IOException e) {
+				logger.fine("Unable to close endpoint " + e);
+			}
 		}
-		forkedServer.close();
 	}
 
 	public long totalMemory() throws RemoteException {
-		return forkedServer.totalMemory();
+		long begin = System.nanoTime();
+		try {
+			return forkedServer.totalMemory();
+		} finally {
+			metrics.recordCall(System.nanoTime() - begin);
+		}
 	}
 
 	public long maxMemory() throws RemoteException {
-		return forkedServer.maxMemory();
+		long begin = System.nanoTime();
+		try {
+			return forkedServer.maxMemory();
+		} finally {
+			metrics.recordCall(System.nanoTime() - begin);
+		}
 	}
 
 	public long freeMemory() throws RemoteException {
-		return forkedServer.freeMemory();
+		long begin = System.nanoTime();
+		try {
+			return forkedServer.freeMemory();
+		} finally {
+			metrics.recordCall(System.nanoTime() - begin);
+		}
 	}
 
+	@Deprecated
 	public void addClassPath(String classPath) throws IOException,
 			RemoteException {
-		// TODO Auto-generated method stub
+		forkedServer.addClassPath(classPath);
 	}
 
 	public boolean alive() throws RemoteException {
-		return forkedServer.alive();
+		long begin = System.nanoTime();
+		try {
+			return forkedServer.alive();
+		} finally {
+			metrics.recordCall(System.nanoTime() - begin);
+		}
+	}
+
+	public boolean isDegraded() throws RemoteException {
+		long begin = System.nanoTime();
+		try {
+			return forkedServer.isDegraded();
+		} finally {
+			metrics.recordCall(System.nanoTime() - begin);
+		}
 	}
 
 }
\ No newline at end of file
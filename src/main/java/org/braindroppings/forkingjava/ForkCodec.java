@@ -0,0 +1,37 @@
+package org.braindroppings.forkingjava;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Turns the arguments and results of calls between a client and its fork into
+ * bytes and back. Used by transports that do their own framing, such as
+ * {@link UnixSocketTransport}; rmi always uses java serialization.
+ *
+ * Both ends must use the same codec, the fork creates its own instance through
+ * the public no argument constructor, so implementations must have one and
+ * must be on the fork's classpath.
+ *
+ * @author chinshaw
+ */
+public interface ForkCodec {
+
+	/**
+	 * Writes one value, the matching {@link #read(DataInputStream)} must
+	 * consume exactly the bytes written here.
+	 *
+	 * @param out
+	 *            stream for the frame being built
+	 * @param value
+	 *            argument or result, may be null
+	 */
+	public void write(DataOutputStream out, Object value) throws IOException;
+
+	/**
+	 * Reads one value written by {@link #write(DataOutputStream, Object)}.
+	 * Classes should be resolved through the thread's context class loader.
+	 */
+	public Object read(DataInputStream in) throws IOException,
+			ClassNotFoundException;
+}
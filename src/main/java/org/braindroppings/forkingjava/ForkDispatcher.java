@@ -0,0 +1,580 @@
+package org.braindroppings.forkingjava;
+
+import java.io.Serializable;
+import java.rmi.RemoteException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs jobs on a fixed number of forks it keeps started, so callers submit a
+ * job and get a future instead of picking a fork. Each job goes to the
+ * healthy fork with the fewest jobs in flight that still has a free job
+ * thread. When every fork is full jobs wait in a bounded queue, highest
+ * priority first and in order of submission within a priority, and a
+ * {@link RejectionPolicy} decides what happens once the queue is full. A
+ * single thread hands the jobs out as forks free up, a fork that exits is
+ * replaced in the background. A fork due for recycling keeps taking jobs
+ * until its replacement is up, then it finishes the jobs it has and exits.
+ *
+ * A fork that can not be reached when it is handed a job is dropped and
+ * replaced, and the job goes back to the queue a few times before it fails.
+ * Jobs still waiting when no fork is running and none could be started fail
+ * rather than wait for one.
+ *
+ * @author chinshaw
+ */
+class ForkDispatcher {
+
+	/**
+	 * Logger instance for this class alone
+	 */
+	private static final Logger logger = Logger.getLogger(ForkDispatcher.class
+			.getName());
+
+	/**
+	 * Times a job is handed to a fork that can not be reached before it fails.
+	 */
+	static final int MAX_SEND_ATTEMPTS = 3;
+
+	/**
+	 * A job waiting in the queue or running on a fork.
+	 */
+	static class QueuedJob<T extends Serializable> implements
+			Comparable<QueuedJob<?>> {
+
+		private final RemoteOperation<T> operation;
+
+		private final int priority;
+
+		private final int timeout;
+
+		private final long sequence;
+
+		private final CompletableFuture<T> future = new CompletableFuture<T>();
+
+		/**
+		 * The fork's future once the job has been handed out.
+		 */
+		private volatile CompletableFuture<T> running;
+
+		/**
+		 * Forks the job could not be handed to, only used by the dispatcher
+		 * thread.
+		 */
+		private int failedSends = 0;
+
+		QueuedJob(RemoteOperation<T> operation, int priority, int timeout,
+				long sequence) {
+			this.operation = operation;
+			this.priority = priority;
+			this.timeout = timeout;
+			this.sequence = sequence;
+		}
+
+		/**
+		 * Higher priorities first, then first come first served.
+		 */
+		public int compareTo(QueuedJob<?> other) {
+			if (priority != other.priority) {
+				return priority > other.priority ? -1 : 1;
+			}
+			return Long.compare(sequence, other.sequence);
+		}
+
+		/**
+		 * Submits the job to a fork, its future completes with the fork's.
+		 *
+		 * @throws RemoteException
+		 *             if the fork could not be reached, the job has not been
+		 *             handed out and its future is left alone
+		 */
+		void sendTo(ForkClient fork) throws RemoteException {
+			// The manager already consulted the result cache.
+			running = fork.<T> submit(operation, timeout, false);
+			running.whenComplete((result, failure) -> {
+				if (failure instanceof CompletionException
+						&& failure.getCause() != null) {
+					failure = failure.getCause();
+				}
+				if (failure != null) {
+					future.completeExceptionally(failure);
+				} else {
+					future.complete(result);
+				}
+			});
+			if (future.isCancelled()) {
+				running.cancel(true);
+			}
+		}
+	}
+
+	private final ForkManager manager;
+
+	/**
+	 * Builder used for every fork of the dispatcher.
+	 */
+	private final BootstrapBuilder bootstrap;
+
+	/**
+	 * The environment to start each fork with.
+	 */
+	private final Map<String, String> environment;
+
+	/**
+	 * Number of forks we keep started.
+	 */
+	private final int forkCount;
+
+	/**
+	 * Jobs a fork is handed at once, as many as it has job threads.
+	 */
+	private final int slots;
+
+	/**
+	 * Most jobs that may wait in the queue.
+	 */
+	private final int capacity;
+
+	private final RejectionPolicy policy;
+
+	/**
+	 * Started forks jobs are handed to.
+	 */
+	private final Set<ForkClient> forks = Collections
+			.newSetFromMap(new ConcurrentHashMap<ForkClient, Boolean>());
+
+	/**
+	 * Forks being started, guarded by this.
+	 */
+	private int starting = 0;
+
+	/**
+	 * Forks due for recycling whose replacement is starting.
+	 */
+	private final Set<ForkClient> recycling = Collections
+			.newSetFromMap(new ConcurrentHashMap<ForkClient, Boolean>());
+
+	private final PriorityQueue<QueuedJob<?>> queue = new PriorityQueue<QueuedJob<?>>();
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * Signalled when a job is queued or a fork may have a free slot.
+	 */
+	private final Condition ready = lock.newCondition();
+
+	/**
+	 * Signalled when a job leaves the queue.
+	 */
+	private final Condition notFull = lock.newCondition();
+
+	private long sequence = 0;
+
+	private volatile boolean closed = false;
+
+	ForkDispatcher(ForkManager manager, BootstrapBuilder bootstrap,
+			Map<String, String> environment, int forkCount, int capacity,
+			RejectionPolicy policy) {
+		if (forkCount < 1 || capacity < 1 || policy == null) {
+			throw new IllegalArgumentException("Invalid dispatcher, forks "
+					+ forkCount + " queue " + capacity + " policy " + policy);
+		}
+		this.manager = manager;
+		this.bootstrap = bootstrap;
+		this.environment = environment;
+		this.forkCount = forkCount;
+		this.slots = bootstrap.getJobSlots();
+		this.capacity = capacity;
+		this.policy = policy;
+
+		Thread thread = new DaemonThreadFactory("fork-dispatcher")
+				.newThread(this::dispatch);
+		thread.start();
+		refill();
+	}
+
+	/**
+	 * Queues a job for the next free fork.
+	 *
+	 * @param priority
+	 *            jobs with a higher priority are handed out first
+	 * @param timeout
+	 *            seconds the job may run once a fork has it, time spent in
+	 *            the queue does not count
+	 * @return completes with the job's result, cancelling it takes the job
+	 *         out of the queue or cancels it on its fork
+	 */
+	<T extends Serializable> CompletableFuture<T> submit(
+			RemoteOperation<T> operation, int priority, int timeout) {
+		QueuedJob<T> job;
+		lock.lock();
+		try {
+			job = new QueuedJob<T>(operation, priority, timeout, ++sequence);
+			if (!makeRoom(job)) {
+				return job.future;
+			}
+			queue.add(job);
+			ready.signal();
+		} finally {
+			lock.unlock();
+		}
+		final QueuedJob<T> queued = job;
+		job.future.whenComplete((result, failure) -> {
+			if (queued.future.isCancelled()) {
+				cancelled(queued);
+			}
+		});
+		refill();
+		return job.future;
+	}
+
+	/**
+	 * Waits for or makes room in the queue as the policy says, called with
+	 * the lock held.
+	 *
+	 * @return false if the job was rejected, its future has failed
+	 */
+	private boolean makeRoom(QueuedJob<?> job) {
+		while (!closed && queue.size() >= capacity) {
+			switch (policy) {
+			case BLOCK:
+				try {
+					notFull.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					job.future.completeExceptionally(new ForkException(
+							"Interrupted waiting for room in the dispatcher queue",
+							e));
+					return false;
+				}
+				break;
+			case DISCARD_OLDEST:
+				QueuedJob<?> victim = null;
+				for (QueuedJob<?> waiting : queue) {
+					if (victim == null || waiting.priority < victim.priority
+							|| waiting.priority == victim.priority
+							&& waiting.sequence < victim.sequence) {
+						victim = waiting;
+					}
+				}
+				if (victim == null || victim.priority > job.priority) {
+					reject(job, "Dispatcher queue is full");
+					return false;
+				}
+				queue.remove(victim);
+				reject(victim, "Dropped from the dispatcher queue to make room");
+				break;
+			default:
+				reject(job, "Dispatcher queue is full");
+				return false;
+			}
+		}
+		if (closed) {
+			job.future.completeExceptionally(new ForkException(
+					"Dispatcher has been stopped"));
+			return false;
+		}
+		return true;
+	}
+
+	private void reject(QueuedJob<?> job, String reason) {
+		manager.getMetrics().rejected();
+		job.future.completeExceptionally(new ForkException(reason + ", "
+				+ capacity + " jobs waiting"));
+	}
+
+	/**
+	 * Takes a cancelled job out of the queue, or cancels it on its fork.
+	 */
+	private void cancelled(QueuedJob<?> job) {
+		lock.lock();
+		try {
+			if (queue.remove(job)) {
+				notFull.signal();
+			}
+		} finally {
+			lock.unlock();
+		}
+		CompletableFuture<?> running = job.running;
+		if (running != null) {
+			running.cancel(true);
+		}
+	}
+
+	/**
+	 * Hands jobs out, on the dispatcher's own thread, as long as there are
+	 * jobs waiting and forks with a free slot.
+	 */
+	private void dispatch() {
+		while (true) {
+			QueuedJob<?> job;
+			ForkClient fork;
+			lock.lock();
+			try {
+				while (true) {
+					if (closed) {
+						return;
+					}
+					job = queue.peek();
+					fork = job != null ? leastLoaded() : null;
+					if (fork != null) {
+						break;
+					}
+					ready.await();
+				}
+				queue.poll();
+				notFull.signal();
+			} catch (InterruptedException e) {
+				return;
+			} finally {
+				lock.unlock();
+			}
+			if (!job.future.isDone()) {
+				final ForkClient target = fork;
+				try {
+					job.sendTo(target);
+				} catch (RemoteException e) {
+					unreachable(job, target, e);
+					continue;
+				}
+				job.running.whenComplete((result, failure) -> {
+					checkRecycle(target);
+					wakeUp();
+				});
+			}
+		}
+	}
+
+	/**
+	 * Drops a fork a job could not be handed to and starts a replacement, the
+	 * job goes back to the queue unless it has run out of attempts.
+	 */
+	private void unreachable(QueuedJob<?> job, ForkClient fork,
+			RemoteException e) {
+		if (forks.remove(fork)) {
+			logger.warning("Dispatcher fork could not be reached, starting a replacement "
+					+ e);
+			manager.getMetrics().restarted();
+			close(fork);
+		}
+		if (++job.failedSends >= MAX_SEND_ATTEMPTS) {
+			job.future.completeExceptionally(new ForkException(
+					"Unable to hand the job to a fork after "
+							+ job.failedSends + " attempts", e));
+		} else {
+			lock.lock();
+			try {
+				if (closed) {
+					job.future.completeExceptionally(new ForkException(
+							"Dispatcher has been stopped"));
+				} else {
+					// Room it left in the queue, it may go over the capacity
+					// until the next job is handed out.
+					queue.add(job);
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+		refill();
+	}
+
+	/**
+	 * @return the healthy fork with the fewest jobs in flight, null if every
+	 *         fork is full
+	 */
+	private ForkClient leastLoaded() {
+		ForkClient best = null;
+		int bestLoad = slots;
+		for (ForkClient fork : forks) {
+			int load = fork.getJobsInFlight();
+			if (load < bestLoad && fork.isHealthy()) {
+				best = fork;
+				bestLoad = load;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Lets the dispatcher thread look again, a fork may have a free slot.
+	 */
+	private void wakeUp() {
+		lock.lock();
+		try {
+			ready.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return jobs waiting for a fork
+	 */
+	int getQueueLength() {
+		lock.lock();
+		try {
+			return queue.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Starts forks in the background until we have as many as we should.
+	 */
+	private synchronized void refill() {
+		while (!closed && forks.size() + starting < forkCount) {
+			starting++;
+			manager.launch(bootstrap, environment).whenComplete(
+					this::onStarted);
+		}
+	}
+
+	private void onStarted(final ForkClient fork, Throwable failure) {
+		boolean none;
+		synchronized (this) {
+			starting--;
+			if (failure == null && !closed) {
+				forks.add(fork);
+			}
+			none = forks.isEmpty() && starting == 0;
+		}
+		if (failure != null) {
+			// Tried again on the next submit.
+			logger.log(Level.WARNING, "Unable to start dispatcher fork",
+					failure);
+			if (none) {
+				failWaiting(failure);
+			}
+			return;
+		}
+		if (closed) {
+			close(fork);
+			return;
+		}
+		fork.onExit().thenRun(() -> onExited(fork));
+		wakeUp();
+	}
+
+	/**
+	 * Fails the jobs waiting in the queue, no fork is left to run them. Jobs
+	 * submitted later try to start the forks again.
+	 */
+	private void failWaiting(Throwable failure) {
+		lock.lock();
+		try {
+			QueuedJob<?> job;
+			while ((job = queue.poll()) != null) {
+				job.future.completeExceptionally(new ForkException(
+						"No dispatcher fork is running and none could be started",
+						failure));
+			}
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Starts a replacement for a fork its recycle policy says is due, once.
+	 */
+	private void checkRecycle(final ForkClient fork) {
+		String reason = fork.getRecycleReason();
+		if (reason == null || closed || !forks.contains(fork)
+				|| !recycling.add(fork)) {
+			return;
+		}
+		logger.info("Recycling dispatcher fork, it " + reason);
+		manager.launch(bootstrap, environment).whenComplete(
+				(replacement, failure) -> onReplacement(fork, replacement,
+						failure));
+	}
+
+	/**
+	 * Puts the replacement in the recycled fork's place, the old fork is
+	 * closed and finishes the jobs it has.
+	 */
+	private void onReplacement(ForkClient old, ForkClient replacement,
+			Throwable failure) {
+		recycling.remove(old);
+		if (failure != null) {
+			// Tried again when the old fork next finishes a job.
+			logger.log(Level.WARNING,
+					"Unable to start a replacement for a recycled fork, keeping it",
+					failure);
+			return;
+		}
+		boolean keep;
+		synchronized (this) {
+			// The old fork may have died and been replaced already.
+			keep = !closed
+					&& (forks.remove(old) || forks.size() + starting < forkCount);
+			if (keep) {
+				forks.add(replacement);
+			}
+		}
+		if (!keep) {
+			close(replacement);
+			return;
+		}
+		replacement.onExit().thenRun(() -> onExited(replacement));
+		manager.getMetrics().recycled();
+		close(old);
+		wakeUp();
+	}
+
+	/**
+	 * Drops a fork whose process exited and starts a replacement, jobs it
+	 * was running have failed with it.
+	 */
+	private void onExited(ForkClient fork) {
+		if (!forks.remove(fork) || closed) {
+			return;
+		}
+		logger.warning("Dispatcher fork exited, starting a replacement");
+		manager.getMetrics().restarted();
+		refill();
+	}
+
+	/**
+	 * Fails the jobs still waiting and closes the forks, they finish the jobs
+	 * they already have first.
+	 */
+	void close() {
+		lock.lock();
+		try {
+			closed = true;
+			QueuedJob<?> job;
+			while ((job = queue.poll()) != null) {
+				job.future.completeExceptionally(new ForkException(
+						"Dispatcher has been stopped"));
+			}
+			ready.signalAll();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		for (ForkClient fork : forks) {
+			forks.remove(fork);
+			close(fork);
+		}
+	}
+
+	private static void close(ForkClient fork) {
+		try {
+			fork.close();
+		} catch (RemoteException e) {
+			// Already gone, nothing left to clean up.
+		}
+	}
+}
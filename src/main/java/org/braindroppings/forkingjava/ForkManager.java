@@ -1,62 +1,531 @@
 package org.braindroppings.forkingjava;
 
 import java.io.IOException;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
 import java.rmi.RemoteException;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.ObjectName;
 
 public class ForkManager {
 
-	private static ForkManager instance;
+	/**
+	 * Logger instance for this class alone
+	 */
+	private static final Logger logger = Logger.getLogger(ForkManager.class
+			.getName());
+
+	/**
+	 * Holds the default manager, created the first time it is asked for.
+	 */
+	private static class DefaultInstance {
+
+		static final ForkManager instance = new ForkManager("default");
+	}
+
+	private static final AtomicInteger managerCount = new AtomicInteger();
+
+	/**
+	 * Number of seconds {@link #checkoutFork()} waits for a fork when the pool
+	 * is at its cap.
+	 */
+	public static final int DEFAULT_CHECKOUT_TIMEOUT = 60;
+
+	/**
+	 * Seconds a job submitted with {@link #submit(RemoteOperation)} may run.
+	 */
+	public static final int DEFAULT_JOB_TIMEOUT = 600;
+
+	/**
+	 * Priority of jobs submitted without one.
+	 */
+	public static final int DEFAULT_PRIORITY = 0;
+
+	/**
+	 * Pool of started forks, null unless {@link #startPool} was called.
+	 */
+	private volatile ForkPool pool;
+
+	/**
+	 * Dispatcher of submitted jobs, null unless {@link #startDispatcher} was
+	 * called.
+	 */
+	private volatile ForkDispatcher dispatcher;
+
+	/**
+	 * Results of cacheable operations, null unless one was set.
+	 */
+	private volatile ResultCache resultCache;
+
+	/**
+	 * Threads used to start forks side by side, each one blocks on a single
+	 * jvm starting up.
+	 */
+	private final ExecutorService launcher = Executors
+			.newCachedThreadPool(new DaemonThreadFactory("fork-launcher"));
 
-	private static volatile Registry rmiRegistry = null;
+	/**
+	 * Seconds between heartbeats to each fork.
+	 */
+	public static final int DEFAULT_HEARTBEAT_INTERVAL = 10;
+
+	/**
+	 * Forks started here that have not been closed or exited.
+	 */
+	private final Set<ForkClient> liveForks = Collections
+			.newSetFromMap(new ConcurrentHashMap<ForkClient, Boolean>());
+
+	private final ForkMetrics metrics = new ForkMetrics(liveForks);
+
+	/**
+	 * Reads the stdout and stderr of every fork started here.
+	 */
+	private final ForkOutput output = new ForkOutput();
+
+	/**
+	 * One timer for the watchdogs and heartbeats of every fork, what it fires
+	 * runs on the launcher threads as it makes remote calls.
+	 */
+	private final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(
+			1, new DaemonThreadFactory("fork-timer"));
+
+	private ScheduledFuture<?> heartbeat;
+
+	/**
+	 * Name the metrics of this manager are published under.
+	 */
+	private final ObjectName metricsName;
+
+	/**
+	 * Creates a manager of its own, independent of the default one and of any
+	 * other manager in this or another jvm. Forks get their own ports, so
+	 * there is nothing to share. Call {@link #shutdown()} once done with it.
+	 */
+	public ForkManager() {
+		this("manager-" + managerCount.incrementAndGet());
+	}
+
+	private ForkManager(String name) {
+		timer.setRemoveOnCancelPolicy(true);
+		metricsName = registerMetrics(name);
+		setHeartbeatInterval(DEFAULT_HEARTBEAT_INTERVAL);
 
-	private ForkManager() {
 		if (System.getSecurityManager() == null) {
 			System.setSecurityManager(new SecurityManager());
 		}
-
-		try {
-			rmiRegistry = LocateRegistry
-					.createRegistry(Constants.RMI_CONNECTION_PORT);
-			
-		} catch (RemoteException e) {
-			e.printStackTrace();
-			throw new RuntimeException(
-					"Terminal unable to create rmi registry ", e);
-		}
 	}
 
+	/**
+	 * @return the manager shared by everything in this jvm that does not
+	 *         need one of its own
+	 */
 	public static ForkManager getInstance() {
-		if (instance == null) {
-			instance = new ForkManager();
-		}
-		return instance;
+		return DefaultInstance.instance;
 	}
 
-	public IForkService getFork() throws IOException, ForkException,
+	public IFork getFork() throws IOException, ForkException,
 			BootstrapException {
-		return new ForkClient();
+		return getFork("java");
 	}
 
-	public IForkService getFork(String java) throws RemoteException,
+	public IFork getFork(String java) throws RemoteException,
 			ForkException, BootstrapException {
-		return new ForkClient(java);
+		return getFork(java, System.getenv());
 	}
 
-	public IForkService getFork(String java, Map<String, String> environment)
-			throws IOException, ForkException, BootstrapException {
-		return new ForkClient(java);
+	public IFork getFork(String java, Map<String, String> environment)
+			throws RemoteException, ForkException, BootstrapException {
+		return getFork(new BootstrapBuilder().setJavaExecutable(java)
+				.setMaxHeapSize(IForkService.DEFAULT_MEMORY_MAX)
+				.setExtraClassPath(System.getProperty("java.class.path")),
+				environment);
 	}
 
-	public IForkService getFork(BootstrapBuilder bootstrap,
+	public IFork getFork(BootstrapBuilder bootstrap,
 			Map<String, String> environment) throws RemoteException,
 			ForkException, BootstrapException {
-		return new ForkClient(bootstrap, environment);
+		return new ForkClient(this, bootstrap, environment);
+	}
+
+	/**
+	 * Starts a number of forks at the same time and returns once every one of
+	 * them has called back, so the wall time is about that of the slowest
+	 * single startup. If any fork fails the others are closed.
+	 * 
+	 * @param count
+	 *            number of forks to start
+	 * @param bootstrap
+	 *            builder used to start every fork
+	 * @param environment
+	 *            environment for the forked processes
+	 * @return the started forks
+	 */
+	public List<IFork> getForks(int count,
+			final BootstrapBuilder bootstrap,
+			final Map<String, String> environment) throws ForkException,
+			BootstrapException {
+		List<CompletableFuture<ForkClient>> starting = new ArrayList<CompletableFuture<ForkClient>>();
+		for (int i = 0; i < count; i++) {
+			starting.add(launch(bootstrap, environment));
+		}
+
+		List<IFork> forks = new ArrayList<IFork>();
+		Throwable failure = null;
+		for (CompletableFuture<ForkClient> future : starting) {
+			try {
+				forks.add(future.get());
+			} catch (ExecutionException e) {
+				failure = failure == null ? e.getCause() : failure;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				failure = failure == null ? e : failure;
+			}
+		}
+
+		if (failure != null) {
+			for (IFork fork : forks) {
+				try {
+					fork.close();
+				} catch (RemoteException e) {
+					// Closing what we can, the first failure is reported.
+				}
+			}
+			if (failure instanceof BootstrapException) {
+				throw (BootstrapException) failure;
+			}
+			throw new ForkException("Unable to start " + count + " forks",
+					failure);
+		}
+		return forks;
+	}
+
+	/**
+	 * Starts a single fork on the launcher threads.
+	 */
+	CompletableFuture<ForkClient> launch(final BootstrapBuilder bootstrap,
+			final Map<String, String> environment) {
+		final CompletableFuture<ForkClient> started = new CompletableFuture<ForkClient>();
+		launcher.execute(() -> {
+			try {
+				started.complete(new ForkClient(this, bootstrap, environment));
+			} catch (Throwable e) {
+				started.completeExceptionally(e);
+			}
+		});
+		return started;
+	}
+
+	/**
+	 * Switches on pooled mode, a number of forks are started ahead of time and
+	 * handed out with {@link #checkoutFork()}. Forks are started from the same
+	 * bootstrap so they are interchangeable.
+	 * 
+	 * @param bootstrap
+	 *            builder used to start every pooled fork
+	 * @param environment
+	 *            environment for the forked processes
+	 * @param idleForks
+	 *            number of started forks to keep waiting for a checkout
+	 * @param maxForks
+	 *            maximum number of forks, idle or checked out
+	 */
+	public synchronized void startPool(BootstrapBuilder bootstrap,
+			Map<String, String> environment, int idleForks, int maxForks) {
+		if (pool != null) {
+			throw new IllegalStateException("Fork pool already started");
+		}
+		pool = new ForkPool(this, bootstrap, environment, idleForks, maxForks);
+	}
+
+	/**
+	 * Closes the idle forks of the pool, checked out forks are closed when
+	 * they are returned.
+	 */
+	public synchronized void stopPool() {
+		if (pool != null) {
+			pool.close();
+			pool = null;
+		}
+	}
+
+	/**
+	 * @see #checkoutFork(long, TimeUnit)
+	 */
+	public IFork checkoutFork() throws ForkException,
+			ForkTimeoutException, BootstrapException {
+		return checkoutFork(DEFAULT_CHECKOUT_TIMEOUT, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Takes a started fork out of the pool, it must be handed back with
+	 * {@link #returnFork(IFork)} rather than closed.
+	 * 
+	 * @param timeout
+	 *            how long to wait when every fork is checked out
+	 * @param unit
+	 *            unit of the timeout
+	 * @throws ForkTimeoutException
+	 *             if no fork was available in time
+	 */
+	public IFork checkoutFork(long timeout, TimeUnit unit)
+			throws ForkException, ForkTimeoutException, BootstrapException {
+		return getPool().checkout(timeout, unit);
+	}
+
+	/**
+	 * Gives a fork back to the pool so it can be checked out again.
+	 */
+	public void returnFork(IFork fork) throws ForkException {
+		getPool().checkin(fork);
+	}
+
+	private ForkPool getPool() throws ForkException {
+		ForkPool current = pool;
+		if (current == null) {
+			throw new ForkException(
+					"No fork pool, call startPool before checking out forks");
+		}
+		return current;
+	}
+
+	/**
+	 * Starts forks for {@link #submit(RemoteOperation, int, int)} to run jobs
+	 * on. Each job goes to the healthy fork with the fewest jobs in flight,
+	 * jobs wait in a queue while every fork is busy with as many jobs as it
+	 * has job threads.
+	 * 
+	 * @param bootstrap
+	 *            builder used to start every fork
+	 * @param environment
+	 *            environment for the forked processes
+	 * @param forks
+	 *            number of forks to keep started
+	 * @param queueCapacity
+	 *            most jobs that may wait for a fork
+	 * @param policy
+	 *            what to do with a job when the queue is full
+	 */
+	public synchronized void startDispatcher(BootstrapBuilder bootstrap,
+			Map<String, String> environment, int forks, int queueCapacity,
+			RejectionPolicy policy) {
+		if (dispatcher != null) {
+			throw new IllegalStateException("Dispatcher already started");
+		}
+		dispatcher = new ForkDispatcher(this, bootstrap, environment, forks,
+				queueCapacity, policy);
+		metrics.setDispatcher(dispatcher);
+	}
+
+	/**
+	 * Fails the jobs still waiting and closes the dispatcher's forks once
+	 * they have finished the jobs they were running.
+	 */
+	public synchronized void stopDispatcher() {
+		if (dispatcher != null) {
+			metrics.setDispatcher(null);
+			dispatcher.close();
+			dispatcher = null;
+		}
+	}
+
+	/**
+	 * @see #submit(RemoteOperation, int, int)
+	 */
+	public <T extends Serializable> CompletableFuture<T> submit(
+			RemoteOperation<T> operation) throws ForkException {
+		return submit(operation, DEFAULT_PRIORITY, DEFAULT_JOB_TIMEOUT);
+	}
+
+	/**
+	 * @see #submit(RemoteOperation, int, int)
+	 */
+	public <T extends Serializable> CompletableFuture<T> submit(
+			RemoteOperation<T> operation, int priority) throws ForkException {
+		return submit(operation, priority, DEFAULT_JOB_TIMEOUT);
+	}
+
+	/**
+	 * Runs a job on the least loaded of the dispatcher's forks, or queues it
+	 * until one has room. Returns straight away unless the queue is full and
+	 * the policy is {@link RejectionPolicy#BLOCK}.
+	 * 
+	 * @param priority
+	 *            jobs with a higher priority leave the queue first, jobs of
+	 *            the same priority leave it in the order they came
+	 * @param timeout
+	 *            seconds the job may run once it is on a fork
+	 * @return completes with the job's result or failure, a job rejected by
+	 *         a full queue fails with a {@link ForkException}
+	 * @throws ForkException
+	 *             if no dispatcher was started
+	 */
+	public <T extends Serializable> CompletableFuture<T> submit(
+			final RemoteOperation<T> operation, final int priority,
+			final int timeout) throws ForkException {
+		final ForkDispatcher current = dispatcher;
+		if (current == null) {
+			throw new ForkException(
+					"No dispatcher, call startDispatcher before submitting jobs");
+		}
+		ResultCache cache = resultCache;
+		if (cache != null && operation instanceof CacheableOperation) {
+			return cache.get(operation,
+					() -> current.submit(operation, priority, timeout));
+		}
+		return current.submit(operation, priority, timeout);
+	}
+
+	/**
+	 * Answers {@link CacheableOperation}s run on any fork started here from
+	 * this cache, whether they are submitted to the dispatcher or executed on
+	 * a fork directly. Other operations and batches always run.
+	 * 
+	 * @param cache
+	 *            the results to share, null to run every operation
+	 */
+	public void setResultCache(ResultCache cache) {
+		this.resultCache = cache;
+		metrics.setResultCache(cache);
+	}
+
+	public ResultCache getResultCache() {
+		return resultCache;
+	}
+
+	/**
+	 * Stops the pool, the dispatcher and the threads of this manager and
+	 * withdraws its metrics. Forks it started that are still open are not
+	 * closed and keep running jobs, but lose their watchdog, a job that will
+	 * not stop is no longer cancelled and its fork no longer put down.
+	 */
+	public void shutdown() {
+		stopPool();
+		stopDispatcher();
+		launcher.shutdown();
+		timer.shutdown();
+		output.close();
+		if (metricsName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+						metricsName);
+			} catch (Exception e) {
+				logger.fine("Unable to unregister fork metrics " + e);
+			}
+		}
+	}
+
+	/**
+	 * Publishes the metrics over JMX, forks still work if that fails.
+	 * 
+	 * @return the name they were published under, null if they were not
+	 */
+	private ObjectName registerMetrics(String name) {
+		try {
+			ObjectName objectName = new ObjectName(ForkMetrics.OBJECT_NAME
+					+ ",name=" + name);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(metrics,
+					objectName);
+			return objectName;
+		} catch (Exception e) {
+			logger.log(Level.WARNING, "Unable to register fork metrics", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Sends the lines every fork started here writes to its stdout and
+	 * stderr to this sink, running forks included,
+	 * {@link ForkOutputSinks#console()} by default.
+	 */
+	public void setOutputSink(ForkOutputSink sink) {
+		output.setSink(sink);
+	}
+
+	public ForkOutputSink getOutputSink() {
+		return output.getSink();
+	}
+
+	/**
+	 * Sets how many bytes of each stream of a fork are kept while the sink
+	 * catches up, 1m by default. The buffers start small and only grow this
+	 * far while the sink is behind. A fork that writes more meanwhile loses its
+	 * oldest output rather than being held up. Applies to forks started
+	 * after the call.
+	 */
+	public void setOutputBufferSize(int bytes) {
+		output.setBufferSize(bytes);
+	}
+
+	public int getOutputBufferSize() {
+		return output.getBufferSize();
+	}
+
+	ForkOutput getOutput() {
+		return output;
+	}
+
+	/**
+	 * @return latencies, counters and gauges for every fork started here
+	 */
+	public ForkMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Creates the watchdog for a fork that has just started.
+	 */
+	ForkWatchdog newWatchdog(ForkClient fork, Process process, int grace) {
+		return new ForkWatchdog(fork, process, timer, launcher, grace);
+	}
+
+	/**
+	 * Sets how often every fork is pinged to make sure it still answers. A
+	 * fork that misses several heartbeats in a row is killed. A fork that
+	 * dies is noticed straight away whatever the interval, and a fork notices
+	 * straight away that we died.
+	 * 
+	 * @param seconds
+	 *            interval between heartbeats, 0 to stop them
+	 */
+	public synchronized void setHeartbeatInterval(int seconds) {
+		if (seconds < 0) {
+			throw new IllegalArgumentException("Negative heartbeat interval "
+					+ seconds);
+		}
+		if (heartbeat != null) {
+			heartbeat.cancel(false);
+			heartbeat = null;
+		}
+		if (seconds > 0) {
+			heartbeat = timer.scheduleWithFixedDelay(() -> {
+				for (ForkClient fork : liveForks) {
+					fork.heartbeat(launcher);
+				}
+			}, seconds, seconds, TimeUnit.SECONDS);
+		}
+	}
+
+	void forkStarted(ForkClient fork) {
+		liveForks.add(fork);
 	}
 
-	public Registry getRmiRegistry() {
-		return rmiRegistry;
+	void forkStopped(ForkClient fork) {
+		liveForks.remove(fork);
 	}
 }
\ No newline at end of file
@@ -0,0 +1,225 @@
+package org.braindroppings.forkingjava;
+
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latencies, counters and gauges for the forks a {@link ForkManager} starts,
+ * published as an MXBean. Everything recorded on the path of a call is a
+ * striped add, the gauges are worked out from the live forks when they are
+ * read.
+ *
+ * @author chinshaw
+ */
+public class ForkMetrics implements ForkMetricsMXBean {
+
+	/**
+	 * Domain and type the metrics are registered under with the platform
+	 * MBean server, each manager adds a <code>name</code> key, the default
+	 * manager's is <code>default</code>.
+	 */
+	public static final String OBJECT_NAME = "org.braindroppings.forkingjava:type=ForkManager";
+
+	public static final String STARTUP = "startup";
+
+	public static final String CALL = "call";
+
+	public static final String JOB = "job";
+
+	public static final String TIMEOUTS = "timeouts";
+
+	public static final String CRASHES = "crashes";
+
+	public static final String RESTARTS = "restarts";
+
+	public static final String REJECTED = "rejected";
+
+	public static final String RECYCLES = "recycles";
+
+	private final LatencyHistogram startupLatency = new LatencyHistogram();
+
+	private final LatencyHistogram callLatency = new LatencyHistogram();
+
+	private final LatencyHistogram jobLatency = new LatencyHistogram();
+
+	private final LongAdder timeouts = new LongAdder();
+
+	private final LongAdder crashes = new LongAdder();
+
+	private final LongAdder restarts = new LongAdder();
+
+	private final LongAdder rejected = new LongAdder();
+
+	private final LongAdder recycles = new LongAdder();
+
+	/**
+	 * The manager's live forks, the gauges are read off them.
+	 */
+	private final Set<ForkClient> liveForks;
+
+	/**
+	 * The manager's dispatcher, null unless one is running.
+	 */
+	private volatile ForkDispatcher dispatcher;
+
+	/**
+	 * The manager's result cache, null unless one was set.
+	 */
+	private volatile ResultCache resultCache;
+
+	private volatile MetricsRecorder recorder;
+
+	ForkMetrics(Set<ForkClient> liveForks) {
+		this.liveForks = liveForks;
+	}
+
+	/**
+	 * Sends every value on to a recorder as well, null to stop.
+	 */
+	public void setRecorder(MetricsRecorder recorder) {
+		this.recorder = recorder;
+	}
+
+	public LatencyHistogram.Snapshot getStartupLatency() {
+		return startupLatency.snapshot();
+	}
+
+	public LatencyHistogram.Snapshot getCallLatency() {
+		return callLatency.snapshot();
+	}
+
+	public LatencyHistogram.Snapshot getJobLatency() {
+		return jobLatency.snapshot();
+	}
+
+	public long getTimeouts() {
+		return timeouts.sum();
+	}
+
+	public long getCrashes() {
+		return crashes.sum();
+	}
+
+	public long getRestarts() {
+		return restarts.sum();
+	}
+
+	public long getRecycles() {
+		return recycles.sum();
+	}
+
+	public long getRejectedJobs() {
+		return rejected.sum();
+	}
+
+	public int getLiveForks() {
+		return liveForks.size();
+	}
+
+	public int getBusyForks() {
+		int busy = 0;
+		for (ForkClient fork : liveForks) {
+			if (fork.getJobsInFlight() > 0) {
+				busy++;
+			}
+		}
+		return busy;
+	}
+
+	public int getJobsInFlight() {
+		int inFlight = 0;
+		for (ForkClient fork : liveForks) {
+			inFlight += fork.getJobsInFlight();
+		}
+		return inFlight;
+	}
+
+	public int getWaitingJobs() {
+		ForkDispatcher current = dispatcher;
+		return current != null ? current.getQueueLength() : 0;
+	}
+
+	void setDispatcher(ForkDispatcher dispatcher) {
+		this.dispatcher = dispatcher;
+	}
+
+	public long getCacheHits() {
+		ResultCache current = resultCache;
+		return current != null ? current.getHits() : 0;
+	}
+
+	public long getCacheMisses() {
+		ResultCache current = resultCache;
+		return current != null ? current.getMisses() : 0;
+	}
+
+	void setResultCache(ResultCache resultCache) {
+		this.resultCache = resultCache;
+	}
+
+	void recordStartup(long nanos) {
+		startupLatency.record(nanos);
+		record(STARTUP, nanos);
+	}
+
+	void recordCall(long nanos) {
+		callLatency.record(nanos);
+		record(CALL, nanos);
+	}
+
+	void recordJob(long nanos) {
+		jobLatency.record(nanos);
+		record(JOB, nanos);
+	}
+
+	void timedOut() {
+		timeouts.increment();
+		increment(TIMEOUTS);
+	}
+
+	void crashed() {
+		crashes.increment();
+		increment(CRASHES);
+	}
+
+	void restarted() {
+		restarts.increment();
+		increment(RESTARTS);
+	}
+
+	void recycled() {
+		recycles.increment();
+		increment(RECYCLES);
+	}
+
+	void rejected() {
+		rejected.increment();
+		increment(REJECTED);
+	}
+
+	private void record(String metric, long nanos) {
+		MetricsRecorder current = recorder;
+		if (current != null) {
+			current.recordLatency(metric, nanos);
+		}
+	}
+
+	private void increment(String metric) {
+		MetricsRecorder current = recorder;
+		if (current != null) {
+			current.increment(metric);
+		}
+	}
+
+	public String toString() {
+		return "startup " + startupLatency + "\ncall " + callLatency
+				+ "\njob " + jobLatency + "\ntimeouts=" + getTimeouts()
+				+ " crashes=" + getCrashes() + " restarts=" + getRestarts()
+				+ " recycles=" + getRecycles()
+				+ " live=" + getLiveForks() + " busy=" + getBusyForks()
+				+ " inFlight=" + getJobsInFlight() + " waiting="
+				+ getWaitingJobs() + " rejected=" + getRejectedJobs()
+				+ " cacheHits=" + getCacheHits() + " cacheMisses="
+				+ getCacheMisses();
+	}
+}
@@ -0,0 +1,85 @@
+package org.braindroppings.forkingjava;
+
+/**
+ * What each {@link ForkManager} publishes over JMX under
+ * {@link ForkMetrics#OBJECT_NAME}.
+ *
+ * @author chinshaw
+ */
+public interface ForkMetricsMXBean {
+
+	/**
+	 * @return time from starting a fork's process to the fork calling back
+	 */
+	public LatencyHistogram.Snapshot getStartupLatency();
+
+	/**
+	 * @return round trip of every remote call made to a fork
+	 */
+	public LatencyHistogram.Snapshot getCallLatency();
+
+	/**
+	 * @return time from handing a job to a fork to its result being back
+	 */
+	public LatencyHistogram.Snapshot getJobLatency();
+
+	/**
+	 * @return jobs that timed out
+	 */
+	public long getTimeouts();
+
+	/**
+	 * @return forks whose process exited without being closed
+	 */
+	public long getCrashes();
+
+	/**
+	 * @return forks a pool started to replace one that died or was retired
+	 *         unhealthy
+	 */
+	public long getRestarts();
+
+	/**
+	 * @return forks replaced because their recycle policy said they were due
+	 */
+	public long getRecycles();
+
+	/**
+	 * @return forks started and not yet closed or exited
+	 */
+	public int getLiveForks();
+
+	/**
+	 * @return live forks with at least one job
+	 */
+	public int getBusyForks();
+
+	/**
+	 * @return jobs handed to forks that have not finished, running or waiting
+	 *         for a job thread
+	 */
+	public int getJobsInFlight();
+
+	/**
+	 * @return jobs submitted through the manager's dispatcher still waiting
+	 *         for a fork
+	 */
+	public int getWaitingJobs();
+
+	/**
+	 * @return jobs the dispatcher turned away or dropped because its queue
+	 *         was full
+	 */
+	public long getRejectedJobs();
+
+	/**
+	 * @return cacheable operations answered by the result cache, from a
+	 *         finished run or one still in progress
+	 */
+	public long getCacheHits();
+
+	/**
+	 * @return cacheable operations the result cache had to run
+	 */
+	public long getCacheMisses();
+}
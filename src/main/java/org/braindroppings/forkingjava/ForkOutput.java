@@ -0,0 +1,400 @@
+package org.braindroppings.forkingjava;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads the stdout and stderr of every fork a manager starts, on two threads
+ * however many forks there are. The drain thread polls each stream for what
+ * it can read without blocking and copies it into a ring buffer of the
+ * stream's own, the output thread takes what the rings hold, splits it into
+ * lines and hands them to the sink. A fork writing faster than the sink keeps
+ * up overwrites the oldest output in its ring, which is reported to the sink
+ * as a count of bytes dropped, but it never waits on the sink or on other
+ * forks.
+ *
+ * @author chinshaw
+ */
+class ForkOutput {
+
+	/**
+	 * Logger instance for this class alone
+	 */
+	private static final Logger logger = Logger.getLogger(ForkOutput.class
+			.getName());
+
+	/**
+	 * Most bytes of output kept per stream when no size was set.
+	 */
+	static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+	/**
+	 * Bytes a stream's ring starts with, it grows up to the buffer size only
+	 * while the sink falls behind, so quiet forks stay cheap.
+	 */
+	private static final int INITIAL_RING = 8 * 1024;
+
+	/**
+	 * Shortest and longest waits between polls, the drain thread backs off
+	 * while the forks are quiet.
+	 */
+	private static final long MIN_POLL = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private static final long MAX_POLL = TimeUnit.MILLISECONDS.toNanos(50);
+
+	/**
+	 * Forks decode with the same default as we do, they are started from
+	 * here.
+	 */
+	private static final Charset charset = Charset.defaultCharset();
+
+	/**
+	 * One stream of one fork.
+	 */
+	private class Pipe {
+
+		private final long pid;
+
+		private final String stream;
+
+		private final InputStream input;
+
+		private final Process process;
+
+		/**
+		 * Most the ring may grow to.
+		 */
+		private final int capacity;
+
+		/**
+		 * Ring of output not yet handed to the sink, guarded by this pipe
+		 * along with start, size, dropped and finished. Only the drain thread
+		 * sets finished.
+		 */
+		private byte[] ring;
+
+		private int start = 0;
+
+		private int size = 0;
+
+		private long dropped = 0;
+
+		private boolean finished = false;
+
+		/**
+		 * Start of a line the fork has not finished writing, output thread
+		 * only.
+		 */
+		private final ByteArrayOutputStream partial = new ByteArrayOutputStream();
+
+		Pipe(long pid, String stream, InputStream input, Process process,
+				int bufferSize) {
+			this.pid = pid;
+			this.stream = stream;
+			this.input = input;
+			this.process = process;
+			this.capacity = bufferSize;
+			this.ring = new byte[Math.min(INITIAL_RING, bufferSize)];
+		}
+
+		/**
+		 * Reads what the fork has written without blocking, up to half a ring
+		 * so a fork that never stops writing cannot hold up the others,
+		 * drain thread only.
+		 *
+		 * @return whether there is anything new for the output thread
+		 */
+		boolean fill(byte[] buffer) {
+			// Checked first, so output written before the exit is read below.
+			boolean alive = process.isAlive();
+			boolean read = false;
+			try {
+				int limit = Math.max(capacity / 2, 1);
+				int total = 0;
+				int available;
+				while (total < limit && (available = input.available()) > 0) {
+					int count = input.read(buffer, 0, Math.min(
+							Math.min(available, buffer.length), limit - total));
+					if (count < 0) {
+						break;
+					}
+					append(buffer, count);
+					total += count;
+					read = true;
+				}
+			} catch (IOException e) {
+				// Closed once the process is gone.
+				alive = false;
+			}
+			if (!read && !alive) {
+				synchronized (this) {
+					finished = true;
+				}
+				try {
+					input.close();
+				} catch (IOException e) {
+					// Nothing more to read anyway.
+				}
+				return true;
+			}
+			return read;
+		}
+
+		private synchronized void append(byte[] bytes, int count) {
+			if (size + count > ring.length && ring.length < capacity) {
+				grow(size + count);
+			}
+			int offset = 0;
+			if (count >= ring.length) {
+				dropped += size + count - ring.length;
+				offset = count - ring.length;
+				count = ring.length;
+				start = 0;
+				size = 0;
+			} else if (size + count > ring.length) {
+				int overwritten = size + count - ring.length;
+				dropped += overwritten;
+				start = (start + overwritten) % ring.length;
+				size -= overwritten;
+			}
+			int end = (start + size) % ring.length;
+			int first = Math.min(count, ring.length - end);
+			System.arraycopy(bytes, offset, ring, end, first);
+			System.arraycopy(bytes, offset + first, ring, 0, count - first);
+			size += count;
+		}
+
+		/**
+		 * Enlarges the ring towards its capacity, called with the lock held.
+		 */
+		private void grow(int needed) {
+			byte[] larger = new byte[Math.min(capacity,
+					Math.max(ring.length * 2, needed))];
+			int first = Math.min(size, ring.length - start);
+			System.arraycopy(ring, start, larger, 0, first);
+			System.arraycopy(ring, 0, larger, first, size - first);
+			ring = larger;
+			start = 0;
+		}
+
+		/**
+		 * Hands the complete lines in the ring to the sink, output thread
+		 * only.
+		 *
+		 * @return whether anything went to the sink
+		 */
+		boolean emit(ForkOutputSink sink) {
+			byte[] bytes;
+			long lost;
+			boolean done;
+			synchronized (this) {
+				if (size == 0 && dropped == 0 && !finished) {
+					return false;
+				}
+				bytes = new byte[size];
+				int first = Math.min(size, ring.length - start);
+				System.arraycopy(ring, start, bytes, 0, first);
+				System.arraycopy(ring, 0, bytes, first, size - first);
+				start = 0;
+				size = 0;
+				lost = dropped;
+				dropped = 0;
+				done = finished;
+			}
+			boolean emitted = false;
+			if (lost > 0) {
+				emitted |= flushPartial(sink);
+				deliver(sink, "[" + lost + " bytes of output dropped]");
+				emitted = true;
+			}
+			int lineStart = 0;
+			for (int i = 0; i < bytes.length; i++) {
+				if (bytes[i] != '\n') {
+					continue;
+				}
+				int lineEnd = i > lineStart && bytes[i - 1] == '\r' ? i - 1 : i;
+				if (partial.size() == 0) {
+					deliver(sink, new String(bytes, lineStart, lineEnd
+							- lineStart, charset));
+				} else {
+					partial.write(bytes, lineStart, lineEnd - lineStart);
+					flushPartial(sink);
+				}
+				lineStart = i + 1;
+				emitted = true;
+			}
+			partial.write(bytes, lineStart, bytes.length - lineStart);
+			if (done || partial.size() >= capacity) {
+				// No line end coming, or more than we keep for one.
+				emitted |= flushPartial(sink);
+			}
+			if (done) {
+				pipes.remove(this);
+			}
+			return emitted;
+		}
+
+		private boolean flushPartial(ForkOutputSink sink) {
+			if (partial.size() == 0) {
+				return false;
+			}
+			deliver(sink, new String(partial.toByteArray(), charset));
+			partial.reset();
+			return true;
+		}
+
+		private void deliver(ForkOutputSink sink, String line) {
+			try {
+				sink.line(pid, stream, line);
+			} catch (Exception e) {
+				sinkFailed(e);
+			}
+		}
+	}
+
+	private final List<Pipe> pipes = new CopyOnWriteArrayList<Pipe>();
+
+	private volatile ForkOutputSink sink = ForkOutputSinks.console();
+
+	private volatile int bufferSize = DEFAULT_BUFFER_SIZE;
+
+	private volatile boolean closed = false;
+
+	/**
+	 * Set when the sink first throws, it is only logged once.
+	 */
+	private volatile boolean sinkFailed = false;
+
+	/**
+	 * Started with the first fork, guarded by this.
+	 */
+	private Thread drainThread;
+
+	private Thread outputThread;
+
+	void setSink(ForkOutputSink sink) {
+		this.sink = sink;
+		this.sinkFailed = false;
+	}
+
+	ForkOutputSink getSink() {
+		return sink;
+	}
+
+	void setBufferSize(int bytes) {
+		if (bytes < 1) {
+			throw new IllegalArgumentException("Output buffer needs a byte, not "
+					+ bytes);
+		}
+		this.bufferSize = bytes;
+	}
+
+	int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * Starts reading a fork's stdout and stderr, until it has exited and
+	 * everything it wrote has been read.
+	 */
+	void add(Process process) {
+		long pid = process.pid();
+		int size = bufferSize;
+		pipes.add(new Pipe(pid, ForkOutputSink.STDOUT,
+				process.getInputStream(), process, size));
+		pipes.add(new Pipe(pid, ForkOutputSink.STDERR,
+				process.getErrorStream(), process, size));
+		startThreads();
+	}
+
+	private synchronized void startThreads() {
+		if (drainThread != null) {
+			return;
+		}
+		drainThread = new DaemonThreadFactory("fork-output-drain")
+				.newThread(this::drain);
+		outputThread = new DaemonThreadFactory("fork-output")
+				.newThread(this::output);
+		drainThread.start();
+		outputThread.start();
+	}
+
+	/**
+	 * Stops both threads once the forks still running have exited and their
+	 * output has gone to the sink.
+	 */
+	void close() {
+		closed = true;
+		Thread drain;
+		Thread output;
+		synchronized (this) {
+			drain = drainThread;
+			output = outputThread;
+		}
+		if (drain != null) {
+			LockSupport.unpark(drain);
+			LockSupport.unpark(output);
+		}
+	}
+
+	private boolean done() {
+		return closed && pipes.isEmpty();
+	}
+
+	private void drain() {
+		byte[] buffer = new byte[8192];
+		long wait = MIN_POLL;
+		while (!done()) {
+			boolean read = false;
+			for (Pipe pipe : pipes) {
+				if (!pipe.finished) {
+					read |= pipe.fill(buffer);
+				}
+			}
+			if (read) {
+				LockSupport.unpark(outputThread);
+				// Lets the output thread empty the rings before we fill them
+				// again where cpus are few.
+				Thread.yield();
+				wait = MIN_POLL;
+			} else {
+				LockSupport.parkNanos(wait);
+				wait = Math.min(wait * 2, MAX_POLL);
+			}
+		}
+		LockSupport.unpark(outputThread);
+	}
+
+	private void output() {
+		while (!done()) {
+			LockSupport.parkNanos(MAX_POLL);
+			ForkOutputSink current = sink;
+			boolean emitted = false;
+			for (Pipe pipe : pipes) {
+				emitted |= pipe.emit(current);
+			}
+			if (emitted) {
+				try {
+					current.flush();
+				} catch (Exception e) {
+					sinkFailed(e);
+				}
+			}
+		}
+	}
+
+	private void sinkFailed(Exception e) {
+		if (!sinkFailed) {
+			sinkFailed = true;
+			logger.log(Level.WARNING, "Fork output sink failed, lines it refuses are lost", e);
+		}
+	}
+}
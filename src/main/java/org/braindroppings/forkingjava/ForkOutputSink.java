@@ -0,0 +1,40 @@
+package org.braindroppings.forkingjava;
+
+import java.io.IOException;
+
+/**
+ * Where the lines forks write to their stdout and stderr end up. A sink is
+ * only ever called from the manager's one output thread, so it need not be
+ * thread safe, and a slow sink only loses lines, the forks never wait for it.
+ *
+ * @see ForkManager#setOutputSink(ForkOutputSink)
+ * @see ForkOutputSinks
+ * @author chinshaw
+ */
+public interface ForkOutputSink {
+
+	/**
+	 * Name of the stream for a fork's standard output.
+	 */
+	public static final String STDOUT = "stdout";
+
+	/**
+	 * Name of the stream for a fork's standard error.
+	 */
+	public static final String STDERR = "stderr";
+
+	/**
+	 * @param pid
+	 *            process id of the fork
+	 * @param stream
+	 *            {@link #STDOUT} or {@link #STDERR}
+	 * @param line
+	 *            the line without its terminator
+	 */
+	public void line(long pid, String stream, String line) throws IOException;
+
+	/**
+	 * Called once the lines there are for now have been handed over.
+	 */
+	public void flush() throws IOException;
+}
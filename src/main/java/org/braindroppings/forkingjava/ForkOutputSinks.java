@@ -0,0 +1,90 @@
+package org.braindroppings.forkingjava;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The {@link ForkOutputSink}s that come with the library.
+ *
+ * @author chinshaw
+ */
+public final class ForkOutputSinks {
+
+	private ForkOutputSinks() {
+	}
+
+	/**
+	 * Prints every line to this jvm's stdout behind
+	 * <code>Server: &gt;</code>, what managers do unless told otherwise.
+	 */
+	public static ForkOutputSink console() {
+		return new ForkOutputSink() {
+
+			public void line(long pid, String stream, String line) {
+				System.out.println("Server: >" + line);
+			}
+
+			public void flush() {
+				System.out.flush();
+			}
+		};
+	}
+
+	/**
+	 * Logs stdout lines at info and stderr lines at warning.
+	 */
+	public static ForkOutputSink logger(final Logger logger) {
+		return new ForkOutputSink() {
+
+			public void line(long pid, String stream, String line) {
+				logger.log(ForkOutputSink.STDERR.equals(stream) ? Level.WARNING
+						: Level.INFO, "fork " + pid + " " + stream + ": " + line);
+			}
+
+			public void flush() {
+			}
+		};
+	}
+
+	/**
+	 * Appends every line to a file in UTF-8, behind the fork's pid and the
+	 * stream's name. The file is kept open, lines reach it in batches.
+	 */
+	public static ForkOutputSink file(File file) throws IOException {
+		final Writer writer = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(file, true), StandardCharsets.UTF_8));
+		return new ForkOutputSink() {
+
+			public void line(long pid, String stream, String line)
+					throws IOException {
+				writer.write(pid + " " + stream + " " + line + "\n");
+			}
+
+			public void flush() throws IOException {
+				writer.flush();
+			}
+		};
+	}
+
+	/**
+	 * Throws every line away, the forks' output is still read so they never
+	 * block writing it.
+	 */
+	public static ForkOutputSink discard() {
+		return new ForkOutputSink() {
+
+			public void line(long pid, String stream, String line) {
+			}
+
+			public void flush() {
+			}
+		};
+	}
+}
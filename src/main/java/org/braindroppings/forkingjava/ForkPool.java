@@ -0,0 +1,397 @@
+package org.braindroppings.forkingjava;
+
+import java.rmi.RemoteException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps a number of forked servers started and idle so that a job can be
+ * handed a running jvm instead of waiting for one to boot. Forks are checked
+ * out, used and returned, forks are started in the background to top the idle
+ * forks back up and the total number of forks never goes past the configured
+ * maximum. A fork whose process dies, or is killed by its watchdog, leaves the
+ * pool right away and a replacement is started in the background. A fork due
+ * for recycling stays in use until its replacement has started.
+ *
+ * @author chinshaw
+ */
+class ForkPool {
+
+	/**
+	 * Logger instance for this class alone
+	 */
+	private static final Logger logger = Logger.getLogger(ForkPool.class
+			.getName());
+
+	private final ForkManager manager;
+
+	/**
+	 * Builder used for every fork in the pool.
+	 */
+	private final BootstrapBuilder bootstrap;
+
+	/**
+	 * The environment to start each fork with.
+	 */
+	private final Map<String, String> environment;
+
+	/**
+	 * Number of started forks we try to keep waiting for a checkout.
+	 */
+	private final int idleForks;
+
+	/**
+	 * Hard cap on forks, counting idle, checked out and starting forks.
+	 */
+	private final int maxForks;
+
+	/**
+	 * Started forks waiting to be checked out.
+	 */
+	private final BlockingQueue<ForkClient> idle = new LinkedBlockingQueue<ForkClient>();
+
+	/**
+	 * Forks that are currently checked out.
+	 */
+	private final Set<ForkClient> leased = Collections
+			.newSetFromMap(new ConcurrentHashMap<ForkClient, Boolean>());
+
+	/**
+	 * Started forks this pool owns, idle or checked out.
+	 */
+	private final Set<ForkClient> members = Collections
+			.newSetFromMap(new ConcurrentHashMap<ForkClient, Boolean>());
+
+	/**
+	 * Forks due for recycling whose replacement is starting, also guards
+	 * {@link #replaced}.
+	 */
+	private final Set<ForkClient> recycling = new HashSet<ForkClient>();
+
+	/**
+	 * Recycled forks whose replacement came up while they were checked out,
+	 * they are retired when they come back.
+	 */
+	private final Set<ForkClient> replaced = new HashSet<ForkClient>();
+
+	/**
+	 * Every fork this pool owns, including the ones still starting.
+	 */
+	private final AtomicInteger forkCount = new AtomicInteger();
+
+	/**
+	 * Forks being started in the background to top up the idle forks.
+	 */
+	private final AtomicInteger refilling = new AtomicInteger();
+
+	private volatile boolean closed = false;
+
+	ForkPool(ForkManager manager, BootstrapBuilder bootstrap,
+			Map<String, String> environment, int idleForks, int maxForks) {
+		if (idleForks < 0 || maxForks < 1 || idleForks > maxForks) {
+			throw new IllegalArgumentException("Invalid pool size, idle "
+					+ idleForks + " max " + maxForks);
+		}
+		this.manager = manager;
+		this.bootstrap = bootstrap;
+		this.environment = environment;
+		this.idleForks = idleForks;
+		this.maxForks = maxForks;
+		refill();
+	}
+
+	/**
+	 * Hands out an idle fork. If none is idle and the pool is under its cap a
+	 * fork is started on the calling thread, otherwise we wait for one to be
+	 * returned or started.
+	 *
+	 * @param timeout
+	 *            how long to wait for a fork when the pool is at its cap
+	 * @param unit
+	 *            unit of the timeout
+	 * @return a started fork that must be given back with
+	 *         {@link #checkin(IFork)}
+	 * @throws ForkTimeoutException
+	 *             if no fork became available in time
+	 */
+	IFork checkout(long timeout, TimeUnit unit) throws ForkException,
+			ForkTimeoutException, BootstrapException {
+		if (closed) {
+			throw new ForkException("Fork pool has been closed");
+		}
+
+		ForkClient fork = idle.poll();
+		if (fork == null && reserve()) {
+			fork = startFork();
+		}
+		if (fork == null) {
+			try {
+				fork = idle.poll(timeout, unit);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new ForkException("Interrupted waiting for a fork", e);
+			}
+			if (fork == null) {
+				throw new ForkTimeoutException("No fork became available in "
+						+ timeout + " " + unit, (int) timeout, unit);
+			}
+		}
+
+		leased.add(fork);
+		refill();
+		return fork;
+	}
+
+	/**
+	 * Returns a fork to the pool. The fork is reset so the next user gets it
+	 * clean, forks that are no longer alive, are degraded or are still busy
+	 * with jobs are closed instead and a replacement is started.
+	 *
+	 * @param service
+	 *            fork handed out by {@link #checkout(long, TimeUnit)}
+	 */
+	void checkin(IFork service) {
+		if (!(service instanceof ForkClient) || !leased.remove(service)) {
+			throw new IllegalArgumentException(
+					"Fork was not checked out of this pool");
+		}
+		ForkClient fork = (ForkClient) service;
+
+		if (closed) {
+			retire(fork);
+			return;
+		}
+		if (!resetIfAlive(fork)) {
+			boolean wasReplaced;
+			synchronized (recycling) {
+				wasReplaced = replaced.remove(fork);
+			}
+			// A fork that died while checked out was already replaced, and a
+			// recycled one already has its replacement in its slot.
+			if (retire(fork) && !wasReplaced) {
+				manager.getMetrics().restarted();
+			}
+			refill();
+			return;
+		}
+
+		String reason = fork.getRecycleReason();
+		boolean retiring;
+		synchronized (recycling) {
+			retiring = replaced.remove(fork);
+			if (!retiring) {
+				if (reason != null && recycling.add(fork)) {
+					logger.info("Recycling pooled fork, it " + reason);
+					manager.launch(bootstrap, environment).whenComplete(
+							(replacement, failure) -> onReplacement(fork,
+									replacement, failure));
+				}
+				idle.offer(fork);
+			}
+		}
+		if (retiring) {
+			retire(fork);
+		}
+	}
+
+	/**
+	 * Swaps a recycled fork for its replacement, which takes over its slot.
+	 * The old fork is retired now if it is idle, or when it is returned.
+	 */
+	private void onReplacement(ForkClient old, ForkClient replacement,
+			Throwable failure) {
+		if (failure != null) {
+			synchronized (recycling) {
+				recycling.remove(old);
+			}
+			logger.log(Level.WARNING,
+					"Unable to start a replacement for a recycled fork, keeping it",
+					failure);
+			return;
+		}
+		boolean keep;
+		boolean retireOld = false;
+		synchronized (recycling) {
+			recycling.remove(old);
+			if (members.contains(old)) {
+				// Over the cap by one until the old fork is retired.
+				forkCount.incrementAndGet();
+				keep = true;
+				if (idle.remove(old)) {
+					retireOld = true;
+				} else {
+					replaced.add(old);
+				}
+			} else {
+				// The old fork died meanwhile and may already be replaced.
+				keep = reserve();
+			}
+		}
+		if (!keep) {
+			retire(replacement);
+			return;
+		}
+		adopt(replacement);
+		manager.getMetrics().recycled();
+		if (retireOld) {
+			retire(old);
+		}
+		if (closed) {
+			retire(replacement);
+			return;
+		}
+		idle.offer(replacement);
+	}
+
+	/**
+	 * Closes every idle fork, leased forks are closed as they are returned.
+	 */
+	void close() {
+		closed = true;
+		ForkClient fork;
+		while ((fork = idle.poll()) != null) {
+			retire(fork);
+		}
+	}
+
+	int getIdleCount() {
+		return idle.size();
+	}
+
+	int getForkCount() {
+		return forkCount.get();
+	}
+
+	/**
+	 * Starts forks in the background, side by side, until the idle forks plus
+	 * the ones already starting reach the idle count or we hit the cap.
+	 */
+	private void refill() {
+		while (!closed && idle.size() + refilling.get() < idleForks
+				&& reserve()) {
+			refilling.incrementAndGet();
+			manager.launch(bootstrap, environment)
+					.whenComplete(this::onRefilled);
+		}
+	}
+
+	private void onRefilled(ForkClient fork, Throwable failure) {
+		refilling.decrementAndGet();
+		if (failure != null) {
+			forkCount.decrementAndGet();
+			logger.log(Level.WARNING, "Unable to start pooled fork", failure);
+			return;
+		}
+		adopt(fork);
+		if (closed) {
+			retire(fork);
+			return;
+		}
+		idle.offer(fork);
+	}
+
+	/**
+	 * Counts a started fork as ours until it is retired or its process exits.
+	 */
+	private void adopt(final ForkClient fork) {
+		members.add(fork);
+		fork.onExit().thenRun(() -> onExited(fork));
+	}
+
+	/**
+	 * Drops a fork whose process exited without being retired and starts a
+	 * replacement in the background.
+	 */
+	private void onExited(ForkClient fork) {
+		idle.remove(fork);
+		synchronized (recycling) {
+			replaced.remove(fork);
+		}
+		if (!members.remove(fork)) {
+			return;
+		}
+		forkCount.decrementAndGet();
+		if (!closed) {
+			logger.warning("Pooled fork exited, starting a replacement");
+			manager.getMetrics().restarted();
+			refill();
+		}
+	}
+
+	/**
+	 * Takes a slot under the cap for a fork we are about to start.
+	 *
+	 * @return false if the pool is already at its cap
+	 */
+	private boolean reserve() {
+		while (true) {
+			int count = forkCount.get();
+			if (count >= maxForks) {
+				return false;
+			}
+			if (forkCount.compareAndSet(count, count + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Starts a fork in a slot already taken by {@link #reserve()}, giving the
+	 * slot back if the fork does not start.
+	 */
+	private ForkClient startFork() throws ForkException, BootstrapException {
+		boolean ok = false;
+		try {
+			ForkClient fork = new ForkClient(manager, bootstrap, environment);
+			ok = true;
+			adopt(fork);
+			return fork;
+		} catch (RemoteException e) {
+			throw new ForkException("Unable to start pooled fork", e);
+		} finally {
+			if (!ok) {
+				forkCount.decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Closes a fork and gives up its slot.
+	 * 
+	 * @return false if the fork had already left the pool
+	 */
+	private boolean retire(ForkClient fork) {
+		boolean member = members.remove(fork);
+		if (member) {
+			forkCount.decrementAndGet();
+		}
+		try {
+			fork.close();
+		} catch (RemoteException e) {
+			// Already gone, nothing left to clean up.
+		}
+		return member;
+	}
+
+	/**
+	 * Resets a fork that is fit to be handed out again.
+	 * 
+	 * @return false if the fork has to be closed
+	 */
+	private static boolean resetIfAlive(ForkClient fork) {
+		try {
+			return fork.alive() && fork.reset();
+		} catch (RemoteException e) {
+			return false;
+		}
+	}
+}
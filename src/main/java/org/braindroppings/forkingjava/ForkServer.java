@@ -16,25 +16,47 @@
  */
 package org.braindroppings.forkingjava;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
 import java.rmi.AccessException;
-import java.rmi.AlreadyBoundException;
+import java.rmi.MarshalException;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.logging.Logger;
 
+import com.sun.management.GcInfo;
+
 class ForkServer extends UnicastRemoteObject implements IForkServer,
 		IForkService {
 
@@ -45,50 +67,92 @@ class ForkServer extends UnicastRemoteObject implements IForkServer,
 			.getName());
 
 	/**
-	 * Number of seconds to wait before contacting client to see if it is still
-	 * avlive.
+	 * Seconds a closed server gives its jobs to finish before it exits
+	 * without them.
+	 */
+	static final int DEFAULT_DRAIN_TIMEOUT = 30;
+
+	/**
+	 * Seconds a cancelled job gets to notice its interrupt before we count it
+	 * as stuck.
 	 */
-	private static final int PING_INTERVAL = 10;
+	static final int CANCEL_GRACE = 5;
 
 	/**
-	 * This is needed because we want to return from our
+	 * This is needed because we want to return from our close call before we
+	 * exit. Lets the jobs that are running or queued finish, then exits as
+	 * soon as the replies still going out have been sent. Jobs still running
+	 * once the drain timeout is up are failed and die with us.
 	 * 
 	 * @author chinshaw
 	 * 
 	 */
 	class ShutdownThread extends Thread {
 
+		private final int drainTimeout;
+
+		ShutdownThread(int drainTimeout) {
+			super("fork-shutdown");
+			this.drainTimeout = drainTimeout;
+		}
+
 		public void run() {
+			long begin = System.nanoTime();
+			jobExecutor.shutdown();
 			try {
-				Thread.sleep(PING_INTERVAL * 2000);
+				if (!jobExecutor.awaitTermination(drainTimeout,
+						TimeUnit.SECONDS)) {
+					logger.warning("Jobs still running " + drainTimeout
+							+ " seconds after close, exiting without them");
+					for (Long jobId : jobs.keySet()) {
+						if (cancel(jobId)) {
+							reply(jobId, null, new ForkException(
+									"Fork closed before job " + jobId
+											+ " finished"));
+						}
+					}
+				}
 			} catch (InterruptedException e) {
+				// Exit straight away.
 			}
+			try {
+				endpoint.close();
+			} catch (IOException e) {
+				// Doesn't matter we're about to die.
+			}
+			logger.info("Closed in "
+					+ TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin)
+					+ "ms");
 			exit(0);
 		}
 	}
 
-	class PingThread extends Thread {
+	/**
+	 * Exits once the parent is gone. The parent holds the write end of our
+	 * stdin and never writes to it, however it dies the kernel closes it and
+	 * the blocked read returns end of file. Costs one parked thread and no
+	 * calls.
+	 */
+	static class ParentWatcher extends Thread {
 
-		IForkClient pingClient;
+		private final InputStream parent;
 
-		public PingThread(IForkClient client) {
-			this.pingClient = client;
+		ParentWatcher(InputStream parent) {
+			super("fork-parent-watcher");
+			setDaemon(true);
+			this.parent = parent;
 		}
 
 		public void run() {
-
-			while (true) {
-				try {
-					logger.finest("Doing ping");
-					pingClient.ping();
-					Thread.sleep(PING_INTERVAL * 1000);
-				} catch (RemoteException e) {
-					logger.warning("Calling close on forked server");
-					exit(0);
-				} catch (InterruptedException e) {
-					logger.warning("Hmm, caught an interrupted exception");
+			try {
+				while (parent.read() != -1) {
+					// Nothing is ever sent, keep waiting for the end.
 				}
+			} catch (IOException e) {
+				// Broken the same way as closed.
 			}
+			logger.warning("Parent has gone, exiting");
+			System.exit(0);
 		}
 	}
 
@@ -99,6 +163,187 @@ class ForkServer extends UnicastRemoteObject implements IForkServer,
 
 	private static String forkId;
 
+	/**
+	 * A job submitted with {@link ForkServer#submit}. Whoever takes it out of
+	 * the job table first, the job finishing, its timeout or a cancel, is the
+	 * one that reports on it.
+	 */
+	static class AsyncJob {
+
+		TrackedJob<Object> tracked;
+
+		FutureTask<Object> task;
+
+		volatile ScheduledFuture<?> timeout;
+
+		final SharedBuffer.Scope buffers = new SharedBuffer.Scope();
+	}
+
+	/**
+	 * Wraps a job so we know whether it is still running. A job that keeps
+	 * running after it was cancelled holds on to one of our job threads, the
+	 * server reports itself degraded for as long as it does.
+	 */
+	class TrackedJob<T> implements Callable<T> {
+
+		private final String name;
+
+		private final Callable<T> job;
+
+		private volatile boolean started = false;
+
+		private volatile boolean finished = false;
+
+		/**
+		 * What happens to what the job writes, set before it runs.
+		 */
+		JobOutputCapture.Mode outputMode = JobOutputCapture.Mode.TAG;
+
+		/**
+		 * Id a streamed job's output is sent to the client with.
+		 */
+		long outputJobId = 0;
+
+		TrackedJob(String name, Callable<T> job) {
+			this.name = name;
+			this.job = job;
+		}
+
+		public T call() throws Exception {
+			started = true;
+			runningJobs.incrementAndGet();
+			JobOutputCapture.Capture output = JobOutputCapture.begin(name,
+					outputMode, client, outputJobId);
+			try {
+				return job.call();
+			} finally {
+				JobOutputCapture.end(output);
+				runningJobs.decrementAndGet();
+				finished = true;
+				if (stuckJobs.remove(this)) {
+					logger.info(name + " stopped after being cancelled");
+				}
+			}
+		}
+
+		/**
+		 * Runs after the grace period of a cancel, the job is put down as
+		 * stuck first and taken off again if it finished meanwhile so a job
+		 * that finishes right now is never left behind as stuck.
+		 */
+		void checkStopped() {
+			if (!started || finished) {
+				return;
+			}
+			stuckJobs.add(this);
+			if (finished) {
+				stuckJobs.remove(this);
+			} else {
+				logger.warning(name + " ignored its interrupt and is still running "
+						+ CANCEL_GRACE + " seconds after being cancelled");
+			}
+		}
+	}
+
+	/**
+	 * Sink handed to a {@link StreamingOperation}, sends what it emits to the
+	 * client a chunk at a time on the job's own thread. The client blocks the
+	 * call while its buffer is full, which is what holds the job back.
+	 */
+	static class StreamSink<T extends Serializable> implements ResultSink<T> {
+
+		private final IForkClient client;
+
+		private final long jobId;
+
+		private final int chunkSize;
+
+		private ArrayList<T> chunk;
+
+		StreamSink(IForkClient client, long jobId, int chunkSize) {
+			this.client = client;
+			this.jobId = jobId;
+			this.chunkSize = Math.max(1, chunkSize);
+			this.chunk = new ArrayList<T>(this.chunkSize);
+		}
+
+		public void emit(T item) throws ForkException, InterruptedException {
+			chunk.add(item);
+			if (chunk.size() >= chunkSize) {
+				flush();
+			}
+		}
+
+		public void flush() throws ForkException, InterruptedException {
+			if (chunk.isEmpty()) {
+				return;
+			}
+			boolean open;
+			try {
+				open = client.onStreamChunk(jobId, chunk);
+			} catch (RemoteException e) {
+				throw new ForkException("Unable to send stream to client", e);
+			}
+			chunk = new ArrayList<T>(chunkSize);
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			if (!open) {
+				throw new ForkException("Client closed the stream");
+			}
+		}
+	}
+
+	/**
+	 * The client that started us, jobs submitted with {@link #submit} report
+	 * back to it.
+	 */
+	private transient IForkClient client;
+
+	/**
+	 * Our end of the transport to the client.
+	 */
+	private transient ForkTransport.ServerEndpoint endpoint;
+
+	/**
+	 * Threads that run submitted jobs, there are as many as we allow jobs to
+	 * run at once. Replaced with fresh threads when the server is reset.
+	 */
+	private transient volatile ThreadPoolExecutor jobExecutor = newJobExecutor();
+
+	/**
+	 * Fires the timeouts of submitted jobs.
+	 */
+	private final transient ScheduledThreadPoolExecutor jobTimer = new ScheduledThreadPoolExecutor(
+			1, new DaemonThreadFactory("fork-job-timer"));
+
+	/**
+	 * Submitted jobs that have not been reported yet, by the client's job id.
+	 */
+	private final transient Map<Long, AsyncJob> jobs = new ConcurrentHashMap<Long, AsyncJob>();
+
+	/**
+	 * Cancelled jobs still running past their grace period.
+	 */
+	private final transient Set<TrackedJob<?>> stuckJobs = ConcurrentHashMap
+			.newKeySet();
+
+	/**
+	 * Jobs on the job threads right now, a job leaves before its result is
+	 * handed back.
+	 */
+	private final transient AtomicInteger runningJobs = new AtomicInteger();
+
+	/**
+	 * Set once we have been closed, no more jobs are taken.
+	 */
+	private transient volatile boolean closing = false;
+
+	/**
+	 * System properties as they were when we started, a reset puts them back.
+	 */
+	private transient Properties startupProperties;
+
 	protected ForkServer() throws RemoteException {
 		this(UUID.randomUUID().toString());
 	}
@@ -106,34 +351,85 @@ class ForkServer extends UnicastRemoteObject implements IForkServer,
 	protected ForkServer(String forkId) throws RemoteException {
 		super();
 		ForkServer.forkId = forkId;
+		jobTimer.setRemoveOnCancelPolicy(true);
 	}
 
-	public void start() throws AccessException, RemoteException,
-			AlreadyBoundException {
-		String serverId = getIdentifier();
+	/**
+	 * Reads the number of jobs we may run at once from
+	 * {@link Constants#MAX_CONCURRENT_JOBS_PROPERTY}, defaulting to the number
+	 * of processors.
+	 */
+	private static int getMaxConcurrentJobs() {
+		return Integer.getInteger(Constants.MAX_CONCURRENT_JOBS_PROPERTY,
+				Runtime.getRuntime().availableProcessors());
+	}
 
-		if (System.getSecurityManager() == null) {
-			System.setSecurityManager(new SecurityManager());
+	private static ThreadPoolExecutor newJobExecutor() {
+		int threads = getMaxConcurrentJobs();
+		return new ThreadPoolExecutor(threads, threads, 0,
+				TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+				new DaemonThreadFactory("fork-job"));
+	}
+
+	/**
+	 * @throws ForkException
+	 *             once we have been closed
+	 */
+	private void checkOpen() throws ForkException {
+		if (closing) {
+			throw new ForkException("Fork is closing");
 		}
+	}
 
-		Registry registry = LocateRegistry
-				.getRegistry(Constants.RMI_CONNECTION_PORT);
+	/**
+	 * Hands a job to the job threads.
+	 * 
+	 * @throws ForkException
+	 *             if we were closed meanwhile
+	 */
+	private <T> Future<T> run(TrackedJob<T> job) throws ForkException {
+		try {
+			return jobExecutor.submit(job);
+		} catch (RejectedExecutionException e) {
+			throw new ForkException("Fork is closing", e);
+		}
+	}
 
-		registry.bind(serverId, this);
+	public void start() throws IOException, NotBoundException {
+		if (System.getSecurityManager() == null) {
+			System.setSecurityManager(new SecurityManager());
+		}
+		startupProperties = (Properties) System.getProperties().clone();
 
-		IForkClient client = null;
 		try {
-			client = (IForkClient) LocateRegistry.getRegistry(
-					Constants.RMI_CONNECTION_PORT).lookup(
-					forkId + IForkClient.TYPE_IDENTIFIER);
-			logger.info("Contacting client");
-			client.onServerStarted(serverId);
+			endpoint = createTransport().connect(forkId, this);
+		} catch (IOException e) {
+			logger.info("Problem connecting to client and we are going to die now "
+					+ e);
+			exit(-1);
+		}
 
-			new PingThread(client).start();
+		client = endpoint.getClient();
+		ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+		if (classLoader instanceof RemoteClassLoader) {
+			((RemoteClassLoader) classLoader).setClient(client);
+		}
+		logger.info("Contacting client");
+		client.onServerStarted(endpoint.getServerId());
+	}
 
-		} catch (NotBoundException e) {
-			logger.info("Problem binding to client and we are going to die now");
-			exit(-1);
+	/**
+	 * Creates the transport named by {@link Constants#TRANSPORT_PROPERTY},
+	 * rmi if none was given.
+	 */
+	private static ForkTransport createTransport() throws IOException {
+		String name = System.getProperty(Constants.TRANSPORT_PROPERTY,
+				RmiTransport.class.getName());
+		try {
+			return (ForkTransport) Class.forName(name).getDeclaredConstructor()
+					.newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new IOException("Unable to create transport " + name, e);
 		}
 	}
 
@@ -158,7 +454,12 @@ class ForkServer extends UnicastRemoteObject implements IForkServer,
 	 *             if the server could not be started
 	 */
 	public static void main(String[] args) throws Exception {
-		String generatedId = args[0];
+		if (args.length > 0 && Constants.CDS_TRAINING_ARGUMENT.equals(args[0])) {
+			train(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+
+		String generatedId = args.length > 0 ? args[args.length - 1] : null;
 
 		if (generatedId == null) {
 			throw new ForkException(
@@ -172,6 +473,27 @@ class ForkServer extends UnicastRemoteObject implements IForkServer,
 					"Forked server must have a valid uuid to start so that it can bind to client, the id sent was -> "
 							+ generatedId, e);
 		}
+		// Jobs get an empty stdin, the real one only tells us the parent died.
+		new ParentWatcher(System.in).start();
+		System.setIn(new ByteArrayInputStream(new byte[0]));
+
+		// Rmi and the codecs resolve classes through the context class loader
+		// of the threads they read on, which inherit it from here or are
+		// handed it when the server is exported.
+		RemoteClassLoader classLoader = RemoteClassLoader.fromSystemProperties();
+		if (classLoader != null) {
+			Thread.currentThread().setContextClassLoader(classLoader);
+		}
+
+		// Needs to happen before the security manager is in place.
+		JobOutputCapture.install(Integer.getInteger(
+				Constants.JOB_OUTPUT_LIMIT_PROPERTY,
+				JobOutputCapture.DEFAULT_LIMIT));
+
+		SharedBuffer.handOverAllocations();
+		final long pid = ProcessHandle.current().pid();
+		Runtime.getRuntime().addShutdownHook(
+				new Thread(() -> SharedBuffer.deleteAll(pid)));
 		try {
 			new ForkServer(generatedId).start();
 		} catch (Error e) {
@@ -181,6 +503,33 @@ class ForkServer extends UnicastRemoteObject implements IForkServer,
 
 	}
 
+	/**
+	 * Loads the classes a server loads while starting and serving, without
+	 * talking to a client, so a class data sharing archive can be dumped when
+	 * we exit.
+	 * 
+	 * @param classNames
+	 *            extra classes to load, normally the user's job classes
+	 */
+	private static void train(String[] classNames) throws Exception {
+		ForkServer server = new ForkServer();
+		ObjectOutputStream output = new ObjectOutputStream(
+				new ByteArrayOutputStream());
+		output.writeObject(UnicastRemoteObject.toStub(server));
+		output.close();
+		RmiTransport.decode(RmiTransport.encode(server));
+		UnicastRemoteObject.unexportObject(server, true);
+
+		for (String className : classNames) {
+			try {
+				Class.forName(className);
+			} catch (ClassNotFoundException e) {
+				logger.warning("Training class not found " + className);
+			}
+		}
+		System.exit(0);
+	}
+
 	/**
 	 * If you get here we will simply return true. The server will close on most
 	 * errors so if this returns then you can be pretty sure it is ready to go.
@@ -218,9 +567,11 @@ class ForkServer extends UnicastRemoteObject implements IForkServer,
 
 	/**
 	 * This will execute a {@link Callable} job in this process vs the server.
-	 * It will attempt to execute for as long as the timer is set for. If the
-	 * timout occurrs we will try to kill the job but the client will be in
-	 * charge of killing this process or calling close.
+	 * It runs on one of the job threads and will attempt to execute for as
+	 * long as the timer is set for, time spent waiting for a free job thread
+	 * included. If the timeout occurs the job is cancelled and interrupted, a
+	 * job that ignores the interrupt leaves us degraded, see
+	 * {@link #isDegraded()}.
 	 * 
 	 * @parm {@link Callable} operation that will execute as a job on the
 	 *       server.
@@ -230,59 +581,374 @@ class ForkServer extends UnicastRemoteObject implements IForkServer,
 	 *         server.
 	 * @throws ForkTimeoutException
 	 */
-	public <T extends Serializable> T execute(RemoteOperation<T> callable,
-			int timeout) throws ForkException, ForkTimeoutException {
-		ExecutorService executorService = Executors.newSingleThreadExecutor();
-		Future<T> future = executorService.submit(callable);
+	public <T extends Serializable> T execute(
+			final RemoteOperation<T> callable, int timeout)
+			throws ForkException, ForkTimeoutException {
+		checkOpen();
+		final SharedBuffer.Scope buffers = new SharedBuffer.Scope();
+		TrackedJob<T> job = new TrackedJob<T>("Job " + callable,
+				() -> buffers.call(callable));
+		if (callable instanceof MeteredOperation) {
+			job.outputMode = JobOutputCapture.Mode.HOLD;
+		}
+		Future<T> future = run(job);
 
-		T result = null;
 		try {
-			result = future.get(timeout, TimeUnit.SECONDS);
+			return future.get(timeout, TimeUnit.SECONDS);
 		} catch (TimeoutException e) {
+			cancelJob(future, job);
+			buffers.release();
 			throw new ForkTimeoutException(
 					"Your job timed out, it took longer than " + timeout
 							+ " seconds to complete", e);
 		} catch (ExecutionException e) {
+			buffers.release();
 			throw new ForkException("Unable to execute task ", e.getCause());
 		} catch (InterruptedException e) {
-			logger.warning("The job was interrupted but what do we do");
-		} catch (Error e) {
-			System.out.println("ERROR OCCURRED " + e);
-			throw new ForkException("Unable to complete execution of task ",
-					e.getCause());
+			cancelJob(future, job);
+			buffers.release();
+			Thread.currentThread().interrupt();
+			throw new ForkException("Interrupted waiting for the job", e);
+		}
+	}
+
+	/**
+	 * Cancels and interrupts a job, then checks on it once its grace period
+	 * is up.
+	 */
+	private void cancelJob(Future<?> future, final TrackedJob<?> job) {
+		if (future.cancel(true)) {
+			jobTimer.schedule(job::checkStopped, CANCEL_GRACE, TimeUnit.SECONDS);
 		}
+	}
+
+	/**
+	 * @return true while a cancelled job is still holding a job thread
+	 * @see IForkService#isDegraded()
+	 */
+	public boolean isDegraded() {
+		return !stuckJobs.isEmpty();
+	}
+
+	/**
+	 * @see IForkService#executeWithStats(RemoteOperation, int)
+	 */
+	public <T extends Serializable> JobResult<T> executeWithStats(
+			RemoteOperation<T> callable, int timeout) throws ForkException,
+			ForkTimeoutException {
+		return execute(new MeteredOperation<T>(callable), timeout);
+	}
+
+	/**
+	 * @see IForkServer#submitWithStats(long, RemoteOperation, int)
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public void submitWithStats(long jobId,
+			RemoteOperation<? extends Serializable> operation, int timeout) {
+		submit(jobId, new MeteredOperation(operation), timeout, false);
+	}
+
+	/**
+	 * @see IForkServer#submitWithOutput(long, RemoteOperation, int)
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public void submitWithOutput(long jobId,
+			RemoteOperation<? extends Serializable> operation, int timeout) {
+		submit(jobId, new MeteredOperation(operation), timeout, true);
+	}
 
-		return result;
+	/**
+	 * @see IForkServer#submit(long, RemoteOperation, int)
+	 */
+	public void submit(long jobId,
+			RemoteOperation<? extends Serializable> operation, int timeout) {
+		submit(jobId, operation, timeout, false);
 	}
 
 	/**
-	 * Allows us to add a classpath to the class path for this service, this
-	 * should be in the form of a url
+	 * @param streamOutput
+	 *            whether what the job writes is sent to the client while it
+	 *            runs
 	 */
+	private void submit(final long jobId,
+			final RemoteOperation<? extends Serializable> operation,
+			final int timeout, boolean streamOutput) {
+		if (closing) {
+			reply(jobId, null, new ForkException("Fork is closing"));
+			return;
+		}
+		final AsyncJob job = new AsyncJob();
+		job.tracked = new TrackedJob<Object>("Job " + jobId, () -> {
+			Serializable result;
+			try {
+				result = job.buffers.call(operation);
+			} catch (Throwable e) {
+				job.buffers.release();
+				finishJob(jobId, null, new ForkException(
+						"Unable to execute task ", e));
+				return null;
+			}
+			if (!finishJob(jobId, result, null)) {
+				job.buffers.release();
+			}
+			return null;
+		});
+		if (streamOutput) {
+			job.tracked.outputMode = JobOutputCapture.Mode.STREAM;
+		} else if (operation instanceof MeteredOperation) {
+			job.tracked.outputMode = JobOutputCapture.Mode.HOLD;
+		}
+		job.tracked.outputJobId = jobId;
+		job.task = new FutureTask<Object>(job.tracked);
+		jobs.put(jobId, job);
+
+		job.timeout = jobTimer.schedule(() -> {
+			if (jobs.remove(jobId) != null) {
+				cancelJob(job.task, job.tracked);
+				job.buffers.release();
+				reply(jobId, null, new ForkTimeoutException(
+						"Your job timed out, it took longer than " + timeout
+								+ " seconds to complete", timeout,
+						TimeUnit.SECONDS));
+			}
+		}, timeout, TimeUnit.SECONDS);
+
+		try {
+			jobExecutor.execute(job.task);
+		} catch (RejectedExecutionException e) {
+			if (cancel(jobId)) {
+				reply(jobId, null, new ForkException("Fork is closing", e));
+			}
+		}
+	}
+
+	/**
+	 * @see IForkService#executeBatch(List, int)
+	 */
+	public <T extends Serializable> List<BatchResult<T>> executeBatch(
+			List<? extends RemoteOperation<T>> operations, int timeout)
+			throws ForkException {
+		return executeBatch(operations, timeout, getMaxConcurrentJobs());
+	}
+
+	/**
+	 * Runs the batch on the job threads. Each of the <code>parallelism</code>
+	 * lanes keeps taking the next operation off the batch until none are
+	 * left, so a batch of hundreds of small operations costs a handful of
+	 * tasks rather than one each.
+	 * 
+	 * @see IForkService#executeBatch(List, int, int)
+	 */
+	public <T extends Serializable> List<BatchResult<T>> executeBatch(
+			final List<? extends RemoteOperation<T>> operations, int timeout,
+			int parallelism) throws ForkException {
+		checkOpen();
+		final int size = operations.size();
+		final AtomicReferenceArray<BatchResult<T>> results = new AtomicReferenceArray<BatchResult<T>>(
+				size);
+		final AtomicInteger next = new AtomicInteger();
+
+		List<Future<?>> lanes = new ArrayList<Future<?>>();
+		List<TrackedJob<?>> tracked = new ArrayList<TrackedJob<?>>();
+		for (int i = 0; i < Math.min(Math.max(parallelism, 1), size); i++) {
+			TrackedJob<Object> lane = new TrackedJob<Object>("Batch lane " + i,
+					() -> {
+				int index;
+				while (!Thread.currentThread().isInterrupted()
+						&& (index = next.getAndIncrement()) < size) {
+					SharedBuffer.Scope buffers = new SharedBuffer.Scope();
+					BatchResult<T> result = runBatchOperation(
+							operations.get(index), buffers);
+					if (!results.compareAndSet(index, null, result)
+							|| !result.isSuccess()) {
+						buffers.release();
+					}
+				}
+				return null;
+			});
+			tracked.add(lane);
+			lanes.add(run(lane));
+		}
+
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeout);
+		try {
+			for (Future<?> lane : lanes) {
+				lane.get(Math.max(0, deadline - System.nanoTime()),
+						TimeUnit.NANOSECONDS);
+			}
+		} catch (TimeoutException e) {
+			logger.warning("Batch of " + size + " timed out after " + timeout
+					+ " seconds");
+		} catch (ExecutionException e) {
+			throw new ForkException("Unable to execute batch ", e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ForkException("Interrupted executing batch", e);
+		} finally {
+			// Unfinished operations are claimed as timed out before the lanes
+			// are interrupted, so an interrupted operation can not report its
+			// own failure instead.
+			for (int i = 0; i < size; i++) {
+				if (results.get(i) == null) {
+					results.compareAndSet(i, null, BatchResult
+							.<T> failed(new ForkTimeoutException(
+									"Batch timed out before operation " + i
+											+ " completed", timeout,
+									TimeUnit.SECONDS)));
+				}
+			}
+			for (int i = 0; i < lanes.size(); i++) {
+				cancelJob(lanes.get(i), tracked.get(i));
+			}
+		}
+
+		List<BatchResult<T>> batch = new ArrayList<BatchResult<T>>(size);
+		for (int i = 0; i < size; i++) {
+			batch.add(results.get(i));
+		}
+		return batch;
+	}
+
+	private static <T extends Serializable> BatchResult<T> runBatchOperation(
+			RemoteOperation<T> operation, SharedBuffer.Scope buffers) {
+		try {
+			return BatchResult.succeeded(buffers.call(operation));
+		} catch (Throwable e) {
+			return BatchResult.failed(new ForkException(
+					"Unable to execute task ", e));
+		}
+	}
+
+	/**
+	 * @see IForkServer#submitStream(long, StreamingOperation, int, int)
+	 */
+	public void submitStream(final long jobId,
+			final StreamingOperation<? extends Serializable> operation,
+			int timeout, final int chunkSize) {
+		submit(jobId, () -> {
+			runStream(operation, new StreamSink<>(client, jobId, chunkSize));
+			return null;
+		}, timeout);
+	}
+
+	private static <T extends Serializable> void runStream(
+			StreamingOperation<T> operation, StreamSink<T> sink)
+			throws Exception {
+		operation.run(sink);
+		sink.flush();
+	}
+
+	/**
+	 * @see IForkServer#cancel(long)
+	 */
+	public boolean cancel(long jobId) {
+		AsyncJob job = jobs.remove(jobId);
+		if (job == null) {
+			return false;
+		}
+		if (job.timeout != null) {
+			job.timeout.cancel(false);
+		}
+		cancelJob(job.task, job.tracked);
+		job.buffers.release();
+		return true;
+	}
+
+	/**
+	 * Reports a submitted job unless it has already timed out or been
+	 * cancelled.
+	 * 
+	 * @return true if the client got the result
+	 */
+	private boolean finishJob(long jobId, Serializable result,
+			Throwable failure) {
+		AsyncJob job = jobs.remove(jobId);
+		if (job == null) {
+			return false;
+		}
+		if (job.timeout != null) {
+			job.timeout.cancel(false);
+		}
+		return reply(jobId, result, failure);
+	}
+
+	/**
+	 * @return true if the client got the result or failure
+	 */
+	private boolean reply(long jobId, Serializable result, Throwable failure) {
+		try {
+			if (failure == null) {
+				client.onJobCompleted(jobId, result);
+			} else {
+				client.onJobFailed(jobId, failure);
+			}
+			return true;
+		} catch (MarshalException e) {
+			// The result or failure could not be sent, at least tell the
+			// client why.
+			try {
+				client.onJobFailed(jobId, new ForkException(
+						"Unable to return result of job " + jobId + " "
+								+ e.getMessage()));
+			} catch (RemoteException again) {
+				logger.warning("Unable to report job " + jobId + " to client");
+			}
+		} catch (RemoteException e) {
+			logger.warning("Unable to report job " + jobId + " to client");
+		}
+		return false;
+	}
+
+	/**
+	 * Always fails, the system class loader can not take more entries since
+	 * java 9.
+	 *
+	 * @throws IOException
+	 *             naming {@link IsolatedOperation} instead
+	 */
+	@Deprecated
 	public void addClassPath(String classPath) throws IOException,
 			RemoteException {
-		ClassPathHacker.addFile(classPath);
+		throw new IOException("Unable to add " + classPath
+				+ " to the fork's classpath, run the job as an IsolatedOperation");
 	}
 
 	/**
-	 * Close the server essentially calls close.
-	 * 
-	 * @throws NotBoundException
+	 * Close the server, giving running jobs the default drain timeout.
 	 * 
+	 * @see #shutdown(int)
 	 * @see IForkService#close()
 	 */
 	public void close() {
+		shutdown(DEFAULT_DRAIN_TIMEOUT);
+	}
 
-		Registry registry;
-		try {
-			registry = LocateRegistry
-					.getRegistry(Constants.RMI_CONNECTION_PORT);
-			registry.unbind(getIdentifier());
-		} catch (Exception e) {
-			// Doesn't matter we're about to die.
+	/**
+	 * @see IForkServer#shutdown(int)
+	 */
+	public synchronized void shutdown(int drainTimeout) {
+		if (closing) {
+			return;
 		}
+		closing = true;
+		new ShutdownThread(drainTimeout).start();
+	}
 
-		new ShutdownThread().start();
+	/**
+	 * @see IForkServer#reset()
+	 */
+	public synchronized boolean reset() {
+		if (closing || !jobs.isEmpty() || isDegraded()
+				|| runningJobs.get() > 0 || !jobExecutor.getQueue().isEmpty()) {
+			return false;
+		}
+		System.setProperties((Properties) startupProperties.clone());
+
+		// Whatever the jobs left in thread locals goes with their threads.
+		ThreadPoolExecutor used = jobExecutor;
+		jobExecutor = newJobExecutor();
+		used.shutdown();
+		return true;
 	}
 
 	public long totalMemory() {
@@ -297,6 +963,40 @@ class ForkServer extends UnicastRemoteObject implements IForkServer,
 		return Runtime.getRuntime().freeMemory();
 	}
 
+	/**
+	 * Reads what the heap pools held after the most recent collection, young
+	 * or full. Free minus total memory counts garbage not collected yet and
+	 * the pools' own collection usage only moves with full collections.
+	 * 
+	 * @see IForkServer#getHeapUsedAfterGc()
+	 */
+	public long getHeapUsedAfterGc() {
+		GcInfo last = null;
+		for (GarbageCollectorMXBean collector : ManagementFactory
+				.getGarbageCollectorMXBeans()) {
+			if (collector instanceof com.sun.management.GarbageCollectorMXBean) {
+				GcInfo info = ((com.sun.management.GarbageCollectorMXBean) collector)
+						.getLastGcInfo();
+				if (info != null
+						&& (last == null || info.getEndTime() > last.getEndTime())) {
+					last = info;
+				}
+			}
+		}
+		if (last == null) {
+			return totalMemory() - freeMemory();
+		}
+		Map<String, MemoryUsage> after = last.getMemoryUsageAfterGc();
+		long used = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			MemoryUsage usage = after.get(pool.getName());
+			if (pool.getType() == MemoryType.HEAP && usage != null) {
+				used += usage.getUsed();
+			}
+		}
+		return used;
+	}
+
 	/**
 	 * Close the forked server.
 	 * 
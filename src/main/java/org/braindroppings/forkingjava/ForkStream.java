@@ -0,0 +1,277 @@
+package org.braindroppings.forkingjava;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Client side of a {@link StreamingOperation}. Chunks sent by the fork are
+ * held in a buffer of a fixed number of chunks, when it is full the fork's
+ * next chunk waits and with it the job. Read the items either through the
+ * {@link Iterator} methods or by subscribing once as a {@link Flow.Publisher}.
+ * 
+ * @author chinshaw
+ */
+public class ForkStream<T extends Serializable> implements Iterator<T>,
+		Flow.Publisher<T>, AutoCloseable {
+
+	/**
+	 * Items sent to the client per chunk unless asked otherwise.
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 256;
+
+	/**
+	 * Chunks the client buffers before the fork has to wait.
+	 */
+	public static final int DEFAULT_BUFFERED_CHUNKS = 4;
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private final Condition notEmpty = lock.newCondition();
+
+	private final Condition notFull = lock.newCondition();
+
+	private final ArrayDeque<List<T>> chunks = new ArrayDeque<List<T>>();
+
+	private final int bufferedChunks;
+
+	/**
+	 * Called when the stream is closed before the job finished, cancels the
+	 * job in the fork.
+	 */
+	private final Runnable onClose;
+
+	private final AtomicBoolean subscribed = new AtomicBoolean();
+
+	private boolean finished = false;
+
+	private boolean closed = false;
+
+	private Throwable failure;
+
+	private Iterator<T> current = Collections.<T> emptyList().iterator();
+
+	ForkStream(int bufferedChunks, Runnable onClose) {
+		this.bufferedChunks = Math.max(1, bufferedChunks);
+		this.onClose = onClose;
+	}
+
+	/**
+	 * Adds a chunk from the fork, waiting while the buffer is full.
+	 * 
+	 * @return false once the stream has been closed or finished and the job
+	 *         should stop
+	 */
+	boolean offer(List<T> chunk) throws InterruptedException {
+		lock.lock();
+		try {
+			while (chunks.size() >= bufferedChunks && !finished && !closed) {
+				notFull.await();
+			}
+			if (finished || closed) {
+				return false;
+			}
+			chunks.add(chunk);
+			notEmpty.signalAll();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Marks the end of the stream. A chunk from the fork still waiting for
+	 * room is refused, so the call it came in on is let go.
+	 * 
+	 * @param failure
+	 *            why the job failed or null if it completed
+	 */
+	void finish(Throwable failure) {
+		lock.lock();
+		try {
+			this.finished = true;
+			this.failure = failure;
+			notFull.signalAll();
+			notEmpty.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the next chunk or null at the end of the stream
+	 */
+	private List<T> takeChunk() throws InterruptedException {
+		lock.lock();
+		try {
+			while (chunks.isEmpty() && !finished && !closed) {
+				notEmpty.await();
+			}
+			List<T> chunk = chunks.poll();
+			notFull.signalAll();
+			return chunk;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Blocks until another item arrives or the stream ends.
+	 * 
+	 * @throws IllegalStateException
+	 *             if the job failed, with the failure as the cause
+	 */
+	public boolean hasNext() {
+		while (!current.hasNext()) {
+			List<T> chunk;
+			try {
+				chunk = takeChunk();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException(
+						"Interrupted waiting for the stream", e);
+			}
+			if (chunk == null) {
+				lock.lock();
+				try {
+					if (failure != null) {
+						throw new IllegalStateException("Streaming job failed",
+								failure);
+					}
+				} finally {
+					lock.unlock();
+				}
+				return false;
+			}
+			current = chunk.iterator();
+		}
+		return true;
+	}
+
+	public T next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		return current.next();
+	}
+
+	/**
+	 * Stops the stream, a job that is still running is cancelled and buffered
+	 * chunks are dropped.
+	 */
+	public void close() {
+		boolean running;
+		lock.lock();
+		try {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			running = !finished;
+			chunks.clear();
+			notFull.signalAll();
+			notEmpty.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		if (running) {
+			onClose.run();
+		}
+	}
+
+	/**
+	 * Delivers the stream to a single subscriber on its own thread, items are
+	 * only taken from the buffer as the subscriber requests them so a slow
+	 * subscriber slows the job down.
+	 */
+	public void subscribe(Flow.Subscriber<? super T> subscriber) {
+		if (!subscribed.compareAndSet(false, true)) {
+			subscriber.onSubscribe(new Subscription(subscriber));
+			subscriber.onError(new IllegalStateException(
+					"A fork stream can only be subscribed to once"));
+			return;
+		}
+		Subscription subscription = new Subscription(subscriber);
+		subscriber.onSubscribe(subscription);
+		Thread delivery = new Thread(subscription::deliver, "fork-stream");
+		delivery.setDaemon(true);
+		delivery.start();
+	}
+
+	private class Subscription implements Flow.Subscription {
+
+		private final Flow.Subscriber<? super T> subscriber;
+
+		private long demand = 0;
+
+		private boolean cancelled = false;
+
+		/**
+		 * Set when the subscriber broke the rules, reported from the delivery
+		 * thread so it never races an onNext.
+		 */
+		private Throwable error;
+
+		Subscription(Flow.Subscriber<? super T> subscriber) {
+			this.subscriber = subscriber;
+		}
+
+		public synchronized void request(long n) {
+			if (n <= 0) {
+				cancelled = true;
+				error = new IllegalArgumentException("Requested " + n
+						+ " items");
+			} else {
+				demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+			}
+			notifyAll();
+		}
+
+		public synchronized void cancel() {
+			cancelled = true;
+			notifyAll();
+		}
+
+		private synchronized boolean awaitDemand() throws InterruptedException {
+			while (demand == 0 && !cancelled) {
+				wait();
+			}
+			if (cancelled) {
+				return false;
+			}
+			demand--;
+			return true;
+		}
+
+		private synchronized Throwable getError() {
+			return error;
+		}
+
+		void deliver() {
+			try {
+				while (awaitDemand()) {
+					if (!hasNext()) {
+						subscriber.onComplete();
+						return;
+					}
+					subscriber.onNext(next());
+				}
+				close();
+				if (getError() != null) {
+					subscriber.onError(getError());
+				}
+			} catch (IllegalStateException e) {
+				subscriber.onError(e.getCause() != null ? e.getCause() : e);
+			} catch (InterruptedException e) {
+				close();
+			}
+		}
+	}
+}
@@ -24,6 +24,8 @@ public class ForkTimeoutException extends Exception {
 
 	public ForkTimeoutException(String message, int timeout, TimeUnit unit) {
 		super(message);
+		this.timtout = timeout;
+		this.unit = unit;
 	}
 
 	public int getTimtout() {
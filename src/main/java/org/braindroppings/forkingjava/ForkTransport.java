@@ -0,0 +1,96 @@
+package org.braindroppings.forkingjava;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.List;
+
+/**
+ * Carries the calls between a {@link ForkClient} and its {@link ForkServer}.
+ * The parent exports the client before the fork is started and the fork
+ * connects back once it is up, then each side calls the other through the
+ * {@link IForkService}, {@link IForkServer} and {@link IForkClient}
+ * interfaces. The fork creates its transport from the class name in
+ * {@link Constants#TRANSPORT_PROPERTY} so implementations need a public no
+ * argument constructor and must be on the fork's classpath.
+ * 
+ * @see RmiTransport
+ * @see UnixSocketTransport
+ * @author chinshaw
+ */
+public interface ForkTransport {
+
+	/**
+	 * Parent side, makes the client reachable by the fork that is about to be
+	 * started.
+	 * 
+	 * @param forkId
+	 *            id shared by the client and the fork
+	 * @param client
+	 *            the client the fork will call back
+	 */
+	public ClientEndpoint export(String forkId, IForkClient client)
+			throws IOException;
+
+	/**
+	 * Fork side, makes the server reachable and connects to the client that
+	 * started us.
+	 * 
+	 * @param forkId
+	 *            id shared by the client and the fork
+	 * @param server
+	 *            the server the client will call
+	 */
+	public ServerEndpoint connect(String forkId, IForkServer server)
+			throws IOException;
+
+	/**
+	 * The parent's end of one fork's connection.
+	 */
+	public interface ClientEndpoint extends Closeable {
+
+		/**
+		 * @return jvm options the fork needs to find the client, they go in
+		 *         front of <code>-jar</code>
+		 */
+		public List<String> getArguments();
+
+		/**
+		 * Called once the fork has reported in through
+		 * {@link IForkClient#onServerStarted(String)}.
+		 * 
+		 * @param serverId
+		 *            what the fork's {@link ServerEndpoint#getServerId()}
+		 *            returned
+		 * @return the server, which implements both {@link IForkService} and
+		 *         {@link IForkServer}
+		 */
+		public IForkService getServer(String serverId) throws RemoteException,
+				NotBoundException;
+	}
+
+	/**
+	 * The fork's end of its connection. It is closed just before the fork
+	 * exits: closing waits for the replies still being sent, up to
+	 * {@link #REPLY_WAIT} milliseconds, then stops taking calls.
+	 */
+	public interface ServerEndpoint extends Closeable {
+
+		/**
+		 * Milliseconds closing waits for replies that are still going out.
+		 */
+		public static final long REPLY_WAIT = 2000;
+
+		/**
+		 * @return the client, calls on it go to the parent
+		 */
+		public IForkClient getClient();
+
+		/**
+		 * @return what the fork reports in with, whatever the client's end
+		 *         needs to reach the server
+		 */
+		public String getServerId();
+	}
+}
@@ -9,14 +9,11 @@ public class ForkUtils {
 	public static void pipe(final InputStream src, final PrintStream dest) {
 		new Thread(new Runnable() {
 			public void run() {
+				byte[] buffer = new byte[8192];
 				int n;
 				try {
-					while ((n = src.available()) > 0) {
-						byte[] b = new byte[n];
-						n = src.read(b);
-						if (n > 0) {
-							dest.write(b, 0, n);
-						}
+					while ((n = src.read(buffer)) != -1) {
+						dest.write(buffer, 0, n);
 					}
 				} catch (IOException e) {
 					e.printStackTrace();
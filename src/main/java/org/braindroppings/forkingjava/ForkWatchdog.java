@@ -0,0 +1,222 @@
+package org.braindroppings.forkingjava;
+
+import java.rmi.RemoteException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Watches the deadlines of the calls made to one fork and puts the fork down
+ * when a job will not stop. A call still running a grace period past its
+ * timeout, or a fork still degraded a grace period after a job timed out, is
+ * escalated: the job is cancelled, then the process is asked to exit and
+ * finally it is killed, with a grace period between each step in case the
+ * fork recovers. Once the process is gone the client fails whatever was still
+ * pending on it and a pool starts a replacement.
+ *
+ * Once the manager has shut down its timer nothing is watched any more, the
+ * calls still go through but a fork that will not stop is left alone.
+ *
+ * @author chinshaw
+ */
+class ForkWatchdog {
+
+	/**
+	 * Logger instance for this class alone
+	 */
+	private static final Logger logger = Logger.getLogger(ForkWatchdog.class
+			.getName());
+
+	private final ForkClient fork;
+
+	private final Process process;
+
+	/**
+	 * Shared timer, only used to hand steps over to the worker threads.
+	 */
+	private final ScheduledExecutorService timer;
+
+	/**
+	 * Threads that make the remote calls, which may block on a wedged fork.
+	 */
+	private final Executor worker;
+
+	/**
+	 * Seconds between the steps of an escalation.
+	 */
+	private final int grace;
+
+	private final AtomicBoolean escalating = new AtomicBoolean();
+
+	/**
+	 * A single call being watched, closed once the call has returned.
+	 */
+	class Watch implements AutoCloseable {
+
+		/**
+		 * Job id to cancel, 0 for calls that have no job id.
+		 */
+		private final long jobId;
+
+		private volatile boolean done = false;
+
+		/**
+		 * Null if the manager has shut down.
+		 */
+		private final ScheduledFuture<?> deadline;
+
+		Watch(long jobId, int timeout) {
+			this.jobId = jobId;
+			this.deadline = schedule(this::overdue, (long) timeout + grace);
+		}
+
+		public void close() {
+			done = true;
+			if (deadline != null) {
+				deadline.cancel(false);
+			}
+		}
+
+		/**
+		 * The fork gave up on the call, makes sure the job really stopped once
+		 * the fork has had time to notice it did not.
+		 */
+		void timedOut() {
+			close();
+			schedule(ForkWatchdog.this::checkDegraded,
+					Math.max(grace, ForkServer.CANCEL_GRACE + 1));
+		}
+
+		private void overdue() {
+			if (!done) {
+				escalate("Call " + (jobId > 0 ? "for job " + jobId + " " : "")
+						+ "is " + grace + " seconds past its deadline", jobId,
+						() -> !done);
+			}
+		}
+	}
+
+	ForkWatchdog(ForkClient fork, Process process,
+			ScheduledExecutorService timer, Executor worker, int grace) {
+		this.fork = fork;
+		this.process = process;
+		this.timer = timer;
+		this.worker = worker;
+		this.grace = grace;
+	}
+
+	/**
+	 * Starts watching a call.
+	 *
+	 * @param jobId
+	 *            job cancelled first if the call runs over, 0 if none
+	 * @param timeout
+	 *            seconds the fork was given for the call
+	 */
+	Watch watch(long jobId, int timeout) {
+		return new Watch(jobId, timeout);
+	}
+
+	/**
+	 * Makes sure a closed fork exits. It has the drain timeout to finish its
+	 * jobs, if it is still there after that it is put down.
+	 */
+	void closed(final int drainTimeout) {
+		// Without the timer the fork still exits by itself once its drain
+		// timeout is up.
+		schedule(() -> {
+			if (process.isAlive()) {
+				escalate("Fork did not exit " + drainTimeout
+						+ " seconds after it was closed", 0, () -> Boolean.TRUE);
+			}
+		}, drainTimeout);
+	}
+
+	private void checkDegraded() {
+		if (process.isAlive() && isDegraded()) {
+			escalate("Fork is still running a job that timed out", 0,
+					this::isDegraded);
+		}
+	}
+
+	private boolean isDegraded() {
+		try {
+			return fork.isDegraded();
+		} catch (RemoteException e) {
+			return true;
+		}
+	}
+
+	/**
+	 * Cancels the job, then destroys the process if it is still stuck, once.
+	 *
+	 * @param stuck
+	 *            checked before destroying the process, may make remote calls
+	 */
+	private void escalate(final String reason, long jobId,
+			final Supplier<Boolean> stuck) {
+		if (!escalating.compareAndSet(false, true)) {
+			return;
+		}
+		if (jobId > 0) {
+			logger.warning(reason + ", cancelling it");
+			fork.cancelJob(jobId);
+		}
+		later(() -> {
+			if (!process.isAlive() || !isStuck(stuck)) {
+				escalating.set(false);
+				return;
+			}
+			logger.warning(reason + ", destroying fork " + process.pid());
+			process.destroy();
+			later(() -> {
+				if (process.isAlive()) {
+					logger.warning("Fork " + process.pid()
+							+ " ignored destroy, killing it");
+					process.destroyForcibly();
+				}
+			});
+		});
+	}
+
+	/**
+	 * A fork that does not answer within a grace period counts as stuck.
+	 */
+	private boolean isStuck(Supplier<Boolean> stuck) {
+		return CompletableFuture.supplyAsync(stuck, worker)
+				.completeOnTimeout(Boolean.TRUE, grace, TimeUnit.SECONDS)
+				.join();
+	}
+
+	private void later(Runnable step) {
+		schedule(step, grace);
+	}
+
+	/**
+	 * Runs a step on the worker threads after a delay.
+	 *
+	 * @return null if the manager has shut down, the step never runs then
+	 */
+	private ScheduledFuture<?> schedule(final Runnable step, long seconds) {
+		try {
+			return timer.schedule(() -> {
+				try {
+					worker.execute(step);
+				} catch (RejectedExecutionException e) {
+					logger.fine("Fork manager has shut down, not watching "
+							+ process.pid());
+				}
+			}, seconds, TimeUnit.SECONDS);
+		} catch (RejectedExecutionException e) {
+			logger.fine("Fork manager has shut down, not watching "
+					+ process.pid());
+			return null;
+		}
+	}
+}
@@ -0,0 +1,483 @@
+package org.braindroppings.forkingjava;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.rmi.ConnectException;
+import java.rmi.MarshalException;
+import java.rmi.RemoteException;
+import java.rmi.UnexpectedException;
+import java.rmi.UnmarshalException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Calls the methods of a remote interface over a plain byte channel. Each
+ * call and its reply is one frame, a length followed by the frame type, a
+ * request id and the payload, so any number of calls can be in flight in
+ * both directions at once. Incoming calls are run against the local target on
+ * their own threads, outgoing calls go through a proxy that blocks until the
+ * reply with its request id comes back. Arguments and results are turned
+ * into bytes by a {@link ForkCodec}.
+ *
+ * @author chinshaw
+ */
+class FramedConnection implements Closeable {
+
+	private static final Logger logger = Logger
+			.getLogger(FramedConnection.class.getName());
+
+	private static final byte CALL = 1;
+
+	private static final byte REPLY = 2;
+
+	private static final byte FAILURE = 3;
+
+	/**
+	 * Largest frame sent or accepted when none was set, 256MB.
+	 */
+	static final int DEFAULT_MAX_FRAME = 256 * 1024 * 1024;
+
+	/**
+	 * An outgoing call waiting for its reply.
+	 */
+	static class PendingCall extends CompletableFuture<Object> {
+
+		final String signature;
+
+		volatile int replyBytes;
+
+		PendingCall(String signature) {
+			this.signature = signature;
+		}
+	}
+
+	private final String name;
+
+	private final ByteChannel channel;
+
+	private final Object target;
+
+	/**
+	 * Methods the peer may call on our target, by signature.
+	 */
+	private final Map<String, Method> exposed = new HashMap<String, Method>();
+
+	private final Object remote;
+
+	/**
+	 * Outgoing calls waiting for their reply, by request id.
+	 */
+	private final Map<Long, PendingCall> pending = new ConcurrentHashMap<Long, PendingCall>();
+
+	private final AtomicLong requestIds = new AtomicLong();
+
+	private final ExecutorService dispatcher;
+
+	private final Object writeLock = new Object();
+
+	private final AtomicBoolean closed = new AtomicBoolean();
+
+	/**
+	 * Calls from the peer we have not sent the reply for yet.
+	 */
+	private final AtomicInteger dispatching = new AtomicInteger();
+
+	private final Runnable onClose;
+
+	private final ForkCodec codec;
+
+	private final CodecStats stats;
+
+	/**
+	 * Largest frame we send or accept, a bigger length coming in means the
+	 * stream is corrupt and is never allocated.
+	 */
+	private final int maxFrame;
+
+	/**
+	 * @param name
+	 *            used to name our threads
+	 * @param channel
+	 *            connected, blocking channel to the peer
+	 * @param target
+	 *            object the peer's calls are run against
+	 * @param exposedInterfaces
+	 *            interfaces of the target the peer may call
+	 * @param remoteInterfaces
+	 *            interfaces the peer exposes to us, implemented by
+	 *            {@link #getRemote()}
+	 * @param codec
+	 *            turns arguments and results into bytes, the peer must use
+	 *            the same kind
+	 * @param stats
+	 *            where to count bytes and encoding time per method
+	 * @param maxFrame
+	 *            largest frame in bytes, a call or result that does not fit
+	 *            fails to marshal, the peer must use the same limit
+	 * @param onClose
+	 *            run once when the connection closes, from either end
+	 */
+	FramedConnection(String name, ByteChannel channel, Object target,
+			Class<?>[] exposedInterfaces, Class<?>[] remoteInterfaces,
+			ForkCodec codec, CodecStats stats, int maxFrame, Runnable onClose) {
+		this.name = name;
+		this.channel = channel;
+		this.target = target;
+		this.codec = codec;
+		this.stats = stats;
+		this.maxFrame = maxFrame;
+		this.onClose = onClose;
+		for (Class<?> exposedInterface : exposedInterfaces) {
+			for (Method method : exposedInterface.getMethods()) {
+				exposed.put(signature(method), method);
+			}
+		}
+		this.remote = Proxy.newProxyInstance(
+				FramedConnection.class.getClassLoader(), remoteInterfaces,
+				(proxy, method, args) -> invoke(method, args));
+		this.dispatcher = Executors.newCachedThreadPool(new DaemonThreadFactory(
+				name + "-dispatch"));
+	}
+
+	/**
+	 * Starts reading frames from the peer.
+	 */
+	void start() {
+		Thread reader = new Thread(this::read, name + "-reader");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * @return a proxy that calls the peer, it implements the remote
+	 *         interfaces given to the constructor
+	 */
+	Object getRemote() {
+		return remote;
+	}
+
+	boolean isClosed() {
+		return closed.get();
+	}
+
+	/**
+	 * Waits until every call the peer made has been replied to.
+	 * 
+	 * @param timeout
+	 *            milliseconds to wait at most
+	 */
+	void awaitReplies(long timeout) throws InterruptedException {
+		long deadline = System.nanoTime()
+				+ TimeUnit.MILLISECONDS.toNanos(timeout);
+		while (dispatching.get() > 0 && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+	}
+
+	/**
+	 * Closes the channel and fails every call still waiting for a reply.
+	 */
+	public void close() {
+		if (!closed.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// Closing anyway.
+		}
+		dispatcher.shutdown();
+		for (Long id : pending.keySet()) {
+			PendingCall call = pending.remove(id);
+			if (call != null) {
+				call.completeExceptionally(new ConnectException("Connection "
+						+ name + " closed"));
+			}
+		}
+		if (onClose != null) {
+			onClose.run();
+		}
+	}
+
+	private static String signature(Method method) {
+		StringBuilder signature = new StringBuilder(method.getName())
+				.append('(');
+		for (Class<?> type : method.getParameterTypes()) {
+			signature.append(type.getName()).append(',');
+		}
+		return signature.append(')').toString();
+	}
+
+	/**
+	 * Runs on the caller's thread for every call through the proxy.
+	 */
+	private Object invoke(Method method, Object[] args) throws Throwable {
+		if (method.getDeclaringClass() == Object.class) {
+			if (method.getName().equals("equals")) {
+				return remote == args[0];
+			}
+			if (method.getName().equals("hashCode")) {
+				return System.identityHashCode(remote);
+			}
+			return "FramedConnection[" + name + "]";
+		}
+		if (closed.get()) {
+			throw new ConnectException("Connection " + name + " closed");
+		}
+
+		String signature = signature(method);
+		long id = requestIds.incrementAndGet();
+		PendingCall call = new PendingCall(signature);
+		pending.put(id, call);
+		stats.called(signature);
+		long started = System.nanoTime();
+		int sent;
+		try {
+			sent = send(CALL, id, signature, args == null ? new Object[0]
+					: args);
+		} catch (MarshalException e) {
+			pending.remove(id);
+			throw e;
+		} catch (IOException e) {
+			pending.remove(id);
+			close();
+			throw new ConnectException("Unable to send call on " + name, e);
+		}
+
+		Object result = null;
+		Throwable failure = null;
+		try {
+			result = call.get();
+		} catch (ExecutionException e) {
+			failure = e.getCause();
+		} catch (InterruptedException e) {
+			pending.remove(id);
+			Thread.currentThread().interrupt();
+			throw new RemoteException("Interrupted waiting for reply", e);
+		}
+		if (logger.isLoggable(Level.FINE)) {
+			logger.fine(name + " " + signature + " sent " + sent
+					+ " bytes, reply " + call.replyBytes + " bytes in "
+					+ (System.nanoTime() - started) / 1000 + "us");
+		}
+		if (failure == null) {
+			return result;
+		}
+
+		if (failure instanceof RuntimeException || failure instanceof Error) {
+			throw failure;
+		}
+		for (Class<?> declared : method.getExceptionTypes()) {
+			if (declared.isInstance(failure)) {
+				throw failure;
+			}
+		}
+		if (failure instanceof Exception) {
+			throw new UnexpectedException("Undeclared exception from "
+					+ method.getName(), (Exception) failure);
+		}
+		throw new RemoteException("Undeclared throwable from "
+				+ method.getName(), failure);
+	}
+
+	/**
+	 * Writes a frame, the whole frame is built first so frames from
+	 * different threads never interleave.
+	 *
+	 * @param signature
+	 *            the method called, only sent along with calls
+	 * @return size of the frame
+	 * @throws MarshalException
+	 *             if the payload could not be encoded or is too big for a
+	 *             frame
+	 * @throws IOException
+	 *             if the channel failed
+	 */
+	private int send(byte type, long id, String signature, Object[] values)
+			throws IOException {
+		long started = System.nanoTime();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0);
+		out.writeByte(type);
+		out.writeLong(id);
+		try {
+			if (type == CALL) {
+				out.writeUTF(signature);
+			}
+			for (Object value : values) {
+				codec.write(out, value);
+			}
+			out.flush();
+		} catch (IOException e) {
+			throw new MarshalException("Unable to marshal "
+					+ (type == CALL ? signature : "reply to " + signature), e);
+		}
+
+		if (bytes.size() - 4 > maxFrame) {
+			throw new MarshalException("Unable to marshal "
+					+ (type == CALL ? signature : "reply to " + signature)
+					+ ", " + (bytes.size() - 4) + " bytes is over the "
+					+ maxFrame + " byte frame limit");
+		}
+		ByteBuffer frame = ByteBuffer.wrap(bytes.toByteArray());
+		frame.putInt(0, frame.limit() - 4);
+		stats.wrote(signature, frame.limit(), System.nanoTime() - started);
+		synchronized (writeLock) {
+			while (frame.hasRemaining()) {
+				channel.write(frame);
+			}
+		}
+		return frame.limit();
+	}
+
+	private void read() {
+		try {
+			ByteBuffer length = ByteBuffer.allocate(4);
+			while (!closed.get()) {
+				length.clear();
+				readFully(length);
+				int size = length.getInt(0);
+				if (size < 9 || size > maxFrame) {
+					throw new IOException("Bad frame length " + size);
+				}
+				ByteBuffer frame = ByteBuffer.allocate(size);
+				readFully(frame);
+				receive(frame.array());
+			}
+		} catch (EOFException e) {
+			logger.fine("Connection " + name + " closed by peer");
+		} catch (IOException e) {
+			if (!closed.get()) {
+				logger.log(Level.WARNING, "Connection " + name + " failed", e);
+			}
+		} finally {
+			close();
+		}
+	}
+
+	private void readFully(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				throw new EOFException();
+			}
+		}
+	}
+
+	private void receive(byte[] frame) throws IOException {
+		final DataInputStream in = new DataInputStream(
+				new ByteArrayInputStream(frame));
+		byte type = in.readByte();
+		final long id = in.readLong();
+		final int size = frame.length + 4;
+
+		if (type == CALL) {
+			final String signature = in.readUTF();
+			dispatching.incrementAndGet();
+			try {
+				dispatcher.execute(() -> {
+					try {
+						dispatch(id, signature, in, size);
+					} finally {
+						dispatching.decrementAndGet();
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// Closed under us, nobody is waiting for the reply.
+				dispatching.decrementAndGet();
+			}
+			return;
+		}
+
+		PendingCall call = pending.remove(id);
+		if (call == null) {
+			// The caller gave up waiting.
+			return;
+		}
+		long started = System.nanoTime();
+		try {
+			Object value = codec.read(in);
+			stats.read(call.signature, size, System.nanoTime() - started);
+			call.replyBytes = size;
+			if (type == FAILURE) {
+				call.completeExceptionally((Throwable) value);
+			} else {
+				call.complete(value);
+			}
+		} catch (ClassNotFoundException e) {
+			call.completeExceptionally(new UnmarshalException(
+					"Unable to unmarshal reply", e));
+		} catch (IOException e) {
+			call.completeExceptionally(new UnmarshalException(
+					"Unable to unmarshal reply", e));
+		}
+	}
+
+	/**
+	 * Runs one of the peer's calls against our target and sends back what it
+	 * returned or threw.
+	 */
+	private void dispatch(long id, String signature, DataInputStream in,
+			int size) {
+		Object result;
+		byte type = REPLY;
+		stats.called(signature);
+		try {
+			Method method = exposed.get(signature);
+			if (method == null) {
+				throw new UnmarshalException("No such method " + signature);
+			}
+			Object[] args = new Object[method.getParameterTypes().length];
+			long started = System.nanoTime();
+			try {
+				for (int i = 0; i < args.length; i++) {
+					args[i] = codec.read(in);
+				}
+				stats.read(signature, size, System.nanoTime() - started);
+			} catch (Exception e) {
+				throw new UnmarshalException("Unable to unmarshal arguments of "
+						+ signature, e);
+			}
+			result = method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			result = e.getCause();
+			type = FAILURE;
+		} catch (Exception e) {
+			result = e;
+			type = FAILURE;
+		}
+
+		try {
+			try {
+				send(type, id, signature, new Object[] { result });
+			} catch (MarshalException e) {
+				send(FAILURE, id, signature, new Object[] { new MarshalException(
+						"Unable to marshal result of " + signature, e) });
+			}
+		} catch (IOException e) {
+			close();
+		}
+	}
+}
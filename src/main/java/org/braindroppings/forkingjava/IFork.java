@@ -0,0 +1,55 @@
+package org.braindroppings.forkingjava;
+
+import java.io.Serializable;
+import java.rmi.RemoteException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A fork as the code that started it holds it, from
+ * {@link ForkManager#getFork()} and friends. Besides the calls the fork
+ * answers it runs jobs only the client side can serve, handing back futures
+ * completed when the fork reports on the job.
+ *
+ * @author chinshaw
+ */
+public interface IFork extends IForkCalls {
+
+    /**
+     * Submits a job without waiting for it, the fork runs several of these at
+     * once up to its concurrency limit. Cancelling the future cancels the job
+     * in the fork.
+     */
+    public <T extends Serializable> CompletableFuture<T> executeAsync(RemoteOperation<T> callable, int timeout) throws RemoteException;
+
+    /**
+     * Submits a job without waiting for it, measured like
+     * {@link #executeWithStats(RemoteOperation, int)}.
+     */
+    public <T extends Serializable> CompletableFuture<JobResult<T>> executeAsyncWithStats(RemoteOperation<T> callable, int timeout) throws RemoteException;
+
+    /**
+     * Submits a job like {@link #executeAsyncWithStats(RemoteOperation, int)}
+     * and hands what it writes to stdout and stderr to the listener while it
+     * runs, up to the fork's output limit. The output is not repeated in the
+     * result, which only counts it.
+     */
+    public <T extends Serializable> CompletableFuture<JobResult<T>> executeAsyncWithOutput(RemoteOperation<T> callable, int timeout, JobOutputListener listener) throws RemoteException;
+
+    /**
+     * @see #stream(StreamingOperation, int, int, int)
+     */
+    public <T extends Serializable> ForkStream<T> stream(StreamingOperation<T> operation, int timeout) throws RemoteException;
+
+    /**
+     * Starts a job whose results are read while it runs. The fork sends the
+     * items in chunks and the client buffers at most
+     * <code>bufferedChunks</code> of them, after that the job blocks until the
+     * reader catches up.
+     *
+     * @param operation the job to run
+     * @param timeout seconds the job may run
+     * @param chunkSize items sent to the client at a time
+     * @param bufferedChunks chunks the client holds before the job waits
+     */
+    public <T extends Serializable> ForkStream<T> stream(StreamingOperation<T> operation, int timeout, int chunkSize, int bufferedChunks) throws RemoteException;
+}
@@ -0,0 +1,85 @@
+package org.braindroppings.forkingjava;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.rmi.RemoteException;
+import java.util.List;
+
+/**
+ * Calls a fork answers, whether made on the fork itself or on the client
+ * that started it.
+ *
+ * @see IForkService
+ * @see IFork
+ * @author chinshaw
+ */
+public interface IForkCalls {
+
+    public static int DEFAULT_MEMORY_MAX = 128;
+
+    /**
+     * @deprecated the fork's classpath can not be changed once it runs, run
+     *             jobs that need more classes as an {@link IsolatedOperation}
+     */
+    @Deprecated
+    public abstract void addClassPath(String classPath) throws IOException, RemoteException;
+
+    public abstract <T extends Serializable> T execute(Class<T> returnType, IForkedJob job) throws RemoteException;
+
+    public <T extends Serializable> T execute(RemoteOperation<T> callable) throws RemoteException, ForkException, ForkTimeoutException;
+
+    public abstract <T extends Serializable> T execute(RemoteOperation<T> callable, int timeout) throws RemoteException, ForkException, ForkTimeoutException;
+
+    /**
+     * Runs a job like {@link #execute(RemoteOperation, int)} and measures what
+     * it cost in the fork: cpu time and heap allocated by the job's thread,
+     * garbage collections and peak heap while it ran, time spent waiting for a
+     * job thread and the serialized size of the operation and its result.
+     * Measuring the sizes serializes both once more in the fork.
+     */
+    public <T extends Serializable> JobResult<T> executeWithStats(RemoteOperation<T> callable, int timeout) throws RemoteException, ForkException, ForkTimeoutException;
+
+    /**
+     * Runs a batch of operations in one call, using as many of the fork's job
+     * threads as it has.
+     *
+     * @see #executeBatch(List, int, int)
+     */
+    public <T extends Serializable> List<BatchResult<T>> executeBatch(List<? extends RemoteOperation<T>> operations, int timeout) throws RemoteException, ForkException;
+
+    /**
+     * Sends a whole batch of operations to the fork in one call and runs them
+     * there, returning a result for every operation in the same order. An
+     * operation that throws fails on its own, operations still running when the
+     * timeout passes are cancelled and fail with a {@link ForkTimeoutException}.
+     *
+     * @param operations the operations to run
+     * @param timeout seconds the whole batch may take
+     * @param parallelism number of operations to run at once
+     */
+    public <T extends Serializable> List<BatchResult<T>> executeBatch(List<? extends RemoteOperation<T>> operations, int timeout, int parallelism) throws RemoteException, ForkException;
+
+    public long totalMemory() throws RemoteException;
+
+    public long maxMemory() throws RemoteException;
+
+    public long freeMemory() throws RemoteException;
+
+    public abstract boolean alive() throws RemoteException;
+
+    /**
+     * A fork is degraded while a job it cancelled, because it timed out or
+     * was cancelled by the client, ignores its interrupt and keeps running.
+     * Such a fork still works but with a job thread less, it is best replaced.
+     */
+    public boolean isDegraded() throws RemoteException;
+
+    /**
+     * Closes the fork. No more jobs are taken, jobs already handed to the
+     * fork are finished and reported, within the drain timeout, and the fork
+     * exits as soon as it is done. Returns without waiting for the fork.
+     * 
+     * @see BootstrapBuilder#setDrainTimeout(int)
+     */
+    public abstract void close() throws RemoteException;
+}
@@ -5,6 +5,7 @@ import java.rmi.AccessException;
 import java.rmi.NotBoundException;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
 
 public interface IForkClient extends Remote, Serializable {
 
@@ -15,8 +16,8 @@ public interface IForkClient extends Remote, Serializable {
 
 	/**
 	 * This method is used to alert the client that the server has started, once
-	 * the server has started it's ping thread it will call this method on the
-	 * client to initiate communication.
+	 * the server is connected it will call this method on the client to
+	 * initiate communication.
 	 * 
 	 * @param rmiServerId
 	 * @throws AccessException
@@ -36,4 +37,85 @@ public interface IForkClient extends Remote, Serializable {
 	 */
 	public boolean ping() throws RemoteException;
 
+	/**
+	 * Called by the server when a job submitted with
+	 * {@link IForkServer#submit(long, RemoteOperation, int)} returns.
+	 * 
+	 * @param jobId
+	 *            id the job was submitted with
+	 * @param result
+	 *            what the job returned
+	 * @throws RemoteException
+	 */
+	public void onJobCompleted(long jobId, Serializable result)
+			throws RemoteException;
+
+	/**
+	 * Called by the server with the next chunk of a streaming job, blocks
+	 * while the client's buffer for the stream is full.
+	 * 
+	 * @param jobId
+	 *            id the job was submitted with
+	 * @param chunk
+	 *            items in the order the job emitted them
+	 * @return false if the client closed the stream and the job should stop
+	 * @throws RemoteException
+	 */
+	public boolean onStreamChunk(long jobId, List<? extends Serializable> chunk)
+			throws RemoteException;
+
+	/**
+	 * Called by the server when a submitted job throws or times out.
+	 * 
+	 * @param jobId
+	 *            id the job was submitted with
+	 * @param failure
+	 *            a {@link ForkException} wrapping what the job threw or a
+	 *            {@link ForkTimeoutException}
+	 * @throws RemoteException
+	 */
+	public void onJobFailed(long jobId, Throwable failure)
+			throws RemoteException;
+
+	/**
+	 * Called by the server with what a job submitted with
+	 * {@link IForkServer#submitWithOutput(long, RemoteOperation, int)} wrote,
+	 * in order and before the job is reported.
+	 * 
+	 * @param jobId
+	 *            id the job was submitted with
+	 * @param stream
+	 *            {@link JobOutput#STDOUT} or {@link JobOutput#STDERR}
+	 * @param text
+	 *            whole lines, unless the job wrote a long line or ended
+	 *            without finishing one
+	 * @throws RemoteException
+	 */
+	public void onJobOutput(long jobId, String stream, String text)
+			throws RemoteException;
+
+	/**
+	 * Called by a fork that cannot find a class on its classpath, before
+	 * asking for the class itself.
+	 * 
+	 * @param className
+	 *            binary name of the class
+	 * @return SHA-256 of the class's bytecode, null if we have no such class
+	 *         or do not provision classes
+	 * @throws RemoteException
+	 * @see BootstrapBuilder#setClassProvisioning(ClassLoader)
+	 */
+	public byte[] getClassDigest(String className) throws RemoteException;
+
+	/**
+	 * Called by a fork for a class it has not cached yet.
+	 * 
+	 * @param className
+	 *            binary name of the class
+	 * @return the class's bytecode, null if we have no such class or do not
+	 *         provision classes
+	 * @throws RemoteException
+	 */
+	public byte[] getClassBytes(String className) throws RemoteException;
+
 }
@@ -1,7 +1,9 @@
 package org.braindroppings.forkingjava;
 
+import java.io.Serializable;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
 
 public interface IForkServer extends Remote {
 
@@ -12,4 +14,90 @@ public interface IForkServer extends Remote {
 
 	public boolean ping() throws RemoteException;
 
+	/**
+	 * Answers a heartbeat like {@link #ping()}, with the heap in use right
+	 * after the last garbage collection, or all heap in use if there has not
+	 * been one yet.
+	 */
+	public long getHeapUsedAfterGc() throws RemoteException;
+
+	/**
+	 * Queues a job and returns straight away, the result is reported to the
+	 * client through {@link IForkClient#onJobCompleted(long, Serializable)} or
+	 * {@link IForkClient#onJobFailed(long, Throwable)}.
+	 * 
+	 * @param jobId
+	 *            id the client uses to match the report to the job
+	 * @param operation
+	 *            the job to run
+	 * @param timeout
+	 *            seconds the job may run before it is cancelled and reported
+	 *            as timed out
+	 */
+	public void submit(long jobId,
+			RemoteOperation<? extends Serializable> operation, int timeout)
+			throws RemoteException;
+
+	/**
+	 * Queues a job like {@link #submit(long, RemoteOperation, int)}, the job
+	 * is reported with a {@link JobResult} holding its result and what it
+	 * cost.
+	 */
+	public void submitWithStats(long jobId,
+			RemoteOperation<? extends Serializable> operation, int timeout)
+			throws RemoteException;
+
+	/**
+	 * Queues a job like {@link #submitWithStats(long, RemoteOperation, int)},
+	 * what the job writes to stdout and stderr is sent to the client with
+	 * {@link IForkClient#onJobOutput(long, String, String)} while it runs.
+	 */
+	public void submitWithOutput(long jobId,
+			RemoteOperation<? extends Serializable> operation, int timeout)
+			throws RemoteException;
+
+	/**
+	 * Queues a streaming job, its items are sent to the client with
+	 * {@link IForkClient#onStreamChunk(long, List)} while it runs and the end
+	 * of the stream is reported like any submitted job.
+	 * 
+	 * @param chunkSize
+	 *            items to send per chunk
+	 * @see #submit(long, RemoteOperation, int)
+	 */
+	public void submitStream(long jobId,
+			StreamingOperation<? extends Serializable> operation, int timeout,
+			int chunkSize) throws RemoteException;
+
+	/**
+	 * Cancels a submitted job, interrupting it if it is running. A cancelled
+	 * job is never reported.
+	 * 
+	 * @return false if the job had already finished
+	 */
+	public boolean cancel(long jobId) throws RemoteException;
+
+	/**
+	 * Closes the server. No more jobs are taken, the ones running or queued
+	 * get up to the drain timeout to finish and be reported, then the fork
+	 * exits as soon as the replies still going out have been sent. Returns
+	 * straight away.
+	 * 
+	 * @param drainTimeout
+	 *            seconds to wait for running jobs, jobs still running then
+	 *            are reported as failed
+	 */
+	public void shutdown(int drainTimeout) throws RemoteException;
+
+	/**
+	 * Makes the fork clean for its next user without restarting its jvm:
+	 * system properties go back to what they were when it started and the
+	 * job threads are replaced, taking anything jobs left in thread locals
+	 * with them. Only call it while nobody else is using the fork.
+	 * 
+	 * @return false if the fork can not be made clean, because jobs are still
+	 *         running or it is degraded, it should be closed instead
+	 */
+	public boolean reset() throws RemoteException;
+
 }
@@ -4,19 +4,31 @@ import java.io.IOException;
 import java.io.Serializable;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
 
-public interface IForkService extends Remote {
+/**
+ * The calls of {@link IForkCalls} as the fork serves them remotely. Rmi stubs
+ * only make calls declared by a remote interface, so every call is declared
+ * again here.
+ *
+ * @author chinshaw
+ */
+public interface IForkService extends Remote, IForkCalls {
 
-    public static int DEFAULT_MEMORY_MAX = 128;
-    
-    
-    public abstract void addClassPath(String classPath) throws IOException, RemoteException;
+    @Deprecated
+    public void addClassPath(String classPath) throws IOException, RemoteException;
 
-    public abstract <T extends Serializable> T execute(Class<T> returnType, IForkedJob job) throws RemoteException;
+    public <T extends Serializable> T execute(Class<T> returnType, IForkedJob job) throws RemoteException;
 
     public <T extends Serializable> T execute(RemoteOperation<T> callable) throws RemoteException, ForkException, ForkTimeoutException;
 
-    public abstract <T extends Serializable> T execute(RemoteOperation<T> callable, int timeout) throws RemoteException, ForkException, ForkTimeoutException;
+    public <T extends Serializable> T execute(RemoteOperation<T> callable, int timeout) throws RemoteException, ForkException, ForkTimeoutException;
+
+    public <T extends Serializable> JobResult<T> executeWithStats(RemoteOperation<T> callable, int timeout) throws RemoteException, ForkException, ForkTimeoutException;
+
+    public <T extends Serializable> List<BatchResult<T>> executeBatch(List<? extends RemoteOperation<T>> operations, int timeout) throws RemoteException, ForkException;
+
+    public <T extends Serializable> List<BatchResult<T>> executeBatch(List<? extends RemoteOperation<T>> operations, int timeout, int parallelism) throws RemoteException, ForkException;
 
     public long totalMemory() throws RemoteException;
 
@@ -24,7 +36,9 @@ public interface IForkService extends Remote {
 
     public long freeMemory() throws RemoteException;
 
-    public abstract boolean alive() throws RemoteException;
-    
-    public abstract void close() throws RemoteException;
+    public boolean alive() throws RemoteException;
+
+    public boolean isDegraded() throws RemoteException;
+
+    public void close() throws RemoteException;
 }
@@ -0,0 +1,96 @@
+package org.braindroppings.forkingjava;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Runs an operation in the fork with classes from its own classpath, loaded
+ * child first by a loader the fork caches for every job with the same
+ * classpath. One warm fork can then serve jobs that bring conflicting
+ * versions of the same library, without anything they load staying on the
+ * fork's classpath.
+ *
+ * The operation travels as bytes and is only deserialized in the fork once
+ * its loader is ready, so its classes need not be on the fork's classpath.
+ * Whatever it returns must still be loadable by the client.
+ *
+ * <pre>
+ * fork.execute(new IsolatedOperation&lt;Report&gt;(Arrays.asList(
+ * 		&quot;/opt/tenants/acme/lib/report-2.1.jar&quot;,
+ * 		&quot;/opt/tenants/acme/classes&quot;), new BuildReport(month)), 60);
+ * </pre>
+ *
+ * @see BootstrapBuilder#setJobClassLoaderCacheSize(int)
+ * @author chinshaw
+ */
+public class IsolatedOperation<T extends Serializable> implements
+		RemoteOperation<T> {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String[] classPath;
+
+	private transient RemoteOperation<T> operation;
+
+	/**
+	 * The operation serialized, filled in when this is sent.
+	 */
+	private byte[] operationBytes;
+
+	/**
+	 * @param classPath
+	 *            jars and class directories as the fork sees them, searched
+	 *            before the fork's own classpath
+	 * @param operation
+	 *            the job to run
+	 */
+	public IsolatedOperation(List<String> classPath,
+			RemoteOperation<T> operation) {
+		this.classPath = classPath.toArray(new String[classPath.size()]);
+		this.operation = operation;
+	}
+
+	public String[] getClassPath() {
+		return classPath.clone();
+	}
+
+	@SuppressWarnings("unchecked")
+	public T call() throws Exception {
+		ChildFirstClassLoader loader = ChildFirstClassLoader.acquire(classPath);
+		Thread thread = Thread.currentThread();
+		ClassLoader previous = thread.getContextClassLoader();
+		thread.setContextClassLoader(loader);
+		try {
+			ObjectInputStream input = new SerializationCodec.ContextObjectInputStream(
+					new ByteArrayInputStream(operationBytes));
+			RemoteOperation<T> job = (RemoteOperation<T>) input.readObject();
+			return job.call();
+		} finally {
+			thread.setContextClassLoader(previous);
+			loader.release();
+		}
+	}
+
+	private void writeObject(ObjectOutputStream output) throws IOException {
+		if (operation != null) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream objects = new ObjectOutputStream(bytes);
+			objects.writeObject(operation);
+			objects.close();
+			operationBytes = bytes.toByteArray();
+		}
+		output.defaultWriteObject();
+	}
+
+	public String toString() {
+		return "IsolatedOperation[" + (operation != null ? operation : "?")
+				+ " on " + String.join(File.pathSeparator, classPath)
+				+ "]";
+	}
+}
@@ -0,0 +1,87 @@
+package org.braindroppings.forkingjava;
+
+import java.io.Serializable;
+
+/**
+ * What a job wrote to stdout and stderr while it ran in the fork, up to the
+ * fork's output limit. Output past the limit is not kept, only counted.
+ *
+ * @see JobResult#getOutput()
+ * @see BootstrapBuilder#setJobOutputLimit(int)
+ * @author chinshaw
+ */
+public class JobOutput implements Serializable {
+
+	/**
+	 * Serialization ID
+	 */
+	private static final long serialVersionUID = 4482911374365226063L;
+
+	/**
+	 * Name of a job's standard output.
+	 */
+	public static final String STDOUT = "stdout";
+
+	/**
+	 * Name of a job's standard error.
+	 */
+	public static final String STDERR = "stderr";
+
+	private final String stdout;
+
+	private final String stderr;
+
+	private final long capturedBytes;
+
+	private final long droppedBytes;
+
+	JobOutput(String stdout, String stderr, long capturedBytes,
+			long droppedBytes) {
+		this.stdout = stdout;
+		this.stderr = stderr;
+		this.capturedBytes = capturedBytes;
+		this.droppedBytes = droppedBytes;
+	}
+
+	/**
+	 * @return what the job wrote to stdout, empty if it was streamed to a
+	 *         {@link JobOutputListener} instead
+	 */
+	public String getStdout() {
+		return stdout;
+	}
+
+	/**
+	 * @return what the job wrote to stderr, empty if it was streamed to a
+	 *         {@link JobOutputListener} instead
+	 */
+	public String getStderr() {
+		return stderr;
+	}
+
+	/**
+	 * @return bytes of both streams kept, whether returned here or streamed
+	 */
+	public long getCapturedBytes() {
+		return capturedBytes;
+	}
+
+	/**
+	 * @return bytes the job wrote past the limit, which nobody gets
+	 */
+	public long getDroppedBytes() {
+		return droppedBytes;
+	}
+
+	/**
+	 * @return whether the job wrote more than the limit
+	 */
+	public boolean isTruncated() {
+		return droppedBytes > 0;
+	}
+
+	public String toString() {
+		return "JobOutput[captured=" + capturedBytes + ", dropped="
+				+ droppedBytes + "]";
+	}
+}
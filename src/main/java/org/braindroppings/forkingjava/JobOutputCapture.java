@@ -0,0 +1,411 @@
+package org.braindroppings.forkingjava;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.rmi.RemoteException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Keeps what each job writes to stdout and stderr apart, in the fork. Once
+ * installed System.out and System.err route every write to the capture of
+ * the job the writing thread runs, or threads it started, and straight
+ * through when no job is running there. A capture keeps at most the limit
+ * of bytes across both streams and counts the rest as dropped, then either
+ * forwards the output to the fork's real streams line by line behind the
+ * job's name, holds it for the job's {@link JobResult}, or sends it to the
+ * client while the job runs.
+ *
+ * @author chinshaw
+ */
+class JobOutputCapture {
+
+	/**
+	 * Logger instance for this class alone
+	 */
+	private static final Logger logger = Logger.getLogger(JobOutputCapture.class
+			.getName());
+
+	/**
+	 * Bytes a job may write before its output is dropped, when no limit was
+	 * set.
+	 */
+	static final int DEFAULT_LIMIT = 1024 * 1024;
+
+	/**
+	 * Bytes held for a streamed job before they are sent without waiting for
+	 * the flush.
+	 */
+	private static final int CHUNK = 8 * 1024;
+
+	/**
+	 * Milliseconds between sends of what streamed jobs have written.
+	 */
+	private static final long FLUSH_INTERVAL = 100;
+
+	private static final Charset charset = Charset.defaultCharset();
+
+	/**
+	 * What happens to a job's output.
+	 */
+	enum Mode {
+		/** Forwarded to the fork's streams, each line behind the job's name. */
+		TAG,
+		/** Held for the job's {@link JobResult}. */
+		HOLD,
+		/** Sent to the client while the job runs. */
+		STREAM
+	}
+
+	/**
+	 * Output of one job.
+	 */
+	static class Capture {
+
+		private final String name;
+
+		private final Mode mode;
+
+		private final IForkClient client;
+
+		private final long jobId;
+
+		/**
+		 * Output not yet forwarded, sent or taken, guarded by this along with
+		 * the counts and flags.
+		 */
+		private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		private final ByteArrayOutputStream err = new ByteArrayOutputStream();
+
+		private long captured = 0;
+
+		private long dropped = 0;
+
+		private boolean taken = false;
+
+		private boolean ended = false;
+
+		/**
+		 * Set once the client could not be reached, the rest is dropped.
+		 */
+		private volatile boolean unreachable = false;
+
+		/**
+		 * Held while output is sent to the client.
+		 */
+		private final Object sending = new Object();
+
+		Capture(String name, Mode mode, IForkClient client, long jobId) {
+			this.name = name;
+			this.mode = mode;
+			this.client = client;
+			this.jobId = jobId;
+		}
+
+		void write(boolean error, byte[] bytes, int offset, int length) {
+			boolean full;
+			synchronized (this) {
+				if (ended) {
+					// A thread the job started, still writing after it.
+					original(error).write(bytes, offset, length);
+					return;
+				}
+				int kept = (int) Math.min(length,
+						Math.max(0, limit - captured));
+				captured += kept;
+				dropped += length - kept;
+				if (kept == 0) {
+					return;
+				}
+				ByteArrayOutputStream buffer = error ? err : out;
+				buffer.write(bytes, offset, kept);
+				if (mode == Mode.TAG) {
+					forward(error, false);
+				}
+				full = mode == Mode.STREAM && buffer.size() >= CHUNK;
+			}
+			if (full) {
+				send(false);
+			}
+		}
+
+		/**
+		 * Hands over the output for the job's result, what a streamed job
+		 * wrote is sent first so it arrives ahead of the result.
+		 *
+		 * @return null if the output is not held or streamed
+		 */
+		JobOutput take() {
+			if (mode == Mode.TAG) {
+				return null;
+			}
+			if (mode == Mode.STREAM) {
+				send(true);
+			}
+			synchronized (this) {
+				taken = true;
+				if (mode == Mode.STREAM) {
+					return new JobOutput("", "", captured, dropped);
+				}
+				JobOutput output = new JobOutput(out.toString(charset),
+						err.toString(charset), captured, dropped);
+				out.reset();
+				err.reset();
+				return output;
+			}
+		}
+
+		/**
+		 * Sends or forwards whatever is left, output nobody took goes to the
+		 * fork's streams so it is not lost with a failed job.
+		 */
+		void end() {
+			if (mode == Mode.STREAM && !unreachable) {
+				send(true);
+			}
+			synchronized (this) {
+				forward(false, true);
+				forward(true, true);
+				if (dropped > 0 && !taken) {
+					original(true).println("[" + name + "] [" + dropped
+							+ " bytes of output dropped]");
+				}
+				ended = true;
+			}
+		}
+
+		/**
+		 * Sends the whole lines held to the client, or everything with
+		 * <code>all</code> or once a chunk has no line end in it. The client
+		 * is called outside the lock so writers never wait on it while holding
+		 * their stream, and one send at a time so output arrives in order.
+		 */
+		void send(boolean all) {
+			synchronized (sending) {
+				String outText;
+				String errText;
+				synchronized (this) {
+					if (ended) {
+						return;
+					}
+					outText = pending(out, all);
+					errText = pending(err, all);
+				}
+				deliver(JobOutput.STDOUT, outText);
+				deliver(JobOutput.STDERR, errText);
+			}
+		}
+
+		/**
+		 * Takes what is ready to send out of a buffer, called with the lock
+		 * held.
+		 *
+		 * @return null if nothing is
+		 */
+		private String pending(ByteArrayOutputStream buffer, boolean all) {
+			byte[] bytes = buffer.toByteArray();
+			int end = lineEnd(bytes);
+			if (all || (end == 0 && bytes.length >= CHUNK)) {
+				end = bytes.length;
+			}
+			if (end == 0) {
+				return null;
+			}
+			buffer.reset();
+			buffer.write(bytes, end, bytes.length - end);
+			return new String(bytes, 0, end, charset);
+		}
+
+		private void deliver(String stream, String text) {
+			if (text == null || unreachable) {
+				return;
+			}
+			try {
+				client.onJobOutput(jobId, stream, text);
+			} catch (RemoteException e) {
+				unreachable = true;
+				logger.fine("Unable to send output of " + name + " " + e);
+			}
+		}
+
+		/**
+		 * Writes the whole lines held, or everything with <code>all</code>,
+		 * to the fork's stream behind the job's name.
+		 */
+		private void forward(boolean error, boolean all) {
+			ByteArrayOutputStream buffer = error ? err : out;
+			byte[] bytes = buffer.toByteArray();
+			int end = all ? bytes.length : lineEnd(bytes);
+			if (end == 0) {
+				return;
+			}
+			PrintStream target = original(error);
+			synchronized (target) {
+				int start = 0;
+				while (start < end) {
+					int next = start;
+					while (next < end && bytes[next] != '\n') {
+						next++;
+					}
+					target.print("[" + name + "] ");
+					if (next < end) {
+						target.write(bytes, start, next + 1 - start);
+					} else {
+						// An unfinished line, the job is over.
+						target.write(bytes, start, end - start);
+						target.println();
+					}
+					start = next + 1;
+				}
+			}
+			buffer.reset();
+			buffer.write(bytes, end, bytes.length - end);
+		}
+
+		/**
+		 * @return the index past the last line end, 0 if there is none
+		 */
+		private static int lineEnd(byte[] bytes) {
+			for (int i = bytes.length - 1; i >= 0; i--) {
+				if (bytes[i] == '\n') {
+					return i + 1;
+				}
+			}
+			return 0;
+		}
+	}
+
+	/**
+	 * System.out or System.err once installed.
+	 */
+	private static class Router extends OutputStream {
+
+		private final boolean error;
+
+		Router(boolean error) {
+			this.error = error;
+		}
+
+		public void write(int b) {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		public void write(byte[] bytes, int offset, int length) {
+			Capture capture = current.get();
+			if (capture == null) {
+				original(error).write(bytes, offset, length);
+			} else {
+				capture.write(error, bytes, offset, length);
+			}
+		}
+
+		public void flush() {
+			if (current.get() == null) {
+				original(error).flush();
+			}
+		}
+	}
+
+	/**
+	 * Capture of the job running on a thread, inherited by the threads the job
+	 * starts.
+	 */
+	private static final InheritableThreadLocal<Capture> current = new InheritableThreadLocal<Capture>();
+
+	/**
+	 * Captures of streamed jobs still running.
+	 */
+	private static final Set<Capture> streaming = ConcurrentHashMap
+			.newKeySet();
+
+	/**
+	 * 0 until installed.
+	 */
+	private static volatile int limit = 0;
+
+	private static PrintStream stdout;
+
+	private static PrintStream stderr;
+
+	private JobOutputCapture() {
+	}
+
+	/**
+	 * Replaces System.out and System.err, before the security manager is in
+	 * place.
+	 *
+	 * @param bytes
+	 *            most bytes kept per job, 0 to leave the streams alone
+	 */
+	static synchronized void install(int bytes) {
+		if (bytes <= 0 || limit > 0) {
+			return;
+		}
+		stdout = System.out;
+		stderr = System.err;
+		System.setOut(new PrintStream(new Router(false), true));
+		System.setErr(new PrintStream(new Router(true), true));
+		limit = bytes;
+		Executors.newSingleThreadScheduledExecutor(
+				new DaemonThreadFactory("job-output")).scheduleWithFixedDelay(
+				JobOutputCapture::flushStreams, FLUSH_INTERVAL, FLUSH_INTERVAL,
+				TimeUnit.MILLISECONDS);
+	}
+
+	private static PrintStream original(boolean error) {
+		return error ? stderr : stdout;
+	}
+
+	private static void flushStreams() {
+		for (Capture capture : streaming) {
+			capture.send(false);
+		}
+	}
+
+	/**
+	 * Starts capturing what the current thread writes.
+	 *
+	 * @param client
+	 *            where a streamed job's output goes
+	 * @return the capture to end, null if output is not captured
+	 */
+	static Capture begin(String name, Mode mode, IForkClient client, long jobId) {
+		if (limit <= 0) {
+			return null;
+		}
+		Capture capture = new Capture(name, mode, client, jobId);
+		if (mode == Mode.STREAM) {
+			streaming.add(capture);
+		}
+		current.set(capture);
+		return capture;
+	}
+
+	/**
+	 * Stops capturing, what the job wrote and nobody took goes to the fork's
+	 * streams.
+	 */
+	static void end(Capture capture) {
+		if (capture == null) {
+			return;
+		}
+		current.remove();
+		streaming.remove(capture);
+		capture.end();
+	}
+
+	/**
+	 * @return the output of the job running on the current thread, null if
+	 *         it is not held or streamed
+	 */
+	static JobOutput take() {
+		Capture capture = current.get();
+		return capture == null ? null : capture.take();
+	}
+}
@@ -0,0 +1,26 @@
+package org.braindroppings.forkingjava;
+
+/**
+ * Gets a job's stdout and stderr while the job runs in the fork. Output
+ * arrives in whole lines, in the order the job wrote it, a line longer than
+ * the fork holds for one send or left unfinished when the job ends comes in
+ * pieces. Everything the job wrote up to the fork's output limit has arrived
+ * before the job's future completes.
+ *
+ * Called on the thread the fork's call comes in on, so a listener should
+ * return quickly, the job waits for it once it has written enough.
+ *
+ * @see IFork#executeAsyncWithOutput(RemoteOperation, int,
+ *      JobOutputListener)
+ * @author chinshaw
+ */
+public interface JobOutputListener {
+
+	/**
+	 * @param stream
+	 *            {@link JobOutput#STDOUT} or {@link JobOutput#STDERR}
+	 * @param text
+	 *            output with its line terminators
+	 */
+	public void output(String stream, String text);
+}
@@ -0,0 +1,77 @@
+package org.braindroppings.forkingjava;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+/**
+ * What a job returned together with what it cost to run. The result is
+ * serialized on its own as this is sent, which is how its size gets into the
+ * stats without encoding it a second time.
+ * 
+ * @see IForkService#executeWithStats(RemoteOperation, int)
+ * @author chinshaw
+ */
+public class JobResult<T extends Serializable> implements Serializable {
+
+	/**
+	 * Serialization ID
+	 */
+	private static final long serialVersionUID = -6790167462218860741L;
+
+	private transient T result;
+
+	private final JobStats stats;
+
+	private final JobOutput output;
+
+	JobResult(T result, JobStats stats, JobOutput output) {
+		this.result = result;
+		this.stats = stats;
+		this.output = output;
+	}
+
+	public T getResult() {
+		return result;
+	}
+
+	public JobStats getStats() {
+		return stats;
+	}
+
+	private void writeObject(ObjectOutputStream output) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream objects = new ObjectOutputStream(bytes);
+		objects.writeObject(result);
+		objects.close();
+		if (stats != null) {
+			stats.outputBytes = bytes.size();
+		}
+		output.defaultWriteObject();
+		output.writeInt(bytes.size());
+		bytes.writeTo(output);
+	}
+
+	@SuppressWarnings("unchecked")
+	private void readObject(ObjectInputStream input) throws IOException,
+			ClassNotFoundException {
+		input.defaultReadObject();
+		byte[] bytes = new byte[input.readInt()];
+		input.readFully(bytes);
+		ObjectInputStream objects = new SerializationCodec.ContextObjectInputStream(
+				new ByteArrayInputStream(bytes));
+		result = (T) objects.readObject();
+	}
+
+	/**
+	 * @return what the job wrote to stdout and stderr, null if the fork does
+	 *         not capture job output
+	 * @see BootstrapBuilder#setJobOutputLimit(int)
+	 */
+	public JobOutput getOutput() {
+		return output;
+	}
+}
@@ -0,0 +1,115 @@
+package org.braindroppings.forkingjava;
+
+import java.io.Serializable;
+
+/**
+ * What a single job cost the fork, measured in the fork around the job.
+ * Values a jvm cannot measure are -1.
+ * 
+ * @see IForkService#executeWithStats(RemoteOperation, int)
+ * @author chinshaw
+ */
+public class JobStats implements Serializable {
+
+	/**
+	 * Serialization ID
+	 */
+	private static final long serialVersionUID = 4412981870254712383L;
+
+	long queueNanos;
+
+	long runNanos;
+
+	long cpuNanos = -1;
+
+	long allocatedBytes = -1;
+
+	long gcCount;
+
+	long gcMillis;
+
+	long peakHeapBytes = -1;
+
+	long inputBytes;
+
+	long outputBytes;
+
+	JobStats() {
+	}
+
+	/**
+	 * @return time between the fork receiving the job and a job thread
+	 *         starting it
+	 */
+	public long getQueueNanos() {
+		return queueNanos;
+	}
+
+	/**
+	 * @return wall clock time the job ran for
+	 */
+	public long getRunNanos() {
+		return runNanos;
+	}
+
+	/**
+	 * @return cpu time of the thread that ran the job, work the job handed to
+	 *         other threads is not included
+	 */
+	public long getCpuNanos() {
+		return cpuNanos;
+	}
+
+	/**
+	 * @return bytes allocated on the heap by the thread that ran the job
+	 */
+	public long getAllocatedBytes() {
+		return allocatedBytes;
+	}
+
+	/**
+	 * @return garbage collections in the fork while the job ran, including
+	 *         ones brought on by jobs running alongside it
+	 */
+	public long getGcCount() {
+		return gcCount;
+	}
+
+	/**
+	 * @return time spent in those garbage collections
+	 */
+	public long getGcMillis() {
+		return gcMillis;
+	}
+
+	/**
+	 * @return the most heap the fork used while the job ran. With jobs running
+	 *         side by side this covers the time since the oldest of them
+	 *         started.
+	 */
+	public long getPeakHeapBytes() {
+		return peakHeapBytes;
+	}
+
+	/**
+	 * @return serialized size of the operation
+	 */
+	public long getInputBytes() {
+		return inputBytes;
+	}
+
+	/**
+	 * @return serialized size of the result, 0 if the job failed
+	 */
+	public long getOutputBytes() {
+		return outputBytes;
+	}
+
+	public String toString() {
+		return "queue=" + queueNanos / 1000 + "us run=" + runNanos / 1000
+				+ "us cpu=" + cpuNanos / 1000 + "us allocated="
+				+ allocatedBytes + "B gc=" + gcCount + "/" + gcMillis
+				+ "ms peakHeap=" + peakHeapBytes + "B in=" + inputBytes
+				+ "B out=" + outputBytes + "B";
+	}
+}
@@ -0,0 +1,144 @@
+package org.braindroppings.forkingjava;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latencies counted in power of two buckets of nanoseconds. Recording is a
+ * couple of striped adds, no locks, so it can sit on the path of every call.
+ * Percentiles are read off the buckets and are accurate to within a factor of
+ * two, rounded up.
+ *
+ * @author chinshaw
+ */
+public class LatencyHistogram {
+
+	/**
+	 * A copy of the histogram at one point, in milliseconds.
+	 */
+	public static class Snapshot {
+
+		private final long count;
+
+		private final double meanMillis;
+
+		private final double p50Millis;
+
+		private final double p90Millis;
+
+		private final double p99Millis;
+
+		private final double maxMillis;
+
+		Snapshot(long count, double meanMillis, double p50Millis,
+				double p90Millis, double p99Millis, double maxMillis) {
+			this.count = count;
+			this.meanMillis = meanMillis;
+			this.p50Millis = p50Millis;
+			this.p90Millis = p90Millis;
+			this.p99Millis = p99Millis;
+			this.maxMillis = maxMillis;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public double getMeanMillis() {
+			return meanMillis;
+		}
+
+		public double getP50Millis() {
+			return p50Millis;
+		}
+
+		public double getP90Millis() {
+			return p90Millis;
+		}
+
+		public double getP99Millis() {
+			return p99Millis;
+		}
+
+		public double getMaxMillis() {
+			return maxMillis;
+		}
+
+		public String toString() {
+			return String.format("count=%d mean=%.3fms p50=%.3fms p90=%.3fms"
+					+ " p99=%.3fms max=%.3fms", count, meanMillis, p50Millis,
+					p90Millis, p99Millis, maxMillis);
+		}
+	}
+
+	/**
+	 * Bucket i holds latencies below 2^i nanoseconds and at least half that.
+	 */
+	private final LongAdder[] buckets = new LongAdder[64];
+
+	private final LongAdder count = new LongAdder();
+
+	private final LongAdder totalNanos = new LongAdder();
+
+	private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+	public LatencyHistogram() {
+		for (int i = 0; i < buckets.length; i++) {
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		buckets[64 - Long.numberOfLeadingZeros(nanos)].increment();
+		count.increment();
+		totalNanos.add(nanos);
+		maxNanos.accumulate(nanos);
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * @param percentile
+	 *            between 0 and 100
+	 * @return the upper bound of the bucket the percentile falls in, 0 if
+	 *         nothing was recorded
+	 */
+	public long getPercentileNanos(double percentile) {
+		long[] counts = new long[buckets.length];
+		long total = 0;
+		for (int i = 0; i < buckets.length; i++) {
+			counts[i] = buckets[i].sum();
+			total += counts[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(total * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank && counts[i] > 0) {
+				return Math.min(i == 63 ? Long.MAX_VALUE : (1L << i) - 1,
+						maxNanos.get());
+			}
+		}
+		return maxNanos.get();
+	}
+
+	public Snapshot snapshot() {
+		long n = count.sum();
+		double mean = n == 0 ? 0 : totalNanos.sum() / (double) n;
+		return new Snapshot(n, mean / 1e6, getPercentileNanos(50) / 1e6,
+				getPercentileNanos(90) / 1e6, getPercentileNanos(99) / 1e6,
+				maxNanos.get() / 1e6);
+	}
+
+	public String toString() {
+		return snapshot().toString();
+	}
+}
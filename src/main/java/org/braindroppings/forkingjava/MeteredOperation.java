@@ -0,0 +1,150 @@
+package org.braindroppings.forkingjava;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Wraps an operation in the fork to measure what it costs, created as the
+ * operation arrives so the time it waits for a job thread is counted. The
+ * result is measured by {@link JobResult} as it is sent.
+ * 
+ * @author chinshaw
+ */
+class MeteredOperation<T extends Serializable> implements
+		RemoteOperation<JobResult<T>> {
+
+	/**
+	 * Never serialized, only needed for RemoteOperation.
+	 */
+	private static final long serialVersionUID = 1L;
+
+	private static final ThreadMXBean threads = ManagementFactory
+			.getThreadMXBean();
+
+	/**
+	 * Jobs being metered, the heap peaks are reset when the first one starts.
+	 */
+	private static final AtomicInteger running = new AtomicInteger();
+
+	/**
+	 * Counts what is written and throws it away.
+	 */
+	static class CountingOutputStream extends OutputStream {
+
+		long count;
+
+		public void write(int b) {
+			count++;
+		}
+
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+
+	private final RemoteOperation<T> operation;
+
+	private final JobStats stats = new JobStats();
+
+	private final long received;
+
+	MeteredOperation(RemoteOperation<T> operation) {
+		this.operation = operation;
+		stats.inputBytes = serializedSize(operation);
+		this.received = System.nanoTime();
+	}
+
+	public JobResult<T> call() throws Exception {
+		long started = System.nanoTime();
+		stats.queueNanos = started - received;
+
+		if (running.getAndIncrement() == 0) {
+			for (MemoryPoolMXBean pool : ManagementFactory
+					.getMemoryPoolMXBeans()) {
+				if (pool.getType() == MemoryType.HEAP) {
+					pool.resetPeakUsage();
+				}
+			}
+		}
+		long cpu = cpuTime();
+		long allocated = allocatedBytes();
+		long gcCount = 0, gcMillis = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory
+				.getGarbageCollectorMXBeans()) {
+			gcCount += Math.max(0, gc.getCollectionCount());
+			gcMillis += Math.max(0, gc.getCollectionTime());
+		}
+
+		T result;
+		try {
+			result = operation.call();
+		} finally {
+			stats.runNanos = System.nanoTime() - started;
+			if (cpu >= 0) {
+				stats.cpuNanos = cpuTime() - cpu;
+			}
+			if (allocated >= 0) {
+				stats.allocatedBytes = allocatedBytes() - allocated;
+			}
+			for (GarbageCollectorMXBean gc : ManagementFactory
+					.getGarbageCollectorMXBeans()) {
+				gcCount -= Math.max(0, gc.getCollectionCount());
+				gcMillis -= Math.max(0, gc.getCollectionTime());
+			}
+			stats.gcCount = -gcCount;
+			stats.gcMillis = -gcMillis;
+
+			long peak = 0;
+			for (MemoryPoolMXBean pool : ManagementFactory
+					.getMemoryPoolMXBeans()) {
+				if (pool.getType() == MemoryType.HEAP) {
+					peak += pool.getPeakUsage().getUsed();
+				}
+			}
+			stats.peakHeapBytes = peak;
+			running.decrementAndGet();
+		}
+		// The size of the result is filled in as the JobResult is sent.
+		return new JobResult<T>(result, stats, JobOutputCapture.take());
+	}
+
+	private static long cpuTime() {
+		if (!threads.isCurrentThreadCpuTimeSupported()
+				|| !threads.isThreadCpuTimeEnabled()) {
+			return -1;
+		}
+		return threads.getCurrentThreadCpuTime();
+	}
+
+	private static long allocatedBytes() {
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) threads;
+			if (hotspot.isThreadAllocatedMemorySupported()
+					&& hotspot.isThreadAllocatedMemoryEnabled()) {
+				return hotspot.getCurrentThreadAllocatedBytes();
+			}
+		}
+		return -1;
+	}
+
+	static long serializedSize(Object value) {
+		CountingOutputStream counter = new CountingOutputStream();
+		try {
+			ObjectOutputStream out = new ObjectOutputStream(counter);
+			out.writeObject(value);
+			out.close();
+		} catch (IOException e) {
+			// Not serializable, the transport will say so.
+			return -1;
+		}
+		return counter.count;
+	}
+}
@@ -0,0 +1,26 @@
+package org.braindroppings.forkingjava;
+
+/**
+ * Hook for sending fork metrics on to a metrics library as they are
+ * recorded, set with {@link ForkMetrics#setRecorder(MetricsRecorder)}. Called
+ * on the threads making the calls, so it must be quick and thread safe.
+ *
+ * @author chinshaw
+ */
+public interface MetricsRecorder {
+
+	/**
+	 * @param metric
+	 *            one of {@link ForkMetrics#STARTUP}, {@link ForkMetrics#CALL}
+	 *            or {@link ForkMetrics#JOB}
+	 */
+	public void recordLatency(String metric, long nanos);
+
+	/**
+	 * @param metric
+	 *            one of {@link ForkMetrics#TIMEOUTS},
+	 *            {@link ForkMetrics#CRASHES}, {@link ForkMetrics#RESTARTS},
+	 *            {@link ForkMetrics#REJECTED} or {@link ForkMetrics#RECYCLES}
+	 */
+	public void increment(String metric);
+}
@@ -0,0 +1,102 @@
+package org.braindroppings.forkingjava;
+
+/**
+ * When a pooled or dispatched fork is replaced with a fresh one. Forks that
+ * live long pick up leaked statics, classpath additions and a fragmented
+ * heap, so they can be retired after a number of jobs, once their heap stays
+ * too full after collections, or at a certain age. The replacement is started
+ * first and the old fork keeps working until it is up, so the number of forks
+ * never drops. Limits left at 0 are not checked.
+ *
+ * @see BootstrapBuilder#setRecyclePolicy(RecyclePolicy)
+ * @author chinshaw
+ */
+public class RecyclePolicy {
+
+	private long maxJobs = 0;
+
+	private long maxHeapUsed = 0;
+
+	private int maxAge = 0;
+
+	/**
+	 * Recycles a fork once it has finished this many jobs.
+	 */
+	public RecyclePolicy setMaxJobs(long jobs) {
+		if (jobs < 0) {
+			throw new IllegalArgumentException("Negative job count " + jobs);
+		}
+		this.maxJobs = jobs;
+		return this;
+	}
+
+	public long getMaxJobs() {
+		return maxJobs;
+	}
+
+	/**
+	 * Recycles a fork once its heap still holds this much right after a
+	 * garbage collection. The heap is sampled with each heartbeat, so this is
+	 * not checked while heartbeats are off.
+	 *
+	 * @param bytes
+	 *            heap in use after the fork's last collection
+	 * @see ForkManager#setHeartbeatInterval(int)
+	 */
+	public RecyclePolicy setMaxHeapUsed(long bytes) {
+		if (bytes < 0) {
+			throw new IllegalArgumentException("Negative heap limit " + bytes);
+		}
+		this.maxHeapUsed = bytes;
+		return this;
+	}
+
+	public long getMaxHeapUsed() {
+		return maxHeapUsed;
+	}
+
+	/**
+	 * Recycles a fork once it has been running this long.
+	 *
+	 * @param seconds
+	 *            age in seconds
+	 */
+	public RecyclePolicy setMaxAge(int seconds) {
+		if (seconds < 0) {
+			throw new IllegalArgumentException("Negative age " + seconds);
+		}
+		this.maxAge = seconds;
+		return this;
+	}
+
+	public int getMaxAge() {
+		return maxAge;
+	}
+
+	/**
+	 * @param jobs
+	 *            jobs the fork has finished
+	 * @param age
+	 *            seconds the fork has been running
+	 * @param heapUsed
+	 *            heap after the fork's last collection, negative if not known
+	 * @return why the fork is due, null if it is not
+	 */
+	String check(long jobs, long age, long heapUsed) {
+		if (maxJobs > 0 && jobs >= maxJobs) {
+			return "ran " + jobs + " jobs";
+		}
+		if (maxHeapUsed > 0 && heapUsed >= maxHeapUsed) {
+			return "holds " + heapUsed + " bytes of heap after collection";
+		}
+		if (maxAge > 0 && age >= maxAge) {
+			return "is " + age + " seconds old";
+		}
+		return null;
+	}
+
+	public String toString() {
+		return "RecyclePolicy[jobs=" + maxJobs + ", heap=" + maxHeapUsed
+				+ ", age=" + maxAge + "]";
+	}
+}
@@ -0,0 +1,29 @@
+package org.braindroppings.forkingjava;
+
+/**
+ * What {@link ForkManager#submit(RemoteOperation, int, int)} does with a job
+ * when the dispatcher's queue is full.
+ *
+ * @author chinshaw
+ */
+public enum RejectionPolicy {
+
+	/**
+	 * The new job's future fails straight away with a {@link ForkException}.
+	 */
+	ABORT,
+
+	/**
+	 * The submitting thread waits until the queue has room, which holds back
+	 * whoever is producing the jobs. Jobs are never run in the calling jvm,
+	 * that would take them out of their fork.
+	 */
+	BLOCK,
+
+	/**
+	 * The oldest of the lowest priority jobs waiting is dropped, its future
+	 * fails, to make room. If every job waiting has a higher priority than
+	 * the new one the new one is dropped instead.
+	 */
+	DISCARD_OLDEST
+}
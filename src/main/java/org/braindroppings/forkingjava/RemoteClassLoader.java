@@ -0,0 +1,224 @@
+package org.braindroppings.forkingjava;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.AccessController;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.security.SecureClassLoader;
+import java.security.cert.Certificate;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Loads the classes a fork cannot find on its own classpath from its client.
+ * The client is first asked for the class's hash, and the bytecode is only
+ * sent over when no class with that hash is in the cache directory yet. The
+ * cache is shared by every fork using the same directory and outlives them,
+ * so a class crosses the transport once per change rather than once per fork.
+ * Entries are checked against their hash when read, a damaged one is fetched
+ * again.
+ *
+ * The fork makes this the context class loader of the threads that read jobs
+ * off the transport, which is where deserialization looks for classes.
+ * Classes on the fork's classpath are still loaded from there first. A class
+ * loaded from the client cannot see package private members of a class in
+ * the same package on the fork's classpath, so a package should come from
+ * one side or the other.
+ *
+ * @see BootstrapBuilder#setClassProvisioning(ClassLoader)
+ * @author chinshaw
+ */
+class RemoteClassLoader extends SecureClassLoader {
+
+	static {
+		registerAsParallelCapable();
+	}
+
+	/**
+	 * Logger instance for this class alone
+	 */
+	private static final Logger logger = Logger
+			.getLogger(RemoteClassLoader.class.getName());
+
+	private final File cache;
+
+	/**
+	 * Where classes from the client come from as far as the security policy
+	 * is concerned, the cache directory.
+	 */
+	private final CodeSource codeSource;
+
+	private volatile IForkClient client;
+
+	RemoteClassLoader(ClassLoader parent, File cache) {
+		super(parent);
+		this.cache = cache;
+		URL location = null;
+		try {
+			location = cache.toURI().toURL();
+		} catch (MalformedURLException e) {
+			logger.warning("Unable to name code source for " + cache);
+		}
+		this.codeSource = new CodeSource(location, (Certificate[]) null);
+	}
+
+	/**
+	 * Creates the loader a fork was started with through
+	 * {@link Constants#CLASS_CACHE_PROPERTY}.
+	 *
+	 * @return the loader, null if the fork does not provision classes
+	 */
+	static RemoteClassLoader fromSystemProperties() {
+		String cache = System.getProperty(Constants.CLASS_CACHE_PROPERTY);
+		if (cache == null || cache.isEmpty()) {
+			return null;
+		}
+		return new RemoteClassLoader(ClassLoader.getSystemClassLoader(),
+				new File(cache));
+	}
+
+	/**
+	 * Sets the client classes are fetched from, until then only the fork's
+	 * classpath is searched.
+	 */
+	void setClient(IForkClient client) {
+		this.client = client;
+	}
+
+	// Forks run under a security manager, the fetch has to leave the job's
+	// access control context for as long as it is there.
+	@SuppressWarnings("removal")
+	protected Class<?> findClass(final String name)
+			throws ClassNotFoundException {
+		final IForkClient source = client;
+		if (source == null) {
+			throw new ClassNotFoundException(name);
+		}
+		byte[] bytes;
+		try {
+			// Whatever job triggered the load may not touch files or sockets.
+			bytes = AccessController
+					.doPrivileged((PrivilegedExceptionAction<byte[]>) () -> fetch(
+							source, name));
+		} catch (PrivilegedActionException e) {
+			throw new ClassNotFoundException(name, e.getException());
+		}
+		if (bytes == null) {
+			throw new ClassNotFoundException(name);
+		}
+		definePackage(name);
+		return defineClass(name, bytes, 0, bytes.length, codeSource);
+	}
+
+	private void definePackage(String className) {
+		int dot = className.lastIndexOf('.');
+		if (dot < 0) {
+			return;
+		}
+		String name = className.substring(0, dot);
+		if (getDefinedPackage(name) == null) {
+			try {
+				definePackage(name, null, null, null, null, null, null, null);
+			} catch (IllegalArgumentException e) {
+				// Another thread defined it first.
+			}
+		}
+	}
+
+	/**
+	 * @return the class's bytecode from the cache or the client, null if the
+	 *         client does not have the class
+	 */
+	private byte[] fetch(IForkClient source, String name) throws IOException {
+		byte[] digest = source.getClassDigest(name);
+		if (digest == null) {
+			return null;
+		}
+		File cached = new File(cache, toHex(digest));
+		byte[] bytes = readCached(cached, digest);
+		if (bytes != null) {
+			logger.fine("Loaded " + name + " from " + cached);
+			return bytes;
+		}
+
+		bytes = source.getClassBytes(name);
+		if (bytes == null) {
+			return null;
+		}
+		byte[] actual = digest(bytes);
+		if (!Arrays.equals(actual, digest)) {
+			// Changed on the client between the two calls.
+			cached = new File(cache, toHex(actual));
+		}
+		store(cached, bytes);
+		logger.fine("Fetched " + name + " from the client, " + bytes.length
+				+ " bytes");
+		return bytes;
+	}
+
+	/**
+	 * @return the cached bytes, null if there are none or they do not match
+	 *         the hash
+	 */
+	private static byte[] readCached(File file, byte[] digest) {
+		if (!file.isFile()) {
+			return null;
+		}
+		try {
+			byte[] bytes = Files.readAllBytes(file.toPath());
+			if (Arrays.equals(digest(bytes), digest)) {
+				return bytes;
+			}
+			logger.warning("Cached class " + file + " is damaged, fetching it again");
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Unable to read cached class " + file, e);
+		}
+		return null;
+	}
+
+	/**
+	 * Writes a class into the cache through a temporary file, so other forks
+	 * never see half of it. A class that cannot be cached is still loaded.
+	 */
+	private void store(File file, byte[] bytes) {
+		Path temp = null;
+		try {
+			Files.createDirectories(cache.toPath());
+			temp = Files.createTempFile(cache.toPath(), "fetch-", ".tmp");
+			Files.write(temp, bytes);
+			Files.move(temp, file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Unable to cache class in " + cache, e);
+			if (temp != null) {
+				temp.toFile().delete();
+			}
+		}
+	}
+
+	private static byte[] digest(byte[] bytes) throws IOException {
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(bytes);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("Unable to hash class", e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder();
+		for (byte b : bytes) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+}
@@ -0,0 +1,319 @@
+package org.braindroppings.forkingjava;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.rmi.RemoteException;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Results of {@link CacheableOperation}s kept in the client, by a SHA-256 of
+ * the serialized operation. An operation identical to one already running
+ * waits for that run instead of starting another, and one identical to an
+ * operation that finished within the time to live gets its result straight
+ * away. Failures are handed to whoever is waiting on that run but never
+ * cached, the next identical operation runs again. The least recently used
+ * results are dropped once there are more than the maximum, runs still in
+ * progress are never dropped so the cache may hold more of them for a while.
+ *
+ * Callers waiting on the same run get the same result object, so results
+ * should not be changed by whoever gets them. Cancelling one caller's future
+ * does not stop the run the others are waiting for.
+ *
+ * @see ForkManager#setResultCache(ResultCache)
+ * @author chinshaw
+ */
+public class ResultCache {
+
+	public static final int DEFAULT_MAX_ENTRIES = 1000;
+
+	/**
+	 * A result, or the run that will produce it.
+	 */
+	private static class Entry {
+
+		final CompletableFuture<Object> result = new CompletableFuture<Object>();
+
+		/**
+		 * When the result stops being served, set once it has arrived.
+		 */
+		volatile long expires = Long.MAX_VALUE;
+
+		boolean expired(long now) {
+			return result.isDone() && now - expires >= 0;
+		}
+	}
+
+	private int maxEntries = DEFAULT_MAX_ENTRIES;
+
+	private volatile int timeToLive = 0;
+
+	/**
+	 * Guarded by this, least recently used first.
+	 */
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(
+			16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+			trim();
+			return false;
+		}
+	};
+
+	private final LongAdder hits = new LongAdder();
+
+	private final LongAdder misses = new LongAdder();
+
+	/**
+	 * Sets how many results are kept, 1000 by default.
+	 */
+	public ResultCache setMaxEntries(int entries) {
+		if (entries < 1) {
+			throw new IllegalArgumentException("Need room for a result, not "
+					+ entries);
+		}
+		synchronized (this) {
+			this.maxEntries = entries;
+		}
+		return this;
+	}
+
+	public synchronized int getMaxEntries() {
+		return maxEntries;
+	}
+
+	/**
+	 * Sets how long a result is served after it arrived.
+	 *
+	 * @param seconds
+	 *            time to live in seconds, 0 to keep results until they are
+	 *            pushed out
+	 */
+	public ResultCache setTimeToLive(int seconds) {
+		if (seconds < 0) {
+			throw new IllegalArgumentException("Negative time to live "
+					+ seconds);
+		}
+		this.timeToLive = seconds;
+		return this;
+	}
+
+	public int getTimeToLive() {
+		return timeToLive;
+	}
+
+	/**
+	 * @return operations answered by a cached result or a run already in
+	 *         progress
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return cacheable operations that had to be run
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * Drops the least recently used results beyond the maximum, called with
+	 * the lock held. Runs in progress stay so identical operations keep
+	 * waiting for them.
+	 */
+	private void trim() {
+		Iterator<Entry> iterator = entries.values().iterator();
+		while (entries.size() > maxEntries && iterator.hasNext()) {
+			if (iterator.next().result.isDone()) {
+				iterator.remove();
+			}
+		}
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Drops every result, runs in progress still complete their callers.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * Answers an operation from the cache, or starts it with the given
+	 * execution if it is neither cached nor running.
+	 *
+	 * @param execution
+	 *            sends the operation to a fork, anything it throws fails the
+	 *            run
+	 * @return completes with the result, every caller gets a future of its
+	 *         own
+	 */
+	<T> CompletableFuture<T> get(RemoteOperation<T> operation,
+			Callable<CompletableFuture<T>> execution) {
+		String key;
+		try {
+			key = key(operation);
+		} catch (IOException e) {
+			// Will not serialize, sending it fails the same way.
+			return start(execution);
+		}
+
+		Entry entry;
+		boolean running = false;
+		synchronized (this) {
+			entry = entries.get(key);
+			if (entry != null && entry.expired(System.nanoTime())) {
+				entries.remove(key);
+				entry = null;
+			}
+			if (entry == null) {
+				entry = new Entry();
+				entries.put(key, entry);
+				running = true;
+			}
+		}
+
+		if (running) {
+			misses.increment();
+			run(key, entry, execution);
+		} else {
+			hits.increment();
+		}
+		return copy(entry.result);
+	}
+
+	private <T> void run(final String key, final Entry entry,
+			Callable<CompletableFuture<T>> execution) {
+		start(execution).whenComplete((result, failure) -> {
+			if (failure != null) {
+				synchronized (this) {
+					entries.remove(key, entry);
+				}
+				entry.result.completeExceptionally(unwrap(failure));
+			} else {
+				if (timeToLive > 0) {
+					entry.expires = System.nanoTime()
+							+ TimeUnit.SECONDS.toNanos(timeToLive);
+				}
+				entry.result.complete(result);
+				synchronized (this) {
+					trim();
+				}
+			}
+		});
+	}
+
+	private static <T> CompletableFuture<T> start(
+			Callable<CompletableFuture<T>> execution) {
+		try {
+			return execution.call();
+		} catch (Exception e) {
+			CompletableFuture<T> failed = new CompletableFuture<T>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> CompletableFuture<T> copy(CompletableFuture<Object> shared) {
+		final CompletableFuture<T> mine = new CompletableFuture<T>();
+		shared.whenComplete((result, failure) -> {
+			if (failure != null) {
+				mine.completeExceptionally(unwrap(failure));
+			} else {
+				mine.complete((T) result);
+			}
+		});
+		return mine;
+	}
+
+	private static Throwable unwrap(Throwable failure) {
+		if (failure instanceof CompletionException && failure.getCause() != null) {
+			return failure.getCause();
+		}
+		return failure;
+	}
+
+	/**
+	 * Waits for a result from {@link #get(RemoteOperation, Callable)} and
+	 * throws what the run failed with, the way a blocking execute would.
+	 *
+	 * @param timeout
+	 *            seconds to wait, a caller that joined a run already in
+	 *            progress gives up after its own timeout like it would on a
+	 *            run of its own
+	 */
+	static <T> T await(CompletableFuture<T> result, int timeout)
+			throws RemoteException, ForkException, ForkTimeoutException {
+		try {
+			return result.get(timeout, TimeUnit.SECONDS);
+		} catch (TimeoutException e) {
+			throw new ForkTimeoutException(
+					"Your job timed out, it took longer than " + timeout
+							+ " seconds to complete", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ForkException("Interrupted waiting for a result", e);
+		} catch (ExecutionException e) {
+			Throwable failure = e.getCause();
+			if (failure instanceof RemoteException) {
+				throw (RemoteException) failure;
+			} else if (failure instanceof ForkException) {
+				throw (ForkException) failure;
+			} else if (failure instanceof ForkTimeoutException) {
+				throw (ForkTimeoutException) failure;
+			} else if (failure instanceof RuntimeException) {
+				throw (RuntimeException) failure;
+			} else if (failure instanceof Error) {
+				throw (Error) failure;
+			}
+			throw new ForkException(failure);
+		}
+	}
+
+	/**
+	 * SHA-256 of the serialized operation, streamed so the bytes are never
+	 * held.
+	 */
+	private static String key(RemoteOperation<?> operation) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("Unable to hash operation", e);
+		}
+		ObjectOutputStream output = new ObjectOutputStream(
+				new DigestOutputStream(OutputStream.nullOutputStream(), digest));
+		output.writeObject(operation);
+		output.close();
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest.digest()) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+
+	public String toString() {
+		return "ResultCache[entries=" + size() + "/" + getMaxEntries()
+				+ ", ttl=" + timeToLive + ", hits=" + getHits() + ", misses="
+				+ getMisses() + "]";
+	}
+}
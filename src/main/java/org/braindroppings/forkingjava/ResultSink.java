@@ -0,0 +1,22 @@
+package org.braindroppings.forkingjava;
+
+import java.io.Serializable;
+
+/**
+ * Where a {@link StreamingOperation} puts its results.
+ */
+public interface ResultSink<T extends Serializable> {
+
+	/**
+	 * Adds an item to the stream, blocking while the client's buffer is full.
+	 * 
+	 * @throws ForkException
+	 *             if the client went away or closed the stream
+	 */
+	public void emit(T item) throws ForkException, InterruptedException;
+
+	/**
+	 * Sends the items emitted so far without waiting for a full chunk.
+	 */
+	public void flush() throws ForkException, InterruptedException;
+}
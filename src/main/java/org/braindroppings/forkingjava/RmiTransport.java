@@ -0,0 +1,145 @@
+package org.braindroppings.forkingjava;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.rmi.NoSuchObjectException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.server.RemoteObject;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The original transport, calls go over java rmi. No registry is involved, the
+ * client and server are exported on ports the system picks and hand each
+ * other their stubs directly: the client's stub goes to the fork on its
+ * command line and the fork sends its own back when it reports in. Any number
+ * of clients, in any number of jvms on a host, can run side by side.
+ * 
+ * @author chinshaw
+ */
+public class RmiTransport implements ForkTransport {
+
+	static class RmiClientEndpoint implements ClientEndpoint {
+
+		private final String clientStub;
+
+		RmiClientEndpoint(String clientStub) {
+			this.clientStub = clientStub;
+		}
+
+		public List<String> getArguments() {
+			return Collections.singletonList("-D"
+					+ Constants.TRANSPORT_ADDRESS_PROPERTY + "=" + clientStub);
+		}
+
+		/**
+		 * @param serverId
+		 *            the server's encoded stub
+		 */
+		public IForkService getServer(String serverId) throws RemoteException {
+			return (IForkService) decode(serverId);
+		}
+
+		/**
+		 * The client is unexported by its owner, nothing is held here.
+		 */
+		public void close() {
+		}
+	}
+
+	static class RmiServerEndpoint implements ServerEndpoint {
+
+		private final Remote server;
+
+		private final String serverStub;
+
+		private final IForkClient client;
+
+		RmiServerEndpoint(Remote server, String serverStub, IForkClient client) {
+			this.server = server;
+			this.serverStub = serverStub;
+			this.client = client;
+		}
+
+		public IForkClient getClient() {
+			return client;
+		}
+
+		public String getServerId() {
+			return serverStub;
+		}
+
+		/**
+		 * Unexports the server once rmi has no call in progress on it, rmi
+		 * only counts a call as done after its reply has been written.
+		 */
+		public void close() {
+			long deadline = System.nanoTime()
+					+ TimeUnit.MILLISECONDS.toNanos(REPLY_WAIT);
+			try {
+				while (!UnicastRemoteObject.unexportObject(server, false)) {
+					if (System.nanoTime() > deadline) {
+						UnicastRemoteObject.unexportObject(server, true);
+						return;
+					}
+					Thread.sleep(10);
+				}
+			} catch (NoSuchObjectException e) {
+				// Already unexported.
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	public ClientEndpoint export(String forkId, IForkClient client)
+			throws IOException {
+		return new RmiClientEndpoint(encode(client));
+	}
+
+	public ServerEndpoint connect(String forkId, IForkServer server)
+			throws IOException {
+		String address = System.getProperty(Constants.TRANSPORT_ADDRESS_PROPERTY);
+		if (address == null) {
+			throw new IOException("No client stub given in "
+					+ Constants.TRANSPORT_ADDRESS_PROPERTY);
+		}
+		return new RmiServerEndpoint(server, encode(server),
+				(IForkClient) decode(address));
+	}
+
+	/**
+	 * @return the stub of an exported object, serialized and base64 encoded
+	 *         so it can go on a command line
+	 */
+	static String encode(Remote exported) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream output = new ObjectOutputStream(bytes);
+		output.writeObject(RemoteObject.toStub(exported));
+		output.close();
+		return Base64.getUrlEncoder().withoutPadding()
+				.encodeToString(bytes.toByteArray());
+	}
+
+	static Remote decode(String stub) throws RemoteException {
+		try {
+			ObjectInputStream input = new ObjectInputStream(
+					new ByteArrayInputStream(Base64.getUrlDecoder().decode(stub)));
+			try {
+				return (Remote) input.readObject();
+			} finally {
+				input.close();
+			}
+		} catch (IOException | ClassNotFoundException
+				| IllegalArgumentException | ClassCastException e) {
+			throw new RemoteException("Unable to decode stub", e);
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package org.braindroppings.forkingjava;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+
+/**
+ * Plain java serialization, each value is serialized on its own and written
+ * with its length in front so several values can follow each other in a
+ * frame.
+ *
+ * @author chinshaw
+ */
+public class SerializationCodec implements ForkCodec {
+
+	/**
+	 * Resolves classes with the thread's context loader first, so a fork can
+	 * change which loader jobs come from.
+	 */
+	static class ContextObjectInputStream extends ObjectInputStream {
+
+		ContextObjectInputStream(InputStream input) throws IOException {
+			super(input);
+		}
+
+		protected Class<?> resolveClass(ObjectStreamClass desc)
+				throws IOException, ClassNotFoundException {
+			ClassLoader loader = Thread.currentThread().getContextClassLoader();
+			if (loader != null) {
+				try {
+					return Class.forName(desc.getName(), false, loader);
+				} catch (ClassNotFoundException e) {
+					// Fall back to the default lookup, it handles primitives.
+				}
+			}
+			return super.resolveClass(desc);
+		}
+	}
+
+	public void write(DataOutputStream out, Object value) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream objects = new ObjectOutputStream(bytes);
+		objects.writeObject(value);
+		objects.close();
+		out.writeInt(bytes.size());
+		bytes.writeTo(out);
+	}
+
+	public Object read(DataInputStream in) throws IOException,
+			ClassNotFoundException {
+		int length = in.readInt();
+		if (length < 0) {
+			throw new IOException("Bad serialized length " + length);
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		ObjectInputStream objects = new ContextObjectInputStream(
+				new ByteArrayInputStream(bytes));
+		try {
+			return objects.readObject();
+		} finally {
+			objects.close();
+		}
+	}
+}
@@ -0,0 +1,328 @@
+package org.braindroppings.forkingjava;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * A block of memory shared between the client and its fork through a memory
+ * mapped file under <code>/dev/shm</code>, or the temp directory where there is
+ * no <code>/dev/shm</code>. Only the file name is serialized, so a buffer can
+ * be put in an operation or returned as a result without its contents going
+ * through the transport, the other side maps the same pages.
+ *
+ * A buffer allocated by the client belongs to the client, the fork maps it
+ * and may read and write it. A buffer allocated by a job in the fork is handed
+ * over with the job's result, the client maps it on arrival and takes the file
+ * over, after which it can be passed on to other jobs like its own buffers.
+ * The owner removes the file with {@link #close()}, or it is removed once the
+ * owner's copy is garbage collected. If a job fails, times out or is
+ * cancelled the fork removes the buffers the job allocated, and anything a
+ * fork leaves behind is removed when the fork is closed.
+ *
+ * @author chinshaw
+ */
+public class SharedBuffer implements Serializable, Closeable {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final Logger logger = Logger.getLogger(SharedBuffer.class
+			.getName());
+
+	private static final String PREFIX = "forkingjava-";
+
+	private static final AtomicLong counter = new AtomicLong();
+
+	private static final Cleaner cleaner = Cleaner.create(new DaemonThreadFactory(
+			"shared-buffer-cleaner"));
+
+	/**
+	 * Buffers allocated by the job running on this thread, only set in a
+	 * fork.
+	 */
+	private static final ThreadLocal<Scope> currentScope = new ThreadLocal<Scope>();
+
+	/**
+	 * True in a fork, buffers allocated there are handed over to whoever
+	 * receives them.
+	 */
+	private static volatile boolean handOverAllocations = false;
+
+	/**
+	 * The buffers a single job allocates. The fork runs each job in its own
+	 * scope and releases it when the job's result is not going to reach the
+	 * client.
+	 */
+	static class Scope {
+
+		private final List<SharedBuffer> buffers = new ArrayList<SharedBuffer>();
+
+		private boolean released = false;
+
+		/**
+		 * Runs the job with this scope as the current one.
+		 */
+		<T> T call(Callable<T> job) throws Exception {
+			Scope previous = currentScope.get();
+			currentScope.set(this);
+			try {
+				return job.call();
+			} finally {
+				currentScope.set(previous);
+			}
+		}
+
+		synchronized void add(SharedBuffer buffer) {
+			if (released) {
+				buffer.discard();
+			} else {
+				buffers.add(buffer);
+			}
+		}
+
+		/**
+		 * Removes every buffer the job allocated, including any it allocates
+		 * from now on.
+		 */
+		synchronized void release() {
+			released = true;
+			for (SharedBuffer buffer : buffers) {
+				buffer.discard();
+			}
+			buffers.clear();
+		}
+	}
+
+	/**
+	 * Removes the file once the owner's copy is unreachable, kept apart from
+	 * the buffer so the cleaner does not keep the buffer reachable. Disarmed
+	 * when the buffer is handed over.
+	 */
+	static class Deleter implements Runnable {
+
+		private final Path path;
+
+		volatile boolean armed = true;
+
+		Deleter(Path path) {
+			this.path = path;
+		}
+
+		public void run() {
+			if (armed) {
+				delete(path);
+			}
+		}
+	}
+
+	private String path;
+
+	private final int size;
+
+	/**
+	 * Whether whoever reads this buffer takes it over.
+	 */
+	private boolean handOver;
+
+	private transient ByteBuffer buffer;
+
+	private transient Deleter deleter;
+
+	private transient Cleaner.Cleanable cleanable;
+
+	private SharedBuffer(Path path, int size, boolean handOver)
+			throws IOException {
+		this.path = path.toString();
+		this.size = size;
+		this.handOver = handOver;
+		this.buffer = map(path, size, StandardOpenOption.CREATE_NEW,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+	}
+
+	private static Path newPath() {
+		return new File(getDirectory(), PREFIX + ProcessHandle.current().pid()
+				+ "-" + counter.incrementAndGet() + ".buf").toPath();
+	}
+
+	/**
+	 * Makes this jvm the owner of the file.
+	 */
+	private void own(Path file) {
+		deleter = new Deleter(file);
+		cleanable = cleaner.register(this, deleter);
+	}
+
+	private static void delete(Path file) {
+		try {
+			Files.deleteIfExists(file);
+		} catch (IOException e) {
+			logger.warning("Unable to remove shared buffer " + file + " " + e);
+		}
+	}
+
+	/**
+	 * Allocates a zeroed buffer. In a fork the buffer belongs to the job that
+	 * allocated it and goes to the client with the result.
+	 *
+	 * @param size
+	 *            bytes, at most 2GB as that is as much as one mapping takes
+	 */
+	public static SharedBuffer allocate(int size) throws IOException {
+		if (size < 0) {
+			throw new IllegalArgumentException("Negative size " + size);
+		}
+		Path path = newPath();
+		SharedBuffer shared;
+		try {
+			shared = new SharedBuffer(path, size, handOverAllocations);
+		} catch (IOException e) {
+			delete(path);
+			throw e;
+		}
+		shared.own(path);
+
+		Scope scope = currentScope.get();
+		if (scope != null) {
+			scope.add(shared);
+		}
+		return shared;
+	}
+
+	/**
+	 * @return where buffers are created, <code>/dev/shm</code> when we can
+	 *         write to it so the pages never touch a disk
+	 */
+	static File getDirectory() {
+		File shm = new File("/dev/shm");
+		if (shm.isDirectory() && shm.canWrite()) {
+			return shm;
+		}
+		return new File(System.getProperty("java.io.tmpdir"));
+	}
+
+	/**
+	 * Marks this jvm as a fork, called once on startup.
+	 */
+	static void handOverAllocations() {
+		handOverAllocations = true;
+	}
+
+	/**
+	 * Removes the buffers a process left behind, used once a fork is gone.
+	 */
+	static void deleteAll(long pid) {
+		final String prefix = PREFIX + pid + "-";
+		File[] leftovers = getDirectory().listFiles(
+				(directory, name) -> name.startsWith(prefix));
+		if (leftovers == null) {
+			return;
+		}
+		for (File leftover : leftovers) {
+			if (leftover.delete()) {
+				logger.fine("Removed shared buffer left by " + pid + " "
+						+ leftover);
+			}
+		}
+	}
+
+	private static ByteBuffer map(Path path, int size,
+			StandardOpenOption... options) throws IOException {
+		FileChannel channel = FileChannel.open(path, options);
+		try {
+			return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * @return a view of the whole buffer with its own position and limit,
+	 *         writes through it are seen by the other process
+	 */
+	public ByteBuffer asByteBuffer() {
+		return buffer.duplicate();
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Removes the file so no other process can map the buffer any more, the
+	 * memory is freed once this copy is no longer referenced. Does nothing if
+	 * this process does not own the buffer.
+	 */
+	public void close() {
+		if (deleter != null && deleter.armed) {
+			cleanable.clean();
+		}
+	}
+
+	/**
+	 * Removes the file even if the buffer was already sent, for buffers of a
+	 * job whose result never reached the client.
+	 */
+	void discard() {
+		delete(Paths.get(path));
+		if (cleanable != null) {
+			cleanable.clean();
+		}
+	}
+
+	/**
+	 * Gives up ownership when a buffer goes out of the fork, the receiver
+	 * takes the file over.
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		if (handOver && deleter != null) {
+			deleter.armed = false;
+		}
+		out.defaultWriteObject();
+	}
+
+	/**
+	 * Maps the buffer as soon as it arrives, taking over the file if it was
+	 * handed to us.
+	 */
+	private void readObject(ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		Path file = Paths.get(path);
+		try {
+			buffer = map(file, size, StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+		} catch (NoSuchFileException e) {
+			throw new InvalidObjectException("Shared buffer " + path
+					+ " no longer exists");
+		}
+		if (handOver) {
+			Path owned = newPath();
+			Files.move(file, owned, StandardCopyOption.ATOMIC_MOVE);
+			path = owned.toString();
+			handOver = handOverAllocations;
+			own(owned);
+		}
+	}
+
+	public String toString() {
+		return "SharedBuffer[" + path + ", " + size + " bytes]";
+	}
+}
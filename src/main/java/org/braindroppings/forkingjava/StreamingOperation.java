@@ -0,0 +1,17 @@
+package org.braindroppings.forkingjava;
+
+import java.io.Serializable;
+
+/**
+ * A job that produces its result a piece at a time. Items given to the sink
+ * are sent to the client in chunks while the job is still running, and the
+ * sink blocks when the client has not caught up, so neither side has to hold
+ * the whole result.
+ * 
+ * @see IFork#stream(StreamingOperation, int)
+ */
+public interface StreamingOperation<T extends Serializable> extends
+		Serializable {
+
+	public void run(ResultSink<T> sink) throws Exception;
+}
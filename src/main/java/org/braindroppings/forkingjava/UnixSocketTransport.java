@@ -0,0 +1,262 @@
+package org.braindroppings.forkingjava;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.rmi.ConnectException;
+import java.rmi.RemoteException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Logger;
+
+/**
+ * Talks to the fork over a unix domain socket instead of rmi. The parent
+ * listens on a socket file named after the fork, the fork connects to it on
+ * startup and from then on every call in either direction is a frame on that
+ * one connection, see {@link FramedConnection}. There is no registry, no
+ * distributed gc and no tcp stack in the way.
+ * 
+ * @author chinshaw
+ */
+public class UnixSocketTransport implements ForkTransport {
+
+	private static final Logger logger = Logger
+			.getLogger(UnixSocketTransport.class.getName());
+
+	private final File directory;
+
+	private ForkCodec codec = new BinaryCodec();
+
+	private final CodecStats stats = new CodecStats();
+
+	private int maxFrame = FramedConnection.DEFAULT_MAX_FRAME;
+
+	/**
+	 * Socket files go in <code>java.io.tmpdir</code>.
+	 */
+	public UnixSocketTransport() {
+		this(new File(System.getProperty("java.io.tmpdir")));
+	}
+
+	/**
+	 * @param directory
+	 *            where the parent creates its socket files, keep the path
+	 *            short as socket paths are limited to around 100 bytes
+	 */
+	public UnixSocketTransport(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Sets the codec for forks exported after this call, a
+	 * {@link BinaryCodec} by default. The fork creates its own instance of
+	 * the same class.
+	 */
+	public UnixSocketTransport setCodec(ForkCodec codec) {
+		this.codec = codec;
+		return this;
+	}
+
+	public ForkCodec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Sets the largest call or result in bytes for forks exported after this
+	 * call, 256MB by default. A bigger one fails to marshal instead of being
+	 * sent, and a frame announcing a bigger length is taken for a corrupt
+	 * stream and closes the connection before anything is allocated for it.
+	 */
+	public UnixSocketTransport setMaxFrame(int bytes) {
+		if (bytes < 9) {
+			throw new IllegalArgumentException("Frame limit too small "
+					+ bytes);
+		}
+		this.maxFrame = bytes;
+		return this;
+	}
+
+	public int getMaxFrame() {
+		return maxFrame;
+	}
+
+	/**
+	 * @return bytes and encoding time per method for every fork on this
+	 *         transport
+	 */
+	public CodecStats getCodecStats() {
+		return stats;
+	}
+
+	static class SocketClientEndpoint implements ClientEndpoint {
+
+		private final ServerSocketChannel listener;
+
+		private final File socket;
+
+		private final ForkCodec codec;
+
+		private final CodecStats stats;
+
+		private final int maxFrame;
+
+		private final CompletableFuture<FramedConnection> connection = new CompletableFuture<FramedConnection>();
+
+		SocketClientEndpoint(ServerSocketChannel listener, File socket,
+				ForkCodec codec, CodecStats stats, int maxFrame) {
+			this.listener = listener;
+			this.socket = socket;
+			this.codec = codec;
+			this.stats = stats;
+			this.maxFrame = maxFrame;
+		}
+
+		/**
+		 * Waits for the one connection from the fork, then stops listening.
+		 */
+		void accept(String forkId, IForkClient client) {
+			try {
+				SocketChannel channel = listener.accept();
+				FramedConnection accepted = new FramedConnection("fork-"
+						+ forkId, channel, client,
+						new Class<?>[] { IForkClient.class }, new Class<?>[] {
+								IForkService.class, IForkServer.class }, codec,
+						stats, maxFrame, null);
+				connection.complete(accepted);
+				accepted.start();
+			} catch (IOException e) {
+				connection.completeExceptionally(e);
+			} finally {
+				stopListening();
+			}
+		}
+
+		private void stopListening() {
+			try {
+				listener.close();
+			} catch (IOException e) {
+				// Only listening for the one connection.
+			}
+			socket.delete();
+		}
+
+		public List<String> getArguments() {
+			return Arrays.asList("-D" + Constants.TRANSPORT_PROPERTY + "="
+					+ UnixSocketTransport.class.getName(), "-D"
+					+ Constants.TRANSPORT_ADDRESS_PROPERTY + "="
+					+ socket.getPath(), "-D" + Constants.CODEC_PROPERTY + "="
+					+ codec.getClass().getName(), "-D"
+					+ Constants.MAX_FRAME_PROPERTY + "=" + maxFrame);
+		}
+
+		/**
+		 * The fork reports in over the connection so it is always there by
+		 * the time this is called.
+		 */
+		public IForkService getServer(String serverId) throws RemoteException {
+			try {
+				return (IForkService) connection.get().getRemote();
+			} catch (ExecutionException e) {
+				throw new ConnectException("Fork " + serverId
+						+ " never connected", e);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new ConnectException("Interrupted waiting for fork "
+						+ serverId, e);
+			}
+		}
+
+		public void close() {
+			stopListening();
+			if (!connection.completeExceptionally(new IOException(
+					"Endpoint closed"))) {
+				connection.join().close();
+			}
+		}
+	}
+
+	static class SocketServerEndpoint implements ServerEndpoint {
+
+		private final FramedConnection connection;
+
+		private final String serverId;
+
+		SocketServerEndpoint(FramedConnection connection, String serverId) {
+			this.connection = connection;
+			this.serverId = serverId;
+		}
+
+		public IForkClient getClient() {
+			return (IForkClient) connection.getRemote();
+		}
+
+		public String getServerId() {
+			return serverId;
+		}
+
+		/**
+		 * Closes the connection once the replies still going out over it
+		 * have been sent.
+		 */
+		public void close() {
+			try {
+				connection.awaitReplies(REPLY_WAIT);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			connection.close();
+		}
+	}
+
+	public ClientEndpoint export(final String forkId, final IForkClient client)
+			throws IOException {
+		File socket = new File(directory, "fork-" + forkId + ".sock");
+		socket.delete();
+		ServerSocketChannel listener = ServerSocketChannel
+				.open(StandardProtocolFamily.UNIX);
+		listener.bind(UnixDomainSocketAddress.of(socket.toPath()));
+
+		final SocketClientEndpoint endpoint = new SocketClientEndpoint(
+				listener, socket, codec, stats, maxFrame);
+		Thread acceptor = new Thread(() -> endpoint.accept(forkId, client),
+				"fork-accept-" + forkId);
+		acceptor.setDaemon(true);
+		acceptor.start();
+		return endpoint;
+	}
+
+	public ServerEndpoint connect(String forkId, IForkServer server)
+			throws IOException {
+		String address = System.getProperty(Constants.TRANSPORT_ADDRESS_PROPERTY);
+		if (address == null) {
+			throw new IOException("No socket given in "
+					+ Constants.TRANSPORT_ADDRESS_PROPERTY);
+		}
+		String codecName = System.getProperty(Constants.CODEC_PROPERTY,
+				BinaryCodec.class.getName());
+		ForkCodec codec;
+		try {
+			codec = (ForkCodec) Class.forName(codecName)
+					.getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new IOException("Unable to create codec " + codecName, e);
+		}
+		SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress
+				.of(address));
+		FramedConnection connection = new FramedConnection("client-" + forkId,
+				channel, server, new Class<?>[] { IForkService.class,
+						IForkServer.class },
+				new Class<?>[] { IForkClient.class }, codec, stats,
+				Integer.getInteger(Constants.MAX_FRAME_PROPERTY,
+						FramedConnection.DEFAULT_MAX_FRAME), () -> logger
+						.info("Connection to client closed"));
+		connection.start();
+		return new SocketServerEndpoint(connection, forkId
+				+ IForkServer.TYPE_IDENTIFIER);
+	}
+}